@@ -101,35 +101,27 @@
  */
 public class BWT implements ByteTransform
 {
+    // Scratch buffers, grown on demand and reused between blocks
+    private int[] sa = new int[0];
+    private int[] intArray = new int[0];
+    private int[] hist = new int[0];
+    private final int[] buckets_ = new int[256];
+
+
     // Not thread safe
     @Override
     public byte[] forward(byte[] input, int blkptr)
     {
         final int len = input.length - blkptr;
-        final int[] sa = new int[len];
-        byte[] transform = new byte[len+1];
-        int[] intArray = new int[len];
-        
+
         if (len < 2)
            return input;
 
-        // Copy input into an array of the equivalent integer representation
-        for (int i = 0; i < len; ++i)
-        	intArray[i] = input[blkptr+i] & 0xFF;
-
-        // Compute the suffix array and get the primary index 
-        final int pIdx = computeSuffixArray(new IndexedIntArray(intArray, 0), sa, 0, len, 256, true);
-        transform[0] = (byte) intArray[len-1];
-
-        for (int i = 0; i < pIdx; ++i)
-        	transform[blkptr+i+1] = (byte) sa[i];
-
-        for (int i = pIdx + 1; i < len; ++i)
-        	transform[blkptr+i] = (byte) sa[i];
+        byte[] transform = new byte[len+1];
 
         // Add the primary index to the end of the transform
-        transform[len] = (byte) (pIdx + 1);
-        
+        transform[len] = (byte) forward(input, blkptr, transform, 0, len);
+
         return transform;
     }
 
@@ -143,21 +135,308 @@ public class BWT implements ByteTransform
     	 *  input should be ignored as it contains the primary index value
     	 */
     	int len = (input.length - 1) - blkptr;
-        
-    	final int[] buckets_ = new int[256];
-        final int[] hist = new int[len];
-        final byte[] buffer = new byte[len];
         byte[] invTransform = new byte[len];
-        
+
         // The primary index is the last byte of the input
-        final int pIdx = (int) input[len] & 0xFF;
-        
+        final int pIdx = (int) input[blkptr+len] & 0xFF;
+
+        inverse(input, blkptr, invTransform, 0, len, pIdx);
+        return invTransform;
+     }
+
+
+    /**
+     * Applies the forward transform on len bytes of the source array and
+     * writes the len transformed bytes to the destination array. Unlike
+     * {@link #forward(byte[], int)} the primary index is returned rather than
+     * appended to the output, which allows blocks larger than 255 bytes to be
+     * transformed as long as the caller stores the index itself.
+     *
+     * Not thread safe, the scratch buffers are reused between calls.
+     *
+     * @param src The array of bytes to perform the transform on
+     * @param srcOff The starting index in the source array
+     * @param dst The array to write the transformed bytes to
+     * @param dstOff The starting index in the destination array
+     * @param len The number of bytes to transform
+     * @return The primary index needed to perform the inverse transform
+     */
+    public int forward(byte[] src, int srcOff, byte[] dst, int dstOff, int len)
+    {
+        if (len < 2)
+        {
+           System.arraycopy(src, srcOff, dst, dstOff, len);
+           return 0;
+        }
+
+        if (sa.length < len)
+        {
+           sa = new int[len];
+           intArray = new int[len];
+        }
+
+        // Copy input into an array of the equivalent integer representation
+        for (int i = 0; i < len; ++i)
+        	intArray[i] = src[srcOff+i] & 0xFF;
+
+        // Compute the suffix array and get the primary index
+        final int pIdx = computeSuffixArray(new IndexedIntArray(intArray, 0), sa, 0, len, 256, true);
+        dst[dstOff] = (byte) intArray[len-1];
+
+        for (int i = 0; i < pIdx; ++i)
+        	dst[dstOff+i+1] = (byte) sa[i];
+
+        for (int i = pIdx + 1; i < len; ++i)
+        	dst[dstOff+i] = (byte) sa[i];
+
+        return pIdx + 1;
+    }
+
+
+    /**
+     * Applies the inverse transform on len transformed bytes of the source
+     * array given the primary index returned by
+     * {@link #forward(byte[], int, byte[], int, int)} and writes the original
+     * bytes to the destination array. The source and destination ranges must
+     * not overlap.
+     *
+     * Not thread safe, the scratch buffers are reused between calls.
+     *
+     * @param src The transformed array of bytes
+     * @param srcOff The starting index in the source array
+     * @param dst The array to write the original bytes to
+     * @param dstOff The starting index in the destination array
+     * @param len The number of transformed bytes, excluding the primary index
+     * @param pIdx The primary index of the transformed bytes
+     *
+     * @throws IllegalArgumentException if the primary index is not between 1
+     * and len for a block of at least 2 bytes, or the transform is corrupt
+     * and leaves the block
+     */
+    public void inverse(byte[] src, int srcOff, byte[] dst, int dstOff, int len, int pIdx)
+    {
+       // Blocks of less than 2 bytes are not transformed
+       if (len < 2)
+       {
+          System.arraycopy(src, srcOff, dst, dstOff, len);
+          return;
+       }
+
+       if (pIdx < 1 || pIdx > len)
+          throw new IllegalArgumentException("Invalid primary index: " + pIdx);
+
+       createHistogram(src, srcOff, len);
+
+       for (int i=len-1, val=0; i>=0; i--)
+       {
+          // Only a corrupt index or transform can step onto the guard row
+          if (val >= len)
+             throw new IllegalArgumentException("Corrupt transform, invalid primary index: " + pIdx);
+
+          final byte idx = src[srcOff+val];
+          dst[dstOff+i] = idx;
+          val = hist[val] + buckets_[idx & 0xFF];
+          val += ((val - pIdx) >>> 31);
+       }
+    }
+
+
+    /**
+     * Applies the forward transform on len bytes of the source array and
+     * records one index per chain, the block is split into pIdx.length chains
+     * of equal length (see {@link #getChainLength(int, int)}). The first
+     * index is the primary index, each following index j is the starting
+     * point of the chain ending just before position j * chainLength, which
+     * allows {@link #inverse(byte[], int, byte[], int, int, int[])} to decode
+     * the chains independently and interleaved.
+     *
+     * With a single chain this is equivalent to
+     * {@link #forward(byte[], int, byte[], int, int)}.
+     *
+     * Not thread safe, the scratch buffers are reused between calls.
+     *
+     * @param src The array of bytes to perform the transform on
+     * @param srcOff The starting index in the source array
+     * @param dst The array to write the transformed bytes to
+     * @param dstOff The starting index in the destination array
+     * @param len The number of bytes to transform
+     * @param pIdx The array to populate with the primary index followed by
+     * the index of each additional chain
+     *
+     * @throws IllegalArgumentException if the block is too small for the
+     * number of chains requested
+     */
+    public void forward(byte[] src, int srcOff, byte[] dst, int dstOff, int len, int[] pIdx)
+    {
+        final int chains = pIdx.length;
+
+        if (chains == 1)
+        {
+           pIdx[0] = forward(src, srcOff, dst, dstOff, len);
+           return;
+        }
+
+        final int step = getChainLength(len, chains);
+
+        if (sa.length < len)
+        {
+           sa = new int[len];
+           intArray = new int[len];
+        }
+
+        for (int i = 0; i < len; ++i)
+        	intArray[i] = src[srcOff+i] & 0xFF;
+
+        // The suffix array itself is needed to locate the chain boundaries,
+        // the transform is then read from it skipping the guard
+        computeSuffixArray(new IndexedIntArray(intArray, 0), sa, 0, len, 256, false);
+        dst[dstOff] = (byte) intArray[len-1];
+        int primary = 0;
+
+        for (int i = 0, k = dstOff + 1; i < len; ++i)
+        {
+           final int pos = sa[i];
+
+           if (pos == 0)
+           {
+              primary = i;
+              continue;
+           }
+
+           dst[k++] = (byte) intArray[pos-1];
+
+           if (pos % step == 0)
+              pIdx[pos / step] = i;
+        }
+
+        // Rows before the guard are shifted by one in the transform
+        for (int j = 1; j < chains; ++j)
+        {
+           if (pIdx[j] < primary)
+              pIdx[j]++;
+        }
+
+        pIdx[0] = primary + 1;
+    }
+
+
+    /**
+     * Applies the inverse transform on len transformed bytes of the source
+     * array given the indexes recorded by
+     * {@link #forward(byte[], int, byte[], int, int, int[])}. The chains are
+     * decoded interleaved so that the independent table lookups of each chain
+     * overlap, rather than following a single dependent chain through the
+     * whole block. The source and destination ranges must not overlap.
+     *
+     * Not thread safe, the scratch buffers are reused between calls.
+     *
+     * @param src The transformed array of bytes
+     * @param srcOff The starting index in the source array
+     * @param dst The array to write the original bytes to
+     * @param dstOff The starting index in the destination array
+     * @param len The number of transformed bytes, excluding the indexes
+     * @param pIdx The primary index followed by the index of each additional chain
+     *
+     * @throws IllegalArgumentException if the block is too small for the
+     * number of chains given, an index is not between 1 and len, or the 
+     * transform is corrupt and leaves the block
+     */
+    public void inverse(byte[] src, int srcOff, byte[] dst, int dstOff, int len, int[] pIdx)
+    {
+       final int chains = pIdx.length;
+
+       if (chains == 1)
+       {
+          inverse(src, srcOff, dst, dstOff, len, pIdx[0]);
+          return;
+       }
+
+       final int step = getChainLength(len, chains);
+       final int primary = pIdx[0];
+       final int last = chains - 1;
+
+       for (int j = 0; j < chains; j++)
+       {
+          if (pIdx[j] < 1 || pIdx[j] > len)
+             throw new IllegalArgumentException("Invalid index: " + pIdx[j]);
+       }
+
+       final int lastLen = len - last * step;
+       final int[] vals = new int[chains];
+       final int[] ends = new int[chains];
+
+       createHistogram(src, srcOff, len);
+
+       // Each chain is decoded backwards from the end of its interval, the
+       // final chain starts from the guard at the end of the block
+       for (int j = 0; j < last; j++)
+       {
+          vals[j] = pIdx[j+1];
+          ends[j] = dstOff + (j+1) * step - 1;
+       }
+
+       vals[last] = 0;
+       ends[last] = dstOff + len - 1;
+
+       for (int i = 0; i < step; i++)
+       {
+          final int n = (i < lastLen) ? chains : last;
+
+          for (int j = 0; j < n; j++)
+          {
+             final int val = vals[j];
+
+             if (val >= len)
+                throw new IllegalArgumentException("Corrupt transform, invalid index: " + pIdx[j]);
+
+             final byte idx = src[srcOff+val];
+             dst[ends[j]-i] = idx;
+             final int next = hist[val] + buckets_[idx & 0xFF];
+             vals[j] = next + ((next - primary) >>> 31);
+          }
+       }
+    }
+
+
+    /**
+     * Returns the length of each chain when a block of len bytes is split
+     * into the number of chains specified, the final chain holds the
+     * remainder and may be shorter.
+     *
+     * @param len The length of the block
+     * @param chains The number of chains
+     * @return The length of each chain
+     *
+     * @throws IllegalArgumentException if the block is too small for the
+     * number of chains specified
+     */
+    public static int getChainLength(int len, int chains)
+    {
+        if (chains < 1)
+           throw new IllegalArgumentException("The number of chains must be greater than zero!");
+
+        final int step = (int) (((long) len + chains - 1) / chains);
+
+        if (chains > 1 && (long) (chains - 1) * step >= len)
+           throw new IllegalArgumentException("Block of " + len + " bytes is too small for "
+                   + chains + " chains!");
+
+        return step;
+    }
+
+
+    // Build the histogram of the transform and the cumulative bucket starts
+    private void createHistogram(byte[] src, int srcOff, int len)
+    {
+        if (hist.length < len)
+           hist = new int[len];
+
         for (int i=0; i<256; i++)
            buckets_[i] = 0;
 
        // Create histogram
        for (int i=0; i<len; i++)
-          hist[i] = buckets_[input[blkptr+i] & 0xFF]++;
+          hist[i] = buckets_[src[srcOff+i] & 0xFF]++;
 
        // Create cumulative histogram
        for (int i=0, sum=0; i<256; i++)
@@ -166,18 +445,7 @@ public class BWT implements ByteTransform
           buckets_[i] = sum;
           sum += val;
        }
-
-       for (int i=len-1, val=0; i>=0; i--)
-       {
-          final byte idx = input[blkptr+val];
-          buffer[i] = idx;
-          val = hist[val] + buckets_[idx & 0xFF];
-          val += ((val - pIdx) >>> 31);
-       }
-
-       System.arraycopy(buffer, 0, invTransform, blkptr, len);
-       return invTransform;
-     }
+    }
 
 
       // find the start or end of each bucket
@@ -0,0 +1,204 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A Burrows-Wheeler Transform (BWT) encoder, implemented as an
+ * {@link OutputStream}. The bytes written are buffered until a block of the
+ * configured size is filled, the block is then transformed and written to the
+ * underlying stream as a framed block, so memory use is bounded by the block
+ * size rather than by the size of the input.
+ *
+ * Each framed block has the following layout, all integers are big-endian:
+ *  - 4 bytes, the length of the transformed block
+ *  - 1 byte, the number of chains the block is split into
+ *  - 4 bytes per chain, the primary index followed by the chain indexes
+ *  - the transformed block
+ *
+ * Large blocks are split into up to MAX_CHAINS chains of at least
+ * MIN_CHAIN_LENGTH bytes, see {@link BWT#forward(byte[], int, byte[], int, int, int[])},
+ * which lets the decoder follow several chains at once.
+ *
+ * Call <code>flush()</code> to transform and write a partially filled block,
+ * or <code>close()</code> to write the final block and close the underlying
+ * stream. Use {@link BWTDecompressorInputStream} to reverse the transform.
+ */
+public class BWTCompressorOutputStream extends FilterOutputStream
+{
+    /* The default block size, 256 KiB */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+
+    /* The maximum number of chains per block and the minimum chain length,
+     * smaller blocks gain nothing from decoding interleaved chains.
+     */
+    public static final int MAX_CHAINS = 8;
+    public static final int MIN_CHAIN_LENGTH = 1 << 14;
+
+    /* The size of the fixed part of the header and the size of each index */
+    static final int HEADER_SIZE = 5;
+    static final int INDEX_SIZE = 4;
+
+    private final BWT bwt = new BWT();
+    private final byte[] block;
+    private final byte[] transform;
+    private final byte[] header = new byte[HEADER_SIZE + MAX_CHAINS * INDEX_SIZE];
+    private final int[][] indexes = new int[MAX_CHAINS + 1][];
+    private int count;
+
+    /**
+     * Creates an output stream to encode BWT blocks using the default block
+     * size.
+     *
+     * @param out The underlying output stream to write the framed blocks to
+     */
+    public BWTCompressorOutputStream(OutputStream out)
+    {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates an output stream to encode BWT blocks using the block size
+     * specified, larger blocks generally transform better at the cost of
+     * memory.
+     *
+     * @param out The underlying output stream to write the framed blocks to
+     * @param blockSize The maximum number of bytes transformed per block
+     *
+     * @throws IllegalArgumentException if the block size is less than 1
+     */
+    public BWTCompressorOutputStream(OutputStream out, int blockSize)
+    {
+        super(out);
+
+        if (blockSize < 1)
+        {
+            throw new IllegalArgumentException("The block size must be greater than zero!");
+        }
+
+        this.block = new byte[blockSize];
+        this.transform = new byte[blockSize];
+    }
+
+    /**
+     * Writes a single byte to the stream, the block is transformed and
+     * written once it is full.
+     *
+     * @param b The byte to write
+     * @throws IOException If an I/O error occurs in the underlying stream
+     */
+    @Override
+    public void write(int b) throws IOException
+    {
+        block[count++] = (byte) b;
+
+        if (count == block.length)
+        {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Writes len bytes from the array to the stream, each time the block is
+     * filled it is transformed and written.
+     *
+     * @param b The bytes to write
+     * @param off The offset of <code>b</code> to start reading from
+     * @param len The number of bytes to write
+     * @throws IOException If an I/O error occurs in the underlying stream
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+
+        while (len > 0)
+        {
+            int n = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+
+            if (count == block.length)
+            {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Transforms and writes any partially filled block and flushes the
+     * underlying stream. Flushing often produces small blocks, which
+     * transform poorly.
+     *
+     * @throws IOException If an I/O error occurs in the underlying stream
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Transforms the buffered bytes and writes them as a framed block.
+     */
+    private void writeBlock() throws IOException
+    {
+        if (count == 0)
+        {
+            return;
+        }
+
+        int chains = Math.max(1, Math.min(MAX_CHAINS, count / MIN_CHAIN_LENGTH));
+
+        if (indexes[chains] == null)
+        {
+            indexes[chains] = new int[chains];
+        }
+
+        int[] pIdx = indexes[chains];
+        bwt.forward(block, 0, transform, 0, count, pIdx);
+
+        putInt(header, 0, count);
+        header[4] = (byte) chains;
+
+        for (int i = 0; i < chains; i++)
+        {
+            putInt(header, HEADER_SIZE + i * INDEX_SIZE, pIdx[i]);
+        }
+
+        out.write(header, 0, HEADER_SIZE + chains * INDEX_SIZE);
+        out.write(transform, 0, count);
+        count = 0;
+    }
+
+    private static void putInt(byte[] buf, int off, int val)
+    {
+        buf[off]   = (byte) (val >>> 24);
+        buf[off+1] = (byte) (val >>> 16);
+        buf[off+2] = (byte) (val >>> 8);
+        buf[off+3] = (byte) val;
+    }
+}
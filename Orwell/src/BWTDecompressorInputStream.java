@@ -0,0 +1,292 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A Burrows-Wheeler Transform (BWT) decoder, implemented as an
+ * {@link InputStream}, which reads the framed blocks written by
+ * {@link BWTCompressorOutputStream}. Each block is inverse transformed as
+ * soon as it has been read, so decoding starts before the whole input has
+ * arrived and memory use is bounded by the maximum block size.
+ */
+public class BWTDecompressorInputStream extends FilterInputStream
+{
+    private final BWT bwt = new BWT();
+    private final int maxBlockSize;
+    private final byte[] header = new byte[BWTCompressorOutputStream.HEADER_SIZE
+            + BWTCompressorOutputStream.MAX_CHAINS * BWTCompressorOutputStream.INDEX_SIZE];
+    private final int[][] indexes = new int[BWTCompressorOutputStream.MAX_CHAINS + 1][];
+    private byte[] block = new byte[0];
+    private byte[] transform = new byte[0];
+    private int pos;
+    private int limit;
+
+    /**
+     * Creates an input stream to decode BWT blocks, accepting blocks up to
+     * the default block size of {@link BWTCompressorOutputStream}.
+     *
+     * @param in The underlying input stream to read the framed blocks from
+     */
+    public BWTDecompressorInputStream(InputStream in)
+    {
+        this(in, BWTCompressorOutputStream.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates an input stream to decode BWT blocks, blocks larger than the
+     * maximum block size are rejected as corrupt, which bounds the memory
+     * used regardless of the input.
+     *
+     * @param in The underlying input stream to read the framed blocks from
+     * @param maxBlockSize The largest block size accepted, must be at least
+     * the block size used to encode the stream
+     *
+     * @throws IllegalArgumentException if the maximum block size is less than 1
+     */
+    public BWTDecompressorInputStream(InputStream in, int maxBlockSize)
+    {
+        super(in);
+
+        if (maxBlockSize < 1)
+        {
+            throw new IllegalArgumentException("The block size must be greater than zero!");
+        }
+
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    /**
+     * Reads a single decoded byte from the stream.
+     *
+     * @return The byte read, or -1 if the end of the stream has been reached
+     * @throws IOException If an I/O error occurs or a block is corrupt
+     */
+    @Override
+    public int read() throws IOException
+    {
+        if (pos == limit && !readBlock())
+        {
+            return -1;
+        }
+
+        return block[pos++] & 0xFF;
+    }
+
+    /**
+     * Reads up to len decoded bytes into the array, at most the remainder of
+     * the current block is returned per call.
+     *
+     * @param b The array to read the bytes into
+     * @param off The offset of <code>b</code> to start writing to
+     * @param len The maximum number of bytes to read
+     * @return The number of bytes read, or -1 if the end of the stream has
+     * been reached
+     * @throws IOException If an I/O error occurs or a block is corrupt
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        else if (len == 0)
+        {
+            return 0;
+        }
+
+        if (pos == limit && !readBlock())
+        {
+            return -1;
+        }
+
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Skips over decoded bytes, blocks are still read and inverse transformed.
+     *
+     * @param n The number of bytes to skip
+     * @return The number of bytes skipped
+     * @throws IOException If an I/O error occurs or a block is corrupt
+     */
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = 0;
+
+        while (skipped < n && (pos < limit || readBlock()))
+        {
+            int s = (int) Math.min(n - skipped, limit - pos);
+            pos += s;
+            skipped += s;
+        }
+
+        return skipped;
+    }
+
+    /**
+     * @return The number of decoded bytes remaining in the current block
+     */
+    @Override
+    public int available() throws IOException
+    {
+        return limit - pos;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit)
+    {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Reads the next framed block and inverse transforms it.
+     *
+     * @return false if the end of the stream was reached before a new block
+     */
+    private boolean readBlock() throws IOException
+    {
+        int n = readFully(header, 0, BWTCompressorOutputStream.HEADER_SIZE);
+
+        if (n == 0)
+        {
+            return false;
+        }
+        else if (n < BWTCompressorOutputStream.HEADER_SIZE)
+        {
+            throw new EOFException("Truncated BWT block header!");
+        }
+
+        int len = getInt(header, 0);
+        int chains = header[4] & 0xFF;
+
+        if (len < 1 || len > maxBlockSize || chains < 1
+                || chains > BWTCompressorOutputStream.MAX_CHAINS)
+        {
+            throw new IOException("Corrupt BWT block header, length: " + len
+                    + " chains: " + chains);
+        }
+
+        try
+        {
+            BWT.getChainLength(len, chains);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException("Corrupt BWT block header, " + e.getMessage());
+        }
+
+        if (readFully(header, 0, chains * BWTCompressorOutputStream.INDEX_SIZE)
+                < chains * BWTCompressorOutputStream.INDEX_SIZE)
+        {
+            throw new EOFException("Truncated BWT block header!");
+        }
+
+        if (indexes[chains] == null)
+        {
+            indexes[chains] = new int[chains];
+        }
+
+        int[] pIdx = indexes[chains];
+
+        for (int i = 0; i < chains; i++)
+        {
+            pIdx[i] = getInt(header, i * BWTCompressorOutputStream.INDEX_SIZE);
+
+            // The indexes recorded by BWT.forward are between 1 and len,
+            // blocks of a single byte are not transformed and record 0
+            if ((len < 2) ? pIdx[i] != 0 : (pIdx[i] < 1 || pIdx[i] > len))
+            {
+                throw new IOException("Corrupt BWT block header, index: " + pIdx[i]);
+            }
+        }
+
+        if (block.length < len)
+        {
+            block = new byte[len];
+            transform = new byte[len];
+        }
+
+        if (readFully(transform, 0, len) < len)
+        {
+            throw new EOFException("Truncated BWT block!");
+        }
+
+        try
+        {
+            bwt.inverse(transform, 0, block, 0, len, pIdx);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IOException("Corrupt BWT block, " + e.getMessage());
+        }
+
+        pos = 0;
+        limit = len;
+        return true;
+    }
+
+    /**
+     * Reads until len bytes have been read or the end of the stream is reached.
+     *
+     * @return The number of bytes read
+     */
+    private int readFully(byte[] b, int off, int len) throws IOException
+    {
+        int total = 0;
+
+        while (total < len)
+        {
+            int n = in.read(b, off + total, len - total);
+
+            if (n < 0)
+            {
+                break;
+            }
+
+            total += n;
+        }
+
+        return total;
+    }
+
+    private static int getInt(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xFF) << 24) | ((buf[off+1] & 0xFF) << 16)
+                | ((buf[off+2] & 0xFF) << 8) | (buf[off+3] & 0xFF);
+    }
+}
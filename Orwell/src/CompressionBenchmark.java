@@ -0,0 +1,420 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A benchmark of the Burrows-Wheeler Transform (BWT) and the compression
+ * stages built around it, used to catch performance regressions. Each stage
+ * is run on blocks from 64 bytes to 16 MiB of three corpora, SMS text,
+ * random data which resembles ciphertext and repetitive log lines, and the
+ * following is reported for each:
+ *  - throughput, in MB/s of input processed
+ *  - allocation rate, in bytes allocated per operation
+ *  - ratio, the size of the output relative to the input
+ *
+ * Like JMH, each measurement is preceded by a warm up period so the JIT has
+ * compiled the stage, and is repeated until the measurement period elapses.
+ * Allocation is read from the HotSpot thread allocation counters when they
+ * are available, otherwise it is reported as n/a.
+ *
+ * Usage: CompressionBenchmark [max block size] [word list]
+ *
+ * The SMS corpus is read from sms_messages.txt if present, otherwise it is
+ * made up of random words from the word list. The dictionary transform is
+ * only benchmarked if the word list, unsorted_wordlist.txt by default, exists.
+ */
+public class CompressionBenchmark
+{
+    private static final int[] BLOCK_SIZES = { 64, 256, 1 << 10, 1 << 12, 1 << 14,
+                                               1 << 16, 1 << 18, 1 << 20, 1 << 22, 1 << 24 };
+    private static final long WARMUP_NANOS = 500000000L;
+    private static final long MEASURE_NANOS = 1000000000L;
+    private static final int MIN_OPERATIONS = 3;
+
+    /* HotSpot per thread allocation counter, null if unavailable */
+    private static Object threadBean;
+    private static Method allocatedBytes;
+
+    /**
+     * A single benchmarked operation on a block
+     */
+    private static abstract class Operation
+    {
+        final String name;
+
+        Operation(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Runs the operation once
+         * @return The size of the output produced
+         */
+        abstract int run() throws IOException;
+    }
+
+    /**
+     * @param args The maximum block size and the word list, both optional
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int maxBlockSize = (args.length > 0) ? Integer.parseInt(args[0]) : BLOCK_SIZES[BLOCK_SIZES.length - 1];
+        File wordList = new File((args.length > 1) ? args[1] : "unsorted_wordlist.txt");
+        DictionaryTransform dictionary = null;
+        String[] words = null;
+
+        initAllocationCounter();
+
+        if (wordList.exists())
+        {
+            File index = File.createTempFile("orwell", ".idx");
+            index.deleteOnExit();
+            DictionaryTransform.compile(wordList, index);
+            dictionary = new DictionaryTransform(index);
+            words = CompressionActivity.readLines(wordList.getPath());
+        }
+
+        String[] corpora = { "sms", "random", "logs" };
+        byte[][] data = { smsCorpus(maxBlockSize, words), randomCorpus(maxBlockSize), logCorpus(maxBlockSize) };
+
+        System.out.println(String.format("%-8s %10s  %-22s %10s %10s %14s %8s",
+                "corpus", "block", "operation", "MB/s", "ops/s", "alloc B/op", "ratio"));
+
+        for (int c = 0; c < corpora.length; ++c)
+        {
+            for (int blockSize : BLOCK_SIZES)
+            {
+                if (blockSize > maxBlockSize)
+                {
+                    break;
+                }
+
+                for (Operation op : operations(data[c], blockSize, (c != 1) ? dictionary : null))
+                {
+                    measure(corpora[c], blockSize, op);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the operations benchmarked for a block, the outputs of the
+     * forward transforms are prepared so that the inverse transforms can be
+     * measured on their own.
+     */
+    private static ArrayList<Operation> operations(final byte[] corpus, final int n,
+                                                   final DictionaryTransform dictionary)
+            throws IOException
+    {
+        ArrayList<Operation> ops = new ArrayList<Operation>();
+        final BWT bwt = new BWT();
+        final byte[] block = new byte[n];
+        final byte[] transform = new byte[n];
+        final byte[] output = new byte[n];
+        final int chains = Math.max(1, Math.min(BWTCompressorOutputStream.MAX_CHAINS,
+                                                n / BWTCompressorOutputStream.MIN_CHAIN_LENGTH));
+        final int[] pIdx = new int[chains];
+
+        System.arraycopy(corpus, 0, block, 0, n);
+        final int primary = bwt.forward(block, 0, transform, 0, n);
+
+        ops.add(new Operation("BWT.forward")
+        {
+            int run()
+            {
+                bwt.forward(block, 0, output, 0, n);
+                return n;
+            }
+        });
+
+        ops.add(new Operation("BWT.inverse")
+        {
+            int run()
+            {
+                bwt.inverse(transform, 0, output, 0, n, primary);
+                return n;
+            }
+        });
+
+        if (chains > 1)
+        {
+            final byte[] chained = new byte[n];
+            bwt.forward(block, 0, chained, 0, n, pIdx);
+
+            ops.add(new Operation("BWT.inverse " + chains + " chains")
+            {
+                int run()
+                {
+                    bwt.inverse(chained, 0, output, 0, n, pIdx);
+                    return n;
+                }
+            });
+        }
+
+        ops.add(new Operation("BWT stream compress")
+        {
+            int run() throws IOException
+            {
+                CountingOutputStream count = new CountingOutputStream();
+                OutputStream out = new BWTCompressorOutputStream(count, n);
+                out.write(block, 0, n);
+                out.close();
+                return count.size;
+            }
+        });
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = new BWTCompressorOutputStream(compressed, n);
+        out.write(block, 0, n);
+        out.close();
+        final byte[] stream = compressed.toByteArray();
+
+        ops.add(new Operation("BWT stream decompress")
+        {
+            int run() throws IOException
+            {
+                InputStream in = new BWTDecompressorInputStream(new ByteArrayInputStream(stream), n);
+                int total = 0;
+                int len;
+
+                while ((len = in.read(output, total, n - total)) > 0)
+                {
+                    total += len;
+                }
+
+                in.close();
+                return stream.length;
+            }
+        });
+
+        if (dictionary != null)
+        {
+            final byte[] replaced = dictionary.forward(block, 0);
+
+            ops.add(new Operation("Dictionary.forward")
+            {
+                int run()
+                {
+                    return dictionary.forward(block, 0).length;
+                }
+            });
+
+            ops.add(new Operation("Dictionary.inverse")
+            {
+                int run()
+                {
+                    dictionary.inverse(replaced, 0);
+                    return replaced.length;
+                }
+            });
+        }
+
+        return ops;
+    }
+
+    /**
+     * Warms up and measures the operation, then prints the result
+     */
+    private static void measure(String corpus, int blockSize, Operation op) throws IOException
+    {
+        long start = System.nanoTime();
+
+        do
+        {
+            op.run();
+        }
+        while (System.nanoTime() - start < WARMUP_NANOS);
+
+        long alloc = getAllocatedBytes();
+        int ops = 0;
+        long size = 0;
+        start = System.nanoTime();
+
+        do
+        {
+            size += op.run();
+            ++ops;
+        }
+        while (System.nanoTime() - start < MEASURE_NANOS || ops < MIN_OPERATIONS);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        String allocPerOp = (alloc < 0) ? "n/a" : String.valueOf((getAllocatedBytes() - alloc) / ops);
+
+        System.out.println(String.format("%-8s %10d  %-22s %10.2f %10.1f %14s %8.3f",
+                corpus, blockSize, op.name,
+                (double) blockSize * ops / seconds / 1e6,
+                ops / seconds,
+                allocPerOp,
+                (double) size / ops / blockSize));
+    }
+
+    /**
+     * SMS text, read from sms_messages.txt if present, otherwise random
+     * sentences made of words from the word list
+     */
+    private static byte[] smsCorpus(int size, String[] words) throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+
+        if (new File("sms_messages.txt").exists())
+        {
+            for (String line : CompressionActivity.readLines("sms_messages.txt"))
+            {
+                text.append(line).append('\n');
+            }
+        }
+        else
+        {
+            Random random = new Random(1);
+            String[] fallback = { "hey", "are", "you", "coming", "tonight", "see", "you", "soon",
+                                  "call", "me", "when", "you", "get", "this", "message", "thanks" };
+            String[] dict = (words != null) ? words : fallback;
+
+            for (int i = 0; i < 2000; ++i)
+            {
+                int len = 3 + random.nextInt(20);
+
+                for (int j = 0; j < len; ++j)
+                {
+                    /* Favour a small set of common words, as real messages do */
+                    String word = (random.nextInt(3) == 0) ? dict[random.nextInt(dict.length)]
+                            : fallback[random.nextInt(fallback.length)];
+                    text.append(j == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+                    text.append(j == len - 1 ? (random.nextBoolean() ? "!\n" : ".\n") : " ");
+                }
+            }
+        }
+
+        return repeat(text.toString().getBytes(), size);
+    }
+
+    /**
+     * Uniformly random bytes, which resemble ciphertext
+     */
+    private static byte[] randomCorpus(int size)
+    {
+        byte[] data = new byte[size];
+        new Random(2).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Repetitive log lines with varying timestamps and values
+     */
+    private static byte[] logCorpus(int size)
+    {
+        Random random = new Random(3);
+        String[] levels = { "INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR" };
+        String[] classes = { "com.orwell.crypto.ECEngine", "com.orwell.crypto.ECGKeyExchange",
+                             "com.orwell.params.Nonce", "com.orwell.csprng.SDFGenerator" };
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < 20000; ++i)
+        {
+            text.append(String.format("2013-12-30 15:%02d:%02d.%03d %-5s [thread-%d] %s - processed message %d in %d ms\n",
+                    (i / 3600) % 60, (i / 60) % 60, random.nextInt(1000),
+                    levels[random.nextInt(levels.length)], random.nextInt(8),
+                    classes[random.nextInt(classes.length)], i, random.nextInt(50)));
+        }
+
+        return repeat(text.toString().getBytes(), size);
+    }
+
+    private static byte[] repeat(byte[] src, int size)
+    {
+        byte[] data = new byte[size];
+
+        for (int i = 0; i < size; i += src.length)
+        {
+            System.arraycopy(src, 0, data, i, Math.min(src.length, size - i));
+        }
+
+        return data;
+    }
+
+    /**
+     * Looks up the HotSpot thread allocation counter by reflection, it is
+     * not available on every virtual machine (ie. Dalvik)
+     */
+    private static void initAllocationCounter()
+    {
+        try
+        {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+            allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+        }
+        catch (Exception e)
+        {
+            threadBean = null;
+            allocatedBytes = null;
+        }
+    }
+
+    /**
+     * @return The bytes allocated by the current thread, or -1 if unavailable
+     */
+    private static long getAllocatedBytes()
+    {
+        if (allocatedBytes == null)
+        {
+            return -1;
+        }
+
+        try
+        {
+            return (Long) allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+        }
+        catch (Exception e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * An output stream which only counts the bytes written
+     */
+    private static class CountingOutputStream extends OutputStream
+    {
+        int size;
+
+        @Override
+        public void write(int b)
+        {
+            ++size;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            size += len;
+        }
+    }
+}
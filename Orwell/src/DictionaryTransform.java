@@ -0,0 +1,517 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import com.orwell.util.HashTable;
+
+/**
+ * A reversible word replacement transform which is applied to text before
+ * the Burrows-Wheeler Transform (BWT), in the style of the LIPT and star
+ * transforms. Each run of letters found in the dictionary is replaced by a
+ * compact codeword of one to three bytes, which shortens the text and gives
+ * the BWT longer repeated contexts to work with.
+ *
+ * The dictionary is a compiled word index (see {@link #compile(File, File)})
+ * which is memory-mapped rather than parsed, so opening a dictionary of
+ * several hundred thousand words costs nothing at startup and words are
+ * looked up directly in the mapped hash table.
+ *
+ * Transformed bytes are interpreted as follows:
+ *  - 0x00 - 0x7F, literal ASCII byte
+ *  - 0x80 - 0xBF, one byte codeword for words 0 - 63
+ *  - 0xC0 - 0xDF, two byte codeword for the next 8192 words
+ *  - 0xE0 - 0xFD, three byte codeword for the remaining words
+ *  - 0xFE, the following codeword is a capitalized word
+ *  - 0xFF, the following byte is a literal non-ASCII byte
+ *
+ * Words are only replaced if the codeword is shorter than the word, codewords
+ * are assigned in the order of the word list, so a list sorted by decreasing
+ * frequency gives the shortest codewords to the most common words.
+ */
+public class DictionaryTransform implements ByteTransform
+{
+    /* Compiled word index file format identifier and version */
+    private static final int MAGIC = 0x4F574449;	// "OWDI"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    /* Codeword ranges and markers */
+    private static final int ONE_BYTE_WORDS = 64;
+    private static final int TWO_BYTE_WORDS = ONE_BYTE_WORDS + (32 << 8);
+    private static final int MAX_WORDS = TWO_BYTE_WORDS + (30 << 16);
+    private static final int CAPITAL = 0xFE;
+    private static final int ESCAPE = 0xFF;
+
+    /* Words shorter than this can never be replaced by a shorter codeword */
+    private static final int MIN_WORD_LENGTH = 2;
+
+    private final MappedByteBuffer index;
+    private final int wordCount;
+    private final int tableSize;
+    private final int offsetsBase;
+    private final int wordsBase;
+
+    // Scratch buffer for the lower case word, not thread safe
+    private byte[] word = new byte[64];
+
+    /**
+     * Opens a compiled word index and maps it into memory.
+     *
+     * @param indexFile The compiled word index created by {@link #compile(File, File)}
+     *
+     * @throws IOException if the index cannot be read or is not a valid word index
+     */
+    public DictionaryTransform(File indexFile) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+
+        try
+        {
+            this.index = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        finally
+        {
+            file.close();
+        }
+
+        if (index.capacity() < HEADER_SIZE || index.getInt(0) != MAGIC || index.getInt(4) != VERSION)
+        {
+            throw new IOException("Invalid dictionary word index: " + indexFile);
+        }
+
+        this.wordCount = index.getInt(8);
+        this.tableSize = index.getInt(12);
+        this.offsetsBase = HEADER_SIZE + 4 * tableSize;
+        this.wordsBase = offsetsBase + 4 * (wordCount + 1);
+
+        if (wordCount < 0 || wordCount > MAX_WORDS || tableSize <= wordCount
+                || wordsBase > index.capacity()
+                || wordsBase + index.getInt(offsetsBase + 4 * wordCount) != index.capacity())
+        {
+            throw new IOException("Corrupt dictionary word index: " + indexFile);
+        }
+    }
+
+    /**
+     * Compiles a word list, one word per line, into a word index which can be
+     * memory-mapped by the transform. Only words consisting of lower case
+     * ASCII letters are kept, duplicates are removed and codewords are
+     * assigned in the order the words appear in the list.
+     *
+     * The index contains a double hashing table of word numbers (see
+     * {@link HashTable}), the offset of each word and the words themselves.
+     *
+     * @param wordList The word list to compile, such as unsorted_wordlist.txt
+     * @param indexFile The file to write the compiled word index to
+     *
+     * @return The number of words in the compiled index
+     *
+     * @throws IOException if the word list cannot be read or the index written
+     * @throws IllegalArgumentException if the word list contains too many words
+     */
+    public static int compile(File wordList, File indexFile) throws IOException
+    {
+        ArrayList<String> words = new ArrayList<String>();
+        HashSet<String> unique = new HashSet<String>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(wordList), "UTF-8"));
+        String line;
+        int wordBytes = 0;
+
+        try
+        {
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+
+                if (line.length() >= MIN_WORD_LENGTH && isLowerCase(line) && unique.add(line))
+                {
+                    words.add(line);
+                    wordBytes += line.length();
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        if (words.size() > MAX_WORDS)
+        {
+            throw new IllegalArgumentException("Word list exceeds the maximum of " + MAX_WORDS + " words!");
+        }
+
+        /* A table about twice the number of words keeps the probe sequences short */
+        int tableSize = HashTable.getCoPrime(2 * words.size() + 16);
+        int[] table = new int[tableSize];
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 4 * tableSize
+                + 4 * (words.size() + 1) + wordBytes);
+
+        out.putInt(MAGIC).putInt(VERSION).putInt(words.size()).putInt(tableSize);
+
+        for (int i = 0; i < words.size(); ++i)
+        {
+            byte[] w = words.get(i).getBytes("US-ASCII");
+            int hash = hash(w, 0, w.length);
+            int probe = getProbe(hash, tableSize);
+            int interval = HashTable.getInterval(hash);
+
+            while (table[probe] != 0)
+            {
+                probe = (probe + interval) % tableSize;
+            }
+
+            /* Slots hold the word number plus one, zero marks an empty slot */
+            table[probe] = i + 1;
+        }
+
+        for (int slot : table)
+        {
+            out.putInt(slot);
+        }
+
+        for (int i = 0, offset = 0; i <= words.size(); ++i)
+        {
+            out.putInt(offset);
+
+            if (i < words.size())
+            {
+                offset += words.get(i).length();
+            }
+        }
+
+        for (String w : words)
+        {
+            out.put(w.getBytes("US-ASCII"));
+        }
+
+        FileOutputStream fos = new FileOutputStream(indexFile);
+
+        try
+        {
+            fos.write(out.array());
+        }
+        finally
+        {
+            fos.close();
+        }
+
+        return words.size();
+    }
+
+    /**
+     * @return The number of words in the dictionary
+     */
+    public int getWordCount()
+    {
+        return wordCount;
+    }
+
+    // Not thread safe
+    @Override
+    public byte[] forward(byte[] block, int idx)
+    {
+        /* Every byte escaped is the worst case */
+        byte[] out = new byte[2 * (block.length - idx)];
+        int pos = 0;
+        int i = idx;
+
+        while (i < block.length)
+        {
+            final int b = block[i] & 0xFF;
+
+            if (isLetter(b))
+            {
+                int j = i + 1;
+
+                while (j < block.length && isLetter(block[j] & 0xFF))
+                    ++j;
+
+                pos = encodeWord(block, i, j - i, out, pos);
+                i = j;
+            }
+            else
+            {
+                if (b >= 0x80)
+                    out[pos++] = (byte) ESCAPE;
+
+                out[pos++] = (byte) b;
+                ++i;
+            }
+        }
+
+        return Arrays.copyOf(out, pos);
+    }
+
+    /**
+     * Applies the inverse transform, replacing each codeword by its word.
+     *
+     * @throws IllegalArgumentException if the block contains a codeword that
+     * is truncated or not in the dictionary
+     */
+    @Override
+    public byte[] inverse(byte[] block, int idx)
+    {
+        byte[] out = new byte[2 * (block.length - idx) + 16];
+        int pos = 0;
+        int i = idx;
+
+        while (i < block.length)
+        {
+            int b = block[i++] & 0xFF;
+
+            if (b < 0x80)
+            {
+                out = ensureCapacity(out, pos, 1);
+                out[pos++] = (byte) b;
+                continue;
+            }
+            else if (b == ESCAPE)
+            {
+                checkLength(block, i, 1);
+                out = ensureCapacity(out, pos, 1);
+                out[pos++] = block[i++];
+                continue;
+            }
+
+            boolean capital = (b == CAPITAL);
+
+            if (capital)
+            {
+                checkLength(block, i, 1);
+                b = block[i++] & 0xFF;
+            }
+
+            /* Decode the word number from the codeword */
+            int n;
+
+            if (b >= 0x80 && b < 0xC0)
+            {
+                n = b - 0x80;
+            }
+            else if (b >= 0xC0 && b < 0xE0)
+            {
+                checkLength(block, i, 1);
+                n = ONE_BYTE_WORDS + (((b - 0xC0) << 8) | (block[i++] & 0xFF));
+            }
+            else if (b >= 0xE0 && b < CAPITAL)
+            {
+                checkLength(block, i, 2);
+                n = TWO_BYTE_WORDS + (((b - 0xE0) << 16) | ((block[i] & 0xFF) << 8)
+                        | (block[i+1] & 0xFF));
+                i += 2;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Invalid codeword in transformed block!");
+            }
+
+            if (n >= wordCount)
+            {
+                throw new IllegalArgumentException("Codeword " + n + " is not in the dictionary!");
+            }
+
+            int start = index.getInt(offsetsBase + 4 * n);
+            int len = index.getInt(offsetsBase + 4 * (n + 1)) - start;
+            out = ensureCapacity(out, pos, len);
+
+            for (int k = 0; k < len; ++k)
+                out[pos + k] = index.get(wordsBase + start + k);
+
+            if (capital)
+                out[pos] = (byte) (out[pos] - 'a' + 'A');
+
+            pos += len;
+        }
+
+        return Arrays.copyOf(out, pos);
+    }
+
+    /**
+     * Writes the codeword for the word if it is in the dictionary and
+     * shorter than the word, otherwise the word is written unchanged.
+     * Capitalized words are looked up in lower case and flagged.
+     */
+    private int encodeWord(byte[] block, int off, int len, byte[] out, int pos)
+    {
+        int capital = 0;
+        int n = -1;
+
+        if (len >= MIN_WORD_LENGTH && isLowerCase(block, off + 1, len - 1))
+        {
+            if (word.length < len)
+                word = new byte[len];
+
+            System.arraycopy(block, off, word, 0, len);
+
+            if (block[off] >= 'A' && block[off] <= 'Z')
+            {
+                word[0] = (byte) (word[0] - 'A' + 'a');
+                capital = 1;
+            }
+
+            n = lookup(word, len);
+        }
+
+        int codeLen = (n < 0) ? len : (n < ONE_BYTE_WORDS) ? 1 : (n < TWO_BYTE_WORDS) ? 2 : 3;
+
+        if (n < 0 || capital + codeLen >= len)
+        {
+            System.arraycopy(block, off, out, pos, len);
+            return pos + len;
+        }
+
+        if (capital != 0)
+            out[pos++] = (byte) CAPITAL;
+
+        if (codeLen == 1)
+        {
+            out[pos++] = (byte) (0x80 + n);
+        }
+        else if (codeLen == 2)
+        {
+            n -= ONE_BYTE_WORDS;
+            out[pos++] = (byte) (0xC0 + (n >>> 8));
+            out[pos++] = (byte) n;
+        }
+        else
+        {
+            n -= TWO_BYTE_WORDS;
+            out[pos++] = (byte) (0xE0 + (n >>> 16));
+            out[pos++] = (byte) (n >>> 8);
+            out[pos++] = (byte) n;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Looks up the word in the memory-mapped hash table.
+     *
+     * @return The word number, or -1 if the word is not in the dictionary
+     */
+    private int lookup(byte[] w, int len)
+    {
+        int hash = hash(w, 0, len);
+        int probe = getProbe(hash, tableSize);
+        int interval = HashTable.getInterval(hash);
+
+        for (int i = 0; i < tableSize; ++i)
+        {
+            int slot = index.getInt(HEADER_SIZE + 4 * probe);
+
+            if (slot == 0)
+                return -1;
+
+            int start = index.getInt(offsetsBase + 4 * (slot - 1));
+            int end = index.getInt(offsetsBase + 4 * slot);
+
+            if (end - start == len && matches(w, len, wordsBase + start))
+                return slot - 1;
+
+            probe = (probe + interval) % tableSize;
+        }
+
+        return -1;
+    }
+
+    private boolean matches(byte[] w, int len, int offset)
+    {
+        for (int i = 0; i < len; ++i)
+        {
+            if (index.get(offset + i) != w[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int hash(byte[] w, int off, int len)
+    {
+        int h = 0;
+
+        for (int i = off; i < off + len; ++i)
+            h = 31 * h + w[i];
+
+        return h;
+    }
+
+    /**
+     * Returns the initial probe of the hash, unlike {@link HashTable#getProbe(int, int)}
+     * the probe is always within the table, including for negative multiples
+     * of the table size and Integer.MIN_VALUE.
+     */
+    private static int getProbe(int hash, int tableSize)
+    {
+        return (hash & 0x7FFFFFFF) % tableSize;
+    }
+
+    private static boolean isLetter(int b)
+    {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static boolean isLowerCase(byte[] w, int off, int len)
+    {
+        for (int i = off; i < off + len; ++i)
+        {
+            if (w[i] < 'a' || w[i] > 'z')
+                return false;
+        }
+
+        return true;
+    }
+
+    private static boolean isLowerCase(String w)
+    {
+        for (int i = 0; i < w.length(); ++i)
+        {
+            if (w.charAt(i) < 'a' || w.charAt(i) > 'z')
+                return false;
+        }
+
+        return true;
+    }
+
+    private static byte[] ensureCapacity(byte[] out, int pos, int len)
+    {
+        if (pos + len <= out.length)
+            return out;
+
+        return Arrays.copyOf(out, Math.max(2 * out.length, pos + len));
+    }
+
+    private static void checkLength(byte[] block, int i, int len)
+    {
+        if (i + len > block.length)
+            throw new IllegalArgumentException("Truncated codeword in transformed block!");
+    }
+}
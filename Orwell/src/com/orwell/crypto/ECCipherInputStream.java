@@ -0,0 +1,296 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.strippedcastle.crypto.InvalidCipherTextException;
+
+/**
+ * Decrypts a stream encrypted by {@link ECCipherOutputStream}, implemented as
+ * an {@link InputStream}. Each chunk is verified and decrypted on its own as
+ * it is read, so memory use is bounded by the chunk size and the plaintext of
+ * each verified chunk is released without waiting for the rest of the stream.
+ * 
+ * A chunk that fails verification, including chunks that were reordered,
+ * dropped or spliced from another stream, throws an IOException, as does a
+ * stream that ends before the last chunk. Once a chunk has failed every 
+ * further read throws an IOException. The plaintext already read from the
+ * chunks before is authentic, but the payload as a whole is only complete
+ * once the end of stream is reached.
+ * 
+ * The engine must have been initialized for decryption using either init() or
+ * initSession() and must not be used for anything else until the stream has
+ * been read.
+ */
+public class ECCipherInputStream extends FilterInputStream
+{
+    /* The largest padding a block cipher mode may add to each chunk */
+    private static final int MAX_PADDING = 32;
+    
+    private final ECEngine engine;
+    private final byte[] baseIV;
+    private final int maxFrameSize;
+    private final byte[] header = new byte[ECCipherOutputStream.HEADER_SIZE];
+    private byte[] frame;
+    private byte[] chunk;
+    private long index;
+    private int pos;
+    private int count;
+    private boolean last;
+    private IOException failure;
+    
+    /**
+     * Creates an input stream to decrypt a payload encrypted using the
+     * default chunk size.
+     * 
+     * @param in The underlying input stream to read the encrypted chunks from
+     * @param engine The engine initialized for decryption
+     * 
+     * @throws IllegalStateException if the engine is not initialized for 
+     * decryption or was created without a nonce
+     */
+    public ECCipherInputStream(InputStream in, ECEngine engine) throws IllegalStateException
+    {
+        this(in, engine, ECCipherOutputStream.DEFAULT_CHUNK_SIZE);
+    }
+    
+    /**
+     * Creates an input stream to decrypt a payload, chunks larger than the
+     * maximum chunk size are rejected.
+     * 
+     * @param in The underlying input stream to read the encrypted chunks from
+     * @param engine The engine initialized for decryption
+     * @param maxChunkSize The chunk size the payload was encrypted using
+     * 
+     * @throws IllegalArgumentException if the chunk size is less than 1
+     * @throws IllegalStateException if the engine is not initialized for 
+     * decryption or was created without a nonce
+     */
+    public ECCipherInputStream(InputStream in, ECEngine engine, int maxChunkSize)
+            throws IllegalArgumentException, IllegalStateException
+    {
+        super(in);
+        
+        if (maxChunkSize < 1)
+        {
+            throw new IllegalArgumentException("The chunk size must be greater than zero!");
+        }
+        
+        if (engine.isForEncryption())
+        {
+            throw new IllegalStateException("The engine must be initialized for decryption!");
+        }
+        
+        this.engine = engine;
+        this.baseIV = engine.initStream();
+        this.maxFrameSize = maxChunkSize + MAX_PADDING + engine.getMacSize();
+    }
+    
+    @Override
+    public int read() throws IOException
+    {
+        if (pos == count && !readChunk())
+        {
+            return -1;
+        }
+        
+        return chunk[pos++] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        
+        if (len == 0)
+        {
+            return 0;
+        }
+        
+        if (pos == count && !readChunk())
+        {
+            return -1;
+        }
+        
+        int n = Math.min(len, count - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        
+        return n;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = 0;
+        
+        while (skipped < n && (pos < count || readChunk()))
+        {
+            int k = (int) Math.min(n - skipped, count - pos);
+            pos += k;
+            skipped += k;
+        }
+        
+        return skipped;
+    }
+    
+    @Override
+    public int available() throws IOException
+    {
+        return count - pos;
+    }
+    
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+    
+    @Override
+    public void mark(int readlimit)
+    {
+    }
+    
+    @Override
+    public void reset() throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+    
+    /**
+     * Reads, verifies and decrypts the next chunk, skipping empty chunks
+     * 
+     * @return false if the last chunk has already been read
+     */
+    private boolean readChunk() throws IOException
+    {
+        if (failure != null)
+        {
+            throw new IOException("The stream has failed: " + failure.getMessage(), failure);
+        }
+        
+        try
+        {
+            return nextChunk();
+        }
+        catch (IOException e)
+        {
+            failure = e;
+            throw e;
+        }
+    }
+    
+    /**
+     * Reads the chunks until a chunk that is not empty is decrypted
+     */
+    private boolean nextChunk() throws IOException
+    {
+        do
+        {
+            if (last)
+            {
+                return false;
+            }
+            
+            if (!readFully(header, 0, header.length, true))
+            {
+                throw new EOFException("Truncated stream, missing the last chunk!");
+            }
+            
+            int value = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) 
+                      | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+            int len = value & ~ECCipherOutputStream.LAST_CHUNK;
+            
+            if (len < engine.getMacSize() || len > maxFrameSize)
+            {
+                throw new IOException("Invalid chunk length: " + len);
+            }
+            
+            if (frame == null || frame.length < len)
+            {
+                frame = new byte[len];
+            }
+            
+            readFully(frame, 0, len, false);
+            
+            int size = engine.getOutputSize(len);
+            
+            if (chunk == null || chunk.length < size)
+            {
+                chunk = new byte[size];
+            }
+            
+            boolean lastChunk = (value & ECCipherOutputStream.LAST_CHUNK) != 0;
+            
+            try
+            {
+                count = engine.processChunk(baseIV, index, lastChunk, frame, 0, len, chunk, 0);
+            }
+            catch (InvalidCipherTextException e)
+            {
+                throw new IOException("Invalid chunk " + index + ": " + e.getMessage());
+            }
+            
+            /* The header is only trusted once the chunk has been verified */
+            last = lastChunk;
+            ++index;
+            pos = 0;
+        }
+        while (count == 0);
+        
+        return true;
+    }
+    
+    /**
+     * Reads len bytes from the underlying stream
+     * 
+     * @return false if the stream ended before any bytes were read and 
+     * an empty read is allowed
+     */
+    private boolean readFully(byte[] b, int off, int len, boolean allowEmpty) throws IOException
+    {
+        int read = 0;
+        
+        while (read < len)
+        {
+            int n = in.read(b, off + read, len - read);
+            
+            if (n < 0)
+            {
+                if (read == 0 && allowEmpty)
+                {
+                    return false;
+                }
+                
+                throw new EOFException("Truncated chunk!");
+            }
+            
+            read += n;
+        }
+        
+        return true;
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.strippedcastle.crypto.InvalidCipherTextException;
+
+/**
+ * Encrypts a stream using an ECEngine, implemented as an {@link OutputStream}.
+ * The bytes written are buffered until a chunk of the configured size is
+ * filled, the chunk is then encrypted and authenticated on its own and written
+ * to the underlying stream, so memory use is bounded by the chunk size rather
+ * than by the size of the payload, such as a large attachment.
+ * 
+ * Each chunk is encrypted using the base IV of the stream, generated by the 
+ * nonce the same as a message, with the index of the chunk XORed in, and is
+ * followed by the HMAC of the base IV, the index, the last chunk flag and the
+ * ciphertext.
+ * Each chunk has the following layout, all integers are big-endian:
+ *  - 4 bytes, the last chunk flag in the high bit and the length of the rest
+ *  - the ciphertext of the chunk
+ *  - the HMAC of the chunk
+ * 
+ * The engine must have been initialized for encryption using either init() or
+ * initSession() and must not be used for anything else until the stream is 
+ * closed. Call <code>close()</code> to write the last chunk, without which the
+ * stream is rejected as truncated. Use {@link ECCipherInputStream} to decrypt.
+ */
+public class ECCipherOutputStream extends FilterOutputStream
+{
+    /* The default chunk size, 64 KiB */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+    
+    /* The flag set in the header of the last chunk */
+    static final int LAST_CHUNK = 0x80000000;
+    static final int HEADER_SIZE = 4;
+    
+    private final ECEngine engine;
+    private final byte[] baseIV;
+    private final byte[] chunk;
+    private byte[] frame;
+    private long index;
+    private int count;
+    private boolean closed;
+    
+    /**
+     * Creates an output stream to encrypt the payload using the default chunk
+     * size.
+     * 
+     * @param out The underlying output stream to write the encrypted chunks to
+     * @param engine The engine initialized for encryption
+     * 
+     * @throws IllegalStateException if the engine is not initialized for 
+     * encryption or was created without a nonce
+     */
+    public ECCipherOutputStream(OutputStream out, ECEngine engine) throws IllegalStateException
+    {
+        this(out, engine, DEFAULT_CHUNK_SIZE);
+    }
+    
+    /**
+     * Creates an output stream to encrypt the payload using the chunk size
+     * specified, each chunk adds the header and HMAC to the payload.
+     * 
+     * @param out The underlying output stream to write the encrypted chunks to
+     * @param engine The engine initialized for encryption
+     * @param chunkSize The maximum number of bytes encrypted per chunk
+     * 
+     * @throws IllegalArgumentException if the chunk size is less than 1
+     * @throws IllegalStateException if the engine is not initialized for 
+     * encryption or was created without a nonce
+     */
+    public ECCipherOutputStream(OutputStream out, ECEngine engine, int chunkSize)
+            throws IllegalArgumentException, IllegalStateException
+    {
+        super(out);
+        
+        if (chunkSize < 1)
+        {
+            throw new IllegalArgumentException("The chunk size must be greater than zero!");
+        }
+        
+        if (!engine.isForEncryption())
+        {
+            throw new IllegalStateException("The engine must be initialized for encryption!");
+        }
+        
+        this.engine = engine;
+        this.baseIV = engine.initStream();
+        this.chunk = new byte[chunkSize];
+    }
+    
+    /**
+     * Writes a single byte to the stream, the chunk is encrypted and written
+     * once it is full.
+     * 
+     * @param b The byte to write
+     * @throws IOException If an I/O error occurs in the underlying stream
+     */
+    @Override
+    public void write(int b) throws IOException
+    {
+        chunk[count++] = (byte) b;
+        
+        if (count == chunk.length)
+        {
+            writeChunk(false);
+        }
+    }
+    
+    /**
+     * Writes len bytes from the array to the stream, each time the chunk is
+     * filled it is encrypted and written.
+     * 
+     * @param b The bytes to write
+     * @param off The offset of <code>b</code> to start reading from
+     * @param len The number of bytes to write
+     * @throws IOException If an I/O error occurs in the underlying stream
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if ((off | len | (off + len) | (b.length - (off + len))) < 0)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        
+        while (len > 0)
+        {
+            int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            
+            if (count == chunk.length)
+            {
+                writeChunk(false);
+            }
+        }
+    }
+    
+    /**
+     * Encrypts and writes any partially filled chunk and flushes the 
+     * underlying stream, flushing often produces small chunks which each
+     * add the header and HMAC.
+     * 
+     * @throws IOException If an I/O error occurs in the underlying stream
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if (count > 0)
+        {
+            writeChunk(false);
+        }
+        
+        out.flush();
+    }
+    
+    /**
+     * Encrypts and writes the last chunk and closes the underlying stream
+     * 
+     * @throws IOException If an I/O error occurs in the underlying stream
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        
+        closed = true;
+        
+        try
+        {
+            writeChunk(true);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Encrypts the buffered bytes and writes them as a chunk
+     */
+    private void writeChunk(boolean last) throws IOException
+    {
+        int size = HEADER_SIZE + engine.getOutputSize(count);
+        
+        if (frame == null || frame.length < size)
+        {
+            frame = new byte[HEADER_SIZE + engine.getOutputSize(chunk.length)];
+        }
+        
+        int len;
+        
+        try
+        {
+            len = engine.processChunk(baseIV, index++, last, chunk, 0, count, frame, HEADER_SIZE);
+        }
+        catch (InvalidCipherTextException e)
+        {
+            throw new IOException("Encrypting the chunk failed: " + e.getMessage());
+        }
+        
+        int header = (last ? LAST_CHUNK : 0) | len;
+        frame[0] = (byte) (header >>> 24);
+        frame[1] = (byte) (header >>> 16);
+        frame[2] = (byte) (header >>> 8);
+        frame[3] = (byte) header;
+        
+        out.write(frame, 0, HEADER_SIZE + len);
+        count = 0;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+
+import org.strippedcastle.crypto.params.ECDomainParameters;
+import org.strippedcastle.math.ec.ECCurve;
+import org.strippedcastle.math.ec.ECPoint;
+
+/**
+ * A fixed-base comb multiplier for a point P, such as the generator G of a
+ * curve or the public key of a frequent contact. The table of multiples of P
+ * is precomputed once, so that each scalar multiplication kP only requires
+ * about bits / width doublings and additions rather than the generic scalar
+ * multiplication performed by the ECKeyPairGenerator and ECDH agreement. The
+ * comb for G is created once for each set of domain parameters and shared.
+ * 
+ * The comb splits the scalar into width rows of d = ceil(bits / width) bits,
+ * the table contains the sum of 2^(j * d) P for each combination of rows j, 
+ * the scalar is then processed one column at a time from the most significant
+ * column using a single doubling and a single addition per column.
+ * 
+ * @see Lim, C. H., Lee, P. J. More Flexible Exponentiation with Precomputation,
+ * CRYPTO '94
+ */
+public class ECCombMultiplier
+{
+	/* The precomputed combs, shared by all domain parameters with the same G */
+	private static final HashMap<ECPoint, ECCombMultiplier> combs = 
+	        new HashMap<ECPoint, ECCombMultiplier>();
+	
+	private final ECPoint P;
+	private final BigInteger n;
+	private final int width;
+	private final int d;
+	private final ECPoint[] table;
+	
+	/**
+	 * Creates the comb for the point provided, the precomputation requires
+	 * about bits doublings and 2^width additions, roughly the cost of a single
+	 * generic scalar multiplication.
+	 * 
+	 * @param P The fixed point to precompute the multiples of
+	 * @param n The order of the point
+	 */
+	public ECCombMultiplier(ECPoint P, BigInteger n)
+	{
+	    ECCurve curve = P.getCurve();
+	    
+	    this.P = P.normalize();
+	    this.n = n;
+	    this.width = (n.bitLength() > 257) ? 6 : 5;
+	    this.d = (n.bitLength() + width - 1) / width;
+	    this.table = new ECPoint[1 << width];
+	    
+	    /* The rows 2^(j * d) P, for j = 0 ... width - 1 */
+	    ECPoint[] rows = new ECPoint[width];
+	    rows[0] = this.P;
+	    
+	    for (int j = 1; j < width; ++j)
+	    {
+	        rows[j] = rows[j - 1].timesPow2(d);
+	    }
+	    
+	    curve.normalizeAll(rows);
+	    
+	    /* Each entry is the sum of the rows selected by the bits of the index */
+	    table[0] = curve.getInfinity();
+	    
+	    for (int j = 0; j < width; ++j)
+	    {
+	        int bit = 1 << j;
+	        table[bit] = rows[j];
+	        
+	        for (int i = 1; i < bit; ++i)
+	        {
+	            table[bit + i] = table[i].add(rows[j]);
+	        }
+	    }
+	    
+	    /* Normalize the table so that each addition is a mixed addition */
+	    ECPoint[] points = new ECPoint[table.length - 1];
+	    System.arraycopy(table, 1, points, 0, points.length);
+	    curve.normalizeAll(points);
+	    System.arraycopy(points, 0, table, 1, points.length);
+	}
+	
+	/**
+	 * Returns the comb for the generator of the domain parameters, the comb is
+	 * created the first time it is requested and shared afterwards.
+	 * 
+	 * @param param ECDomainParameters containing the generator and its order
+	 * 
+	 * @return The comb for the generator G
+	 */
+	public static ECCombMultiplier getInstance(ECDomainParameters param)
+	{
+	    synchronized (combs)
+	    {
+	        ECCombMultiplier comb = combs.get(param.getG());
+	        
+	        if (comb == null)
+	        {
+	            comb = new ECCombMultiplier(param.getG(), param.getN());
+	            combs.put(param.getG(), comb);
+	        }
+	        
+	        return comb;
+	    }
+	}
+	
+	/**
+	 * Calculates the scalar multiplication kP using the precomputed comb
+	 * 
+	 * @param k The scalar to multiply the point by
+	 * 
+	 * @return The normalized point kP
+	 */
+	public ECPoint multiply(BigInteger k)
+	{
+	    if (k.signum() < 0 || k.bitLength() > width * d)
+	    {
+	        k = k.mod(n);
+	    }
+	    
+	    ECPoint R = P.getCurve().getInfinity();
+	    
+	    for (int col = d - 1; col >= 0; --col)
+	    {
+	        int index = 0;
+	        
+	        for (int j = width - 1; j >= 0; --j)
+	        {
+	            index = (index << 1) | (k.testBit(j * d + col) ? 1 : 0);
+	        }
+	        
+	        R = R.twice().add(table[index]);
+	    }
+	    
+	    return R.normalize();
+	}
+	
+	/**
+	 * @return The point P the comb was built for
+	 */
+	public ECPoint getPoint()
+	{
+	    return P;
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.strippedcastle.crypto.BasicAgreement;
+import org.strippedcastle.crypto.CipherParameters;
+import org.strippedcastle.crypto.params.ECDomainParameters;
+import org.strippedcastle.crypto.params.ECPrivateKeyParameters;
+import org.strippedcastle.crypto.params.ECPublicKeyParameters;
+import org.strippedcastle.math.ec.ECPoint;
+
+import com.orwell.params.X25519PrivateKeyParameters;
+import com.orwell.params.X25519PublicKeyParameters;
+
+/**
+ * The ECDH with cofactor agreement, identical to the ECDHCBasicAgreement 
+ * except that the scalar multiplication of the peer's public key can use the
+ * combs precomputed by an ECPeerCache for peers that are agreed with often.
+ * Without a cache the agreement is calculated the same way as the
+ * ECDHCBasicAgreement.
+ * 
+ * The agreement also supports X25519 keys, see X25519Key, in which case the
+ * agreement is the X25519 function of the private key and the peer's public 
+ * key, as an unsigned integer of the 32 bytes of the agreement.
+ */
+public class ECDHCAgreement implements BasicAgreement
+{
+	private ECPrivateKeyParameters key;
+	private X25519PrivateKeyParameters x25519Key;
+	private ECPeerCache cache;
+	
+	/**
+	 * The default constructor, creates the agreement without a peer cache
+	 */
+	public ECDHCAgreement()
+	{
+	    this(null);
+	}
+	
+	/**
+	 * Creates the agreement using the peer cache provided
+	 * 
+	 * @param cache The cache of the peers' precomputed combs, can be null
+	 */
+	public ECDHCAgreement(ECPeerCache cache)
+	{
+	    this.cache = cache;
+	}
+	
+	/**
+	 * @param cache The cache of the peers' precomputed combs, null to disable
+	 */
+	public void setPeerCache(ECPeerCache cache)
+	{
+	    this.cache = cache;
+	}
+	
+	/**
+	 * @return The cache of the peers' precomputed combs, null if disabled
+	 */
+	public ECPeerCache getPeerCache()
+	{
+	    return cache;
+	}
+	
+	public void init(CipherParameters key)
+	{
+	    if (key instanceof X25519PrivateKeyParameters)
+	    {
+	        this.key = null;
+	        this.x25519Key = (X25519PrivateKeyParameters) key;
+	    }
+	    else
+	    {
+	        this.key = (ECPrivateKeyParameters) key;
+	        this.x25519Key = null;
+	    }
+	}
+	
+	public int getFieldSize()
+	{
+	    if (x25519Key != null)
+	    {
+	        return X25519.KEY_SIZE;
+	    }
+	    
+	    return (key.getParameters().getCurve().getFieldSize() + 7) / 8;
+	}
+	
+	public BigInteger calculateAgreement(CipherParameters pubKey)
+	{
+	    if (x25519Key != null)
+	    {
+	        return calculateX25519Agreement(pubKey);
+	    }
+	    
+	    ECPublicKeyParameters pub = (ECPublicKeyParameters) pubKey;
+	    ECDomainParameters param = pub.getParameters();
+	    BigInteger hd = param.getH().multiply(key.getD()).mod(param.getN());
+	    ECPoint P;
+	    
+	    if (cache != null)
+	    {
+	        P = cache.multiply(pub.getQ(), param.getN(), hd);
+	    }
+	    else
+	    {
+	        P = pub.getQ().multiply(hd).normalize();
+	    }
+	    
+	    if (P.isInfinity())
+	    {
+	        throw new IllegalStateException("Infinity is not a valid agreement value for ECDHC");
+	    }
+	    
+	    return P.getAffineXCoord().toBigInteger();
+	}
+	
+	/**
+	 * Calculates the X25519 agreement, the bytes of the agreement are kept
+	 * in order by treating them as a big-endian unsigned integer, so that
+	 * the IESEngine recovers the same 32 bytes.
+	 */
+	private BigInteger calculateX25519Agreement(CipherParameters pubKey)
+	{
+	    if (!(pubKey instanceof X25519PublicKeyParameters))
+	    {
+	        throw new IllegalArgumentException("The public key must be an X25519 key for an X25519 private key");
+	    }
+	    
+	    byte[] k = x25519Key.getEncoded();
+	    byte[] u = ((X25519PublicKeyParameters) pubKey).getEncoded();
+	    byte[] Z = new byte[X25519.KEY_SIZE];
+	    
+	    try
+	    {
+	        X25519.calculateAgreement(k, 0, u, 0, Z, 0);
+	        return new BigInteger(1, Z);
+	    }
+	    finally
+	    {
+	        Arrays.fill(k, (byte) 0);
+	        Arrays.fill(Z, (byte) 0);
+	    }
+	}
+}
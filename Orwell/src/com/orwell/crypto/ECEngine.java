@@ -18,26 +18,58 @@
  */
 package com.orwell.crypto;
 
+import java.util.Arrays;
+
 import org.strippedcastle.crypto.BufferedBlockCipher;
 import org.strippedcastle.crypto.CipherParameters;
+import org.strippedcastle.crypto.DataLengthException;
+import org.strippedcastle.crypto.DerivationFunction;
 import org.strippedcastle.crypto.Digest;
 import org.strippedcastle.crypto.InvalidCipherTextException;
-import org.strippedcastle.crypto.agreement.ECDHCBasicAgreement;
+import org.strippedcastle.crypto.Mac;
 import org.strippedcastle.crypto.digests.SHA256Digest;
 import org.strippedcastle.crypto.engines.AESEngine;
 import org.strippedcastle.crypto.engines.IESEngine;
 import org.strippedcastle.crypto.generators.KDF2BytesGenerator;
 import org.strippedcastle.crypto.macs.HMac;
+import org.strippedcastle.crypto.modes.AEADBlockCipher;
 import org.strippedcastle.crypto.modes.SICBlockCipher;
+import org.strippedcastle.crypto.params.AEADParameters;
+import org.strippedcastle.crypto.params.ECPrivateKeyParameters;
+import org.strippedcastle.crypto.params.ECPublicKeyParameters;
 import org.strippedcastle.crypto.params.IESParameters;
 import org.strippedcastle.crypto.params.IESWithCipherParameters;
+import org.strippedcastle.crypto.params.KDFParameters;
+import org.strippedcastle.crypto.params.KeyParameter;
+import org.strippedcastle.crypto.params.ParametersWithIV;
 import org.strippedcastle.crypto.prng.RandomGenerator;
+import org.strippedcastle.util.BigIntegers;
+
+import com.orwell.params.X25519PrivateKeyParameters;
+import com.orwell.params.X25519PublicKeyParameters;
 
 /**
  * A wrapper class that simplifies the creation of the IESEngine and all of
  * the parameters needed for using the IESEngine such as the block cipher mode,
  * block cipher engine, ECDH key exchange protocol, key derivative function (KDF),
  * and HMAC.
+ * 
+ * The engine can also be used in session mode (see initSession()), where the
+ * ECDH agreement and key derivation are performed once for a key pair and the
+ * derived cipher and MAC keys are cached, so that each message only requires
+ * the symmetric encryption and HMAC. The messages produced in session mode are
+ * identical to those produced by the IESEngine. While the session keys are
+ * unchanged the cipher's expanded key and the HMAC's precomputed pads are 
+ * reused rather than being set up again for each message.
+ * 
+ * Alternatively the engine can use an AEAD cipher such as AES-GCM, which
+ * encrypts and authenticates the message in a single pass rather than 
+ * encrypting it and then calculating the HMAC. The messages are the ciphertext
+ * followed by the authentication tag, S2 is authenticated as associated data.
+ * These messages are not compatible with those produced by the IESEngine.
+ * 
+ * The keys can be either Elliptic Curve keys (see ECKey) or X25519 keys (see
+ * X25519Key), the ECDHCAgreement performs the agreement for either.
  */
 public class ECEngine
 {
@@ -48,9 +80,38 @@ public class ECEngine
 	 */
 	private static final int BLOCKSIZE = 128;
 	private static final int CIPHERKEYSIZE = 256;
+	
+	/* The size of the IV and the authentication tag for AEAD ciphers, a 96-bit 
+	 * IV is the most efficient for GCM
+	 */
+	private static final int AEADIVSIZE = 12;
+	private static final int AEADTAGSIZE = 128;
 	private IESEngine engine;
 	private BufferedBlockCipher cipher;
+	private AEADBlockCipher aeadCipher;
 	private IESParameters param;
+	private ECDHCAgreement agree;
+	private DerivationFunction kdf;
+	private Mac mac;
+	private RandomGenerator nonce;
+	
+	/* Session mode state, the keys derived for the session key pair are cached */
+	private boolean session;
+	private boolean forEncrypt;
+	private CipherParameters priKey;
+	private CipherParameters pubKey;
+	private CipherParameters sessionPriKey;
+	private CipherParameters sessionPubKey;
+	private byte[] cipherKey;
+	private byte[] macKey;
+	private byte[] macBuf;
+	
+	/* The keys the cipher and MAC are currently initialized with, while the
+	 * keys are unchanged the expanded cipher key and HMAC pads are reused
+	 */
+	private byte[] keyedCipherKey;
+	private boolean keyedForEncryption;
+	private byte[] keyedMacKey;
 
 	/**
 	 * The default constructor, creates an instance of the ECEngine using the
@@ -63,7 +124,7 @@ public class ECEngine
      * 
 	 * ECEngine is created using the following default parameters:
 	 *  - SIC/CTR block cipher mode using AESEngine with 128-bit block size
-	 *  - ECDHCBasicAgreement key agreement
+	 *  - ECDHCAgreement key agreement (ECDH with cofactor)
 	 *  - KDF2BytesGenerator Key derivative function
 	 *  - SHA256 Digest/HMAC
 	 * 
@@ -74,13 +135,13 @@ public class ECEngine
 	public ECEngine(RandomGenerator nonce, APrioriInfo sharedInfo)
 	{	    
 	    this.cipher = new BufferedBlockCipher(new SICBlockCipher(new AESEngine()));
+	    this.agree = new ECDHCAgreement();
+	    this.kdf = new KDF2BytesGenerator(new SHA256Digest());
+	    this.mac = new HMac(new SHA256Digest());
+	    this.nonce = nonce;
 	    
 		/* Instantiate the IESEngine using the default parameters */
-		this.engine = new IESEngine(new ECDHCBasicAgreement(),
-									new KDF2BytesGenerator(new SHA256Digest()),
-									new HMac(new SHA256Digest()),
-									this.cipher,
-									nonce);
+		this.engine = new IESEngine(agree, kdf, mac, this.cipher, nonce);
 		
 		this.param = new IESWithCipherParameters(sharedInfo.getS1(), 
 												 sharedInfo.getS2(), 
@@ -104,13 +165,13 @@ public class ECEngine
     public ECEngine(BufferedBlockCipher cipher, RandomGenerator nonce, APrioriInfo sharedInfo)
     {
         this.cipher = cipher;
+        this.agree = new ECDHCAgreement();
+        this.kdf = new KDF2BytesGenerator(new SHA256Digest());
+        this.mac = new HMac(new SHA256Digest());
+        this.nonce = nonce;
         
         /* Instantiate the IESEngine using the default parameters */
-        this.engine = new IESEngine(new ECDHCBasicAgreement(),
-                                    new KDF2BytesGenerator(new SHA256Digest()),
-                                    new HMac(new SHA256Digest()),
-                                    this.cipher,
-                                    nonce);
+        this.engine = new IESEngine(agree, kdf, mac, this.cipher, nonce);
         
         this.param = new IESWithCipherParameters(sharedInfo.getS1(), 
                                                  sharedInfo.getS2(), 
@@ -130,13 +191,13 @@ public class ECEngine
 	public ECEngine(BufferedBlockCipher cipher, RandomGenerator nonce, Digest digest, APrioriInfo sharedInfo)
 	{
 		this.cipher = cipher;
+		this.agree = new ECDHCAgreement();
+		this.kdf = new KDF2BytesGenerator(digest);
+		this.mac = new HMac(digest);
+		this.nonce = nonce;
 		
 		/* Instantiate the IESEngine using the digest provided */
-		this.engine = new IESEngine(new ECDHCBasicAgreement(),
-									new KDF2BytesGenerator(digest),
-									new HMac(digest),
-									this.cipher,
-									nonce);
+		this.engine = new IESEngine(agree, kdf, mac, this.cipher, nonce);
 		
 		this.param = new IESWithCipherParameters(sharedInfo.getS1(), 
 												 sharedInfo.getS2(), 
@@ -144,6 +205,43 @@ public class ECEngine
 												 CIPHERKEYSIZE);		
 	}
 	
+	/**
+	 * Constructor, specify an AEAD cipher such as GCM which encrypts and
+	 * authenticates each message in a single pass, the key is derived using
+	 * the KDF2BytesGenerator with SHA256 as for the default parameters.
+	 * 
+	 * For example, to use AES-GCM: 
+	 *     new ECEngine(new GCMBlockCipher(new AESEngine()), nonce, sharedInfo)
+	 * 
+	 * @note Reusing an IV with GCM reveals the authentication key as well as 
+	 * the plaintext, ensure that the nonce is unique and generated by a CSPRNG.
+	 * 
+	 * @param aeadCipher The AEAD cipher to use such as GCM
+	 * @param nonce the cryptographic nonce which is used to generate IVs
+	 * @param sharedInfo the shared information exchanged by users a priori
+	 * 
+	 * @throws IllegalArgumentException if the nonce is null
+	 */
+	public ECEngine(AEADBlockCipher aeadCipher, RandomGenerator nonce, APrioriInfo sharedInfo)
+	        throws IllegalArgumentException
+	{
+	    if (nonce == null)
+	    {
+	        throw new IllegalArgumentException("AEAD ciphers require a nonce to generate a unique IV for each message!");
+	    }
+	    
+	    this.aeadCipher = aeadCipher;
+	    this.agree = new ECDHCAgreement();
+	    this.kdf = new KDF2BytesGenerator(new SHA256Digest());
+	    this.nonce = nonce;
+	    
+	    /* Only the cipher key is derived, the AEAD cipher does not need a MAC key */
+	    this.param = new IESWithCipherParameters(sharedInfo.getS1(), 
+	                                             sharedInfo.getS2(), 
+	                                             0, 
+	                                             CIPHERKEYSIZE);
+	}
+	
 	/**
 	 * A wrapper for IESEngine, initializes the elliptic curve encryption engine
 	 * in either encryption or decryption mode.
@@ -154,7 +252,94 @@ public class ECEngine
 	 */
 	public void init(boolean forEncrypt, CipherParameters priKey, CipherParameters pubKey)
 	{
-		engine.init(forEncrypt, priKey, pubKey, param);
+		session = false;
+		this.forEncrypt = forEncrypt;
+		this.priKey = priKey;
+		this.pubKey = pubKey;
+		
+		/* AEAD ciphers derive the keys for each message in processBlock() */
+		if (engine != null)
+		{
+		    engine.init(forEncrypt, priKey, pubKey, param);
+		}
+	}
+	
+	/**
+	 * Initializes the engine in session mode in either encryption or decryption
+	 * mode. The ECDH agreement and key derivation are only performed if the
+	 * key pair differs from the key pair of the current session, otherwise the
+	 * cached cipher and MAC keys are reused and each message only requires
+	 * the symmetric encryption and HMAC.
+	 * 
+	 * @note Each message is still encrypted using a unique IV generated by the
+	 * nonce, session mode therefore requires the engine to have a nonce.
+	 * 
+	 * @param forEncrypt Engine mode, true for encryption, false for decryption
+	 * @param priKey Your private key parameters
+	 * @param pubKey The recipient's public key parameters
+	 * 
+	 * @throws IllegalStateException if the engine was created without a nonce
+	 */
+	public void initSession(boolean forEncrypt, CipherParameters priKey, CipherParameters pubKey)
+	        throws IllegalStateException
+	{
+	    if (nonce == null)
+	    {
+	        throw new IllegalStateException("Session mode requires a nonce to generate a unique IV for each message!");
+	    }
+	    
+	    if (cipherKey == null || !sameKey(priKey, sessionPriKey) || !sameKey(pubKey, sessionPubKey))
+	    {
+	        clearKeys();
+	        deriveKeys(priKey, pubKey);
+	        sessionPriKey = priKey;
+	        sessionPubKey = pubKey;
+	    }
+	    
+	    this.forEncrypt = forEncrypt;
+	    this.priKey = priKey;
+	    this.pubKey = pubKey;
+	    this.session = true;
+	}
+	
+	/**
+	 * Enables the opt-in cache of the combs precomputed for the peers' public
+	 * keys, repeated agreements with the same peer then only require the comb
+	 * multiplication. The cache can be shared by multiple engines.
+	 * 
+	 * @param cache The cache of the peers' precomputed combs, null to disable
+	 */
+	public void setPeerCache(ECPeerCache cache)
+	{
+	    agree.setPeerCache(cache);
+	}
+	
+	/**
+	 * Ends session mode and erases the cached cipher and MAC keys, the engine
+	 * must be initialized again before processing any further messages.
+	 */
+	public void clearSession()
+	{
+	    clearKeys();
+	    session = false;
+	    priKey = null;
+	    pubKey = null;
+	}
+	
+	/**
+	 * @return True if the engine uses an AEAD cipher
+	 */
+	public boolean isAEAD()
+	{
+	    return aeadCipher != null;
+	}
+	
+	/**
+	 * @return True if the engine is initialized in session mode
+	 */
+	public boolean isSession()
+	{
+	    return session;
 	}
 	
 	/**
@@ -171,7 +356,7 @@ public class ECEngine
 	public byte[] processBlock(byte[] in) 
 	        throws InvalidCipherTextException
 	{
-		return engine.processBlock(in, 0, in.length);
+		return processBlock(in, 0, in.length);
 	}
 	
 	/**
@@ -186,10 +371,606 @@ public class ECEngine
 	 * 
 	 * @throws InvalidCipherTextException if the encryption/decryption fails or if 
 	 * the HMAC is invalid (possible data corruption or tampering) 
+	 * @throws IllegalStateException if the engine has not been initialized
 	 */
 	public byte[] processBlock(byte[] in, int inOff, int inLen) 
+	        throws InvalidCipherTextException, IllegalStateException
+	{
+	    checkInit();
+	    
+	    if (session)
+	    {
+	        return forEncrypt ? encryptBlock(in, inOff, inLen) : decryptBlock(in, inOff, inLen);
+	    }
+	    else if (aeadCipher != null)
+	    {
+	        clearKeys();
+	        deriveKeys(priKey, pubKey);
+	        
+	        return forEncrypt ? encryptBlock(in, inOff, inLen) : decryptBlock(in, inOff, inLen);
+	    }
+	    
+	    /* The IESEngine initializes the cipher and MAC with its own keys */
+	    keyedCipherKey = null;
+	    keyedMacKey = null;
+	    
+		return engine.processBlock(in, inOff, inLen);
+	}
+	
+	/**
+	 * Encrypts or decrypts the input received and writes the result to the
+	 * output buffer provided, which allows the caller to reuse its buffers
+	 * rather than having a new array allocated for each message. Use
+	 * getOutputSize() to determine the size of the output buffer required.
+	 * 
+	 * The output is identical to that of processBlock(in, inOff, inLen). 
+	 * Outside of session mode the ECDH agreement and key derivation are still
+	 * performed for each message.
+	 * 
+	 * @param in The input to encrypt or decrypt
+	 * @param inOff The offset in the input to encrypt/decrypt
+	 * @param inLen The length of the input to encyrpt/decrypt
+	 * @param out The output buffer for the encrypted/decrypted data
+	 * @param outOff The offset in the output buffer to write to
+	 * 
+	 * @return The number of bytes written to the output buffer
+	 * 
+	 * @throws InvalidCipherTextException if the encryption/decryption fails or if 
+	 * the HMAC is invalid (possible data corruption or tampering) 
+	 * @throws DataLengthException if the output buffer is too small
+	 * @throws IllegalStateException if the engine has not been initialized
+	 */
+	public int processBlock(byte[] in, int inOff, int inLen, byte[] out, int outOff)
+	        throws InvalidCipherTextException, DataLengthException, IllegalStateException
+	{
+	    checkInit();
+	    
+	    if (out.length - outOff < getOutputSize(inLen))
+	    {
+	        throw new DataLengthException("Output buffer too small for the encrypted/decrypted data!");
+	    }
+	    
+	    /* Derive the keys for this message, as the IESEngine does */
+	    if (!session)
+	    {
+	        clearKeys();
+	        deriveKeys(priKey, pubKey);
+	    }
+	    
+	    return forEncrypt ? encryptBlock(in, inOff, inLen, out, outOff) 
+	                      : decryptBlock(in, inOff, inLen, out, outOff);
+	}
+	
+	/**
+	 * Returns the size of the output buffer required to encrypt or decrypt
+	 * an input of the length specified, depending on the mode the engine
+	 * was initialized with. For decryption this is an upper bound if the
+	 * cipher uses padding.
+	 * 
+	 * @param inLen The length of the input to encrypt/decrypt
+	 * 
+	 * @return The size of the output buffer required
+	 */
+	public int getOutputSize(int inLen)
+	{
+	    if (aeadCipher != null)
+	    {
+	        return forEncrypt ? inLen + AEADTAGSIZE / 8 : Math.max(0, inLen - AEADTAGSIZE / 8);
+	    }
+	    else if (forEncrypt)
+	    {
+	        return cipher.getOutputSize(inLen) + mac.getMacSize();
+	    }
+	    
+	    return cipher.getOutputSize(Math.max(0, inLen - mac.getMacSize()));
+	}
+	
+	/**
+	 * Throws an IllegalStateException if neither init() nor initSession() has
+	 * been called since the engine was created or its session was cleared
+	 */
+	private void checkInit() throws IllegalStateException
+	{
+	    if (priKey == null || pubKey == null)
+	    {
+	        throw new IllegalStateException("The engine must be initialized with init() or initSession() before processing messages!");
+	    }
+	}
+	
+	/**
+	 * Erases the cached cipher and MAC keys
+	 */
+	private void clearKeys()
+	{
+	    if (cipherKey != null)
+	    {
+	        Arrays.fill(cipherKey, (byte) 0);
+	        Arrays.fill(macKey, (byte) 0);
+	    }
+	    
+	    cipherKey = null;
+	    macKey = null;
+	    keyedCipherKey = null;
+	    keyedMacKey = null;
+	    sessionPriKey = null;
+	    sessionPubKey = null;
+	}
+	
+	/**
+	 * Performs the ECDH agreement and derives the cipher and MAC keys from the
+	 * shared secret and the shared information S1, exactly as the IESEngine does.
+	 */
+	private void deriveKeys(CipherParameters priKey, CipherParameters pubKey)
+	{
+	    agree.init(priKey);
+	    byte[] Z = BigIntegers.asUnsignedByteArray(agree.getFieldSize(), 
+	                                               agree.calculateAgreement(pubKey));
+	    
+	    byte[] K = new byte[((IESWithCipherParameters) param).getCipherKeySize() / 8 
+	                        + param.getMacKeySize() / 8];
+	    kdf.init(new KDFParameters(Z, param.getDerivationV()));
+	    kdf.generateBytes(K, 0, K.length);
+	    
+	    cipherKey = Arrays.copyOfRange(K, 0, K.length - param.getMacKeySize() / 8);
+	    macKey = Arrays.copyOfRange(K, cipherKey.length, K.length);
+	    
+	    Arrays.fill(Z, (byte) 0);
+	    Arrays.fill(K, (byte) 0);
+	}
+	
+	/**
+	 * Encrypts the message using the cached session keys, the output is the
+	 * ciphertext followed by the HMAC of the ciphertext and S2.
+	 */
+	private byte[] encryptBlock(byte[] in, int inOff, int inLen)
+	        throws InvalidCipherTextException
+	{
+	    byte[] out = new byte[getOutputSize(inLen)];
+	    int len = encryptBlock(in, inOff, inLen, out, 0);
+	    
+	    return (len == out.length) ? out : Arrays.copyOf(out, len);
+	}
+	
+	private int encryptBlock(byte[] in, int inOff, int inLen, byte[] out, int outOff)
+	        throws InvalidCipherTextException
+	{
+	    if (aeadCipher != null)
+	    {
+	        byte[] S2 = param.getEncodingV();
+	        initAEADCipher(true, nextAEADIV());
+	        
+	        if (S2 != null)
+	        {
+	            aeadCipher.processAADBytes(S2, 0, S2.length);
+	        }
+	        
+	        int len = aeadCipher.processBytes(in, inOff, inLen, out, outOff);
+	        return len + aeadCipher.doFinal(out, outOff + len);
+	    }
+	    
+	    initCipher(true);
+	    
+	    int len = cipher.processBytes(in, inOff, inLen, out, outOff);
+	    len += cipher.doFinal(out, outOff + len);
+	    calculateMac(out, outOff, len, out, outOff + len);
+	    
+	    return len + mac.getMacSize();
+	}
+	
+	/**
+	 * Verifies the HMAC of the message using the cached session keys and
+	 * decrypts it.
+	 */
+	private byte[] decryptBlock(byte[] in, int inOff, int inLen)
+	        throws InvalidCipherTextException
+	{
+	    byte[] M = new byte[getOutputSize(inLen)];
+	    int len = decryptBlock(in, inOff, inLen, M, 0);
+	    
+	    return (len == M.length) ? M : Arrays.copyOf(M, len);
+	}
+	
+	private int decryptBlock(byte[] in, int inOff, int inLen, byte[] out, int outOff)
+	        throws InvalidCipherTextException
+	{
+	    if (aeadCipher != null)
+	    {
+	        if (inLen < AEADTAGSIZE / 8)
+	        {
+	            throw new InvalidCipherTextException("Length of input must be at least the authentication tag");
+	        }
+	        
+	        byte[] S2 = param.getEncodingV();
+	        initAEADCipher(false, nextAEADIV());
+	        
+	        if (S2 != null)
+	        {
+	            aeadCipher.processAADBytes(S2, 0, S2.length);
+	        }
+	        
+	        return decryptAEAD(in, inOff, inLen, out, outOff);
+	    }
+	    
+	    int macSize = mac.getMacSize();
+	    
+	    if (inLen <= macSize)
+	    {
+	        throw new InvalidCipherTextException("Length of input must be greater than the MAC");
+	    }
+	    
+	    /* The IV is generated before verifying the MAC to keep the nonce in step */
+	    initCipher(false);
+	    
+	    if (macBuf == null || macBuf.length != macSize)
+	    {
+	        macBuf = new byte[macSize];
+	    }
+	    
+	    calculateMac(in, inOff, inLen - macSize, macBuf, 0);
+	    
+	    /* Constant time comparison of the MAC */
+	    int diff = 0;
+	    
+	    for (int i = 0; i < macSize; ++i)
+	    {
+	        diff |= macBuf[i] ^ in[inOff + inLen - macSize + i];
+	    }
+	    
+	    if (diff != 0)
+	    {
+	        throw new InvalidCipherTextException("Invalid MAC.");
+	    }
+	    
+	    int len = cipher.processBytes(in, inOff, inLen - macSize, out, outOff);
+	    len += cipher.doFinal(out, outOff + len);
+	    
+	    return len;
+	}
+	
+	/**
+	 * Initializes the cipher with the session cipher key and the next IV from
+	 * the nonce.
+	 */
+	private void initCipher(boolean forEncryption)
+	{
+	    if (nonce == null)
+	    {
+	        cipher.init(forEncryption, new KeyParameter(cipherKey));
+	        keyedCipherKey = cipherKey;
+	        keyedForEncryption = forEncryption;
+	        return;
+	    }
+	    
+	    byte[] IV = new byte[cipherKey.length];
+	    nonce.nextBytes(IV);
+	    initCipher(forEncryption, IV);
+	}
+	
+	/**
+	 * Initializes the cipher with the IV, the cipher key is only given to the
+	 * cipher if it has changed, otherwise only the IV is changed and the 
+	 * expanded cipher key is reused. The cipher must have been initialized
+	 * in the same direction, as modes such as CBC use a different key 
+	 * schedule to decrypt.
+	 */
+	private void initCipher(boolean forEncryption, byte[] IV)
+	{
+	    if (keyedCipherKey == cipherKey && keyedForEncryption == forEncryption)
+	    {
+	        cipher.init(forEncryption, new ParametersWithIV(null, IV));
+	        return;
+	    }
+	    
+	    cipher.init(forEncryption, new ParametersWithIV(new KeyParameter(cipherKey), IV));
+	    keyedCipherKey = cipherKey;
+	    keyedForEncryption = forEncryption;
+	}
+	
+	/**
+	 * Generates the next IV for the AEAD cipher from the nonce
+	 */
+	private byte[] nextAEADIV()
+	{
+	    byte[] IV = new byte[AEADIVSIZE];
+	    nonce.nextBytes(IV);
+	    
+	    return IV;
+	}
+	
+	/**
+	 * Initializes the AEAD cipher with the cipher key and the IV, the 
+	 * associated data is then processed by the caller.
+	 */
+	private void initAEADCipher(boolean forEncryption, byte[] IV)
+	{
+	    /* Reuse the expanded cipher key and GCM multiplier tables if unchanged */
+	    if (keyedCipherKey == cipherKey && keyedForEncryption == forEncryption)
+	    {
+	        aeadCipher.init(forEncryption, new AEADParameters(null, AEADTAGSIZE, IV));
+	        return;
+	    }
+	    
+	    aeadCipher.init(forEncryption, new AEADParameters(new KeyParameter(cipherKey), AEADTAGSIZE, IV));
+	    keyedCipherKey = cipherKey;
+	    keyedForEncryption = forEncryption;
+	}
+	
+	/**
+	 * Decrypts the ciphertext and verifies the authentication tag using the
+	 * initialized AEAD cipher. The AEAD cipher writes the plaintext, including
+	 * the final partial block written by doFinal(), before the tag is 
+	 * verified, so the whole output is erased if the tag is invalid.
+	 */
+	private int decryptAEAD(byte[] in, int inOff, int inLen, byte[] out, int outOff)
 	        throws InvalidCipherTextException
 	{
-		return engine.processBlock(in, inOff, in.length);
+	    int end = Math.min(out.length, outOff + Math.max(0, inLen - AEADTAGSIZE / 8));
+	    
+	    try
+	    {
+	        int len = aeadCipher.processBytes(in, inOff, inLen, out, outOff);
+	        return len + aeadCipher.doFinal(out, outOff + len);
+	    }
+	    catch (InvalidCipherTextException e)
+	    {
+	        Arrays.fill(out, outOff, Math.max(outOff, end), (byte) 0);
+	        throw e;
+	    }
+	}
+	
+	/**
+	 * Starts a chunked stream, see ECCipherOutputStream and ECCipherInputStream.
+	 * The keys are derived unless the engine is in session mode and the base
+	 * IV of the stream is generated by the nonce, the same as a message.
+	 * 
+	 * @return The base IV of the stream
+	 * 
+	 * @throws IllegalStateException if the engine was created without a nonce
+	 */
+	byte[] initStream() throws IllegalStateException
+	{
+	    if (nonce == null)
+	    {
+	        throw new IllegalStateException("Streams require a nonce to generate a unique IV for each stream!");
+	    }
+	    
+	    if (!session)
+	    {
+	        clearKeys();
+	        deriveKeys(priKey, pubKey);
+	    }
+	    
+	    if (aeadCipher != null)
+	    {
+	        return nextAEADIV();
+	    }
+	    
+	    byte[] IV = new byte[cipher.getBlockSize()];
+	    nonce.nextBytes(IV);
+	    
+	    return IV;
+	}
+	
+	/**
+	 * @return True if the engine was initialized for encryption
+	 */
+	boolean isForEncryption()
+	{
+	    return forEncrypt;
+	}
+	
+	/**
+	 * @return The size of the HMAC or authentication tag of each message or chunk
+	 */
+	int getMacSize()
+	{
+	    if (aeadCipher != null)
+	    {
+	        return AEADTAGSIZE / 8;
+	    }
+	    
+	    return mac.getMacSize();
+	}
+	
+	/**
+	 * Encrypts or decrypts a chunk of a stream started by initStream(). Each
+	 * chunk is encrypted using the base IV of the stream with the index of the
+	 * chunk XORed into the first 8 bytes, the HMAC of the chunk includes the
+	 * base IV, the index and whether it is the last chunk so that chunks cannot
+	 * be reordered, dropped, spliced from another stream or the stream 
+	 * truncated. AEAD ciphers authenticate the index and last chunk flag as
+	 * associated data instead, the base IV is bound by the IV of the chunk.
+	 * 
+	 * @return The number of bytes written to the output buffer
+	 * 
+	 * @throws InvalidCipherTextException if the HMAC of the chunk is invalid
+	 */
+	int processChunk(byte[] baseIV, long index, boolean last, 
+	                 byte[] in, int inOff, int inLen, byte[] out, int outOff)
+	        throws InvalidCipherTextException
+	{
+	    byte[] IV = baseIV.clone();
+	    
+	    for (int i = 0; i < 8; ++i)
+	    {
+	        IV[i] ^= (byte) (index >>> (56 - 8 * i));
+	    }
+	    
+	    if (aeadCipher != null)
+	    {
+	        return processAEADChunk(IV, index, last, in, inOff, inLen, out, outOff);
+	    }
+	    
+	    int macSize = mac.getMacSize();
+	    initCipher(forEncrypt, IV);
+	    
+	    if (forEncrypt)
+	    {
+	        int len = cipher.processBytes(in, inOff, inLen, out, outOff);
+	        len += cipher.doFinal(out, outOff + len);
+	        calculateChunkMac(baseIV, index, last, out, outOff, len, out, outOff + len);
+	        
+	        return len + macSize;
+	    }
+	    
+	    if (inLen < macSize)
+	    {
+	        throw new InvalidCipherTextException("Length of chunk must be at least the MAC");
+	    }
+	    
+	    if (macBuf == null || macBuf.length != macSize)
+	    {
+	        macBuf = new byte[macSize];
+	    }
+	    
+	    calculateChunkMac(baseIV, index, last, in, inOff, inLen - macSize, macBuf, 0);
+	    
+	    int diff = 0;
+	    
+	    for (int i = 0; i < macSize; ++i)
+	    {
+	        diff |= macBuf[i] ^ in[inOff + inLen - macSize + i];
+	    }
+	    
+	    if (diff != 0)
+	    {
+	        throw new InvalidCipherTextException("Invalid MAC.");
+	    }
+	    
+	    int len = cipher.processBytes(in, inOff, inLen - macSize, out, outOff);
+	    len += cipher.doFinal(out, outOff + len);
+	    
+	    return len;
+	}
+	
+	/**
+	 * Encrypts or decrypts a chunk using the AEAD cipher, the chunk index, 
+	 * last chunk flag and S2 are the associated data
+	 */
+	private int processAEADChunk(byte[] IV, long index, boolean last, 
+	                             byte[] in, int inOff, int inLen, byte[] out, int outOff)
+	        throws InvalidCipherTextException
+	{
+	    byte[] S2 = param.getEncodingV();
+	    
+	    if (!forEncrypt && inLen < AEADTAGSIZE / 8)
+	    {
+	        throw new InvalidCipherTextException("Length of chunk must be at least the authentication tag");
+	    }
+	    
+	    initAEADCipher(forEncrypt, IV);
+	    
+	    for (int i = 56; i >= 0; i -= 8)
+	    {
+	        aeadCipher.processAADByte((byte) (index >>> i));
+	    }
+	    
+	    aeadCipher.processAADByte((byte) (last ? 1 : 0));
+	    
+	    if (S2 != null)
+	    {
+	        aeadCipher.processAADBytes(S2, 0, S2.length);
+	    }
+	    
+	    if (forEncrypt)
+	    {
+	        int len = aeadCipher.processBytes(in, inOff, inLen, out, outOff);
+	        return len + aeadCipher.doFinal(out, outOff + len);
+	    }
+	    
+	    return decryptAEAD(in, inOff, inLen, out, outOff);
+	}
+	
+	/**
+	 * Calculates the HMAC of the base IV of the stream, chunk index, last chunk
+	 * flag, ciphertext and the shared information S2
+	 */
+	private void calculateChunkMac(byte[] baseIV, long index, boolean last, byte[] C, int cOff, int cLen, 
+	                               byte[] out, int outOff)
+	{
+	    byte[] S2 = param.getEncodingV();
+	    
+	    initMac();
+	    mac.update(baseIV, 0, baseIV.length);
+	    
+	    for (int i = 56; i >= 0; i -= 8)
+	    {
+	        mac.update((byte) (index >>> i));
+	    }
+	    
+	    mac.update((byte) (last ? 1 : 0));
+	    mac.update(C, cOff, cLen);
+	    
+	    if (S2 != null)
+	    {
+	        mac.update(S2, 0, S2.length);
+	    }
+	    
+	    mac.doFinal(out, outOff);
+	}
+	
+	/**
+	 * Initializes the HMAC with the MAC key if it has changed, the HMAC is
+	 * reset to its keyed state after each doFinal() so the precomputed pads
+	 * are otherwise reused.
+	 */
+	private void initMac()
+	{
+	    if (keyedMacKey != macKey)
+	    {
+	        mac.init(new KeyParameter(macKey));
+	        keyedMacKey = macKey;
+	    }
+	}
+	
+	/**
+	 * Calculates the HMAC of the ciphertext and the shared information S2
+	 * using the session MAC key.
+	 */
+	private void calculateMac(byte[] C, int cOff, int cLen, byte[] out, int outOff)
+	{
+	    byte[] S2 = param.getEncodingV();
+	    
+	    initMac();
+	    mac.update(C, cOff, cLen);
+	    
+	    if (S2 != null)
+	    {
+	        mac.update(S2, 0, S2.length);
+	    }
+	    
+	    mac.doFinal(out, outOff);
+	}
+	
+	/**
+	 * Compares two EC keys by value, the key objects are usually not the same
+	 * instance when they are decoded again for each message.
+	 */
+	private static boolean sameKey(CipherParameters a, CipherParameters b)
+	{
+	    if (a == b)
+	    {
+	        return true;
+	    }
+	    else if (a instanceof ECPublicKeyParameters && b instanceof ECPublicKeyParameters)
+	    {
+	        return ((ECPublicKeyParameters) a).getQ().equals(((ECPublicKeyParameters) b).getQ());
+	    }
+	    else if (a instanceof ECPrivateKeyParameters && b instanceof ECPrivateKeyParameters)
+	    {
+	        return ((ECPrivateKeyParameters) a).getD().equals(((ECPrivateKeyParameters) b).getD());
+	    }
+	    else if (a instanceof X25519PublicKeyParameters && b instanceof X25519PublicKeyParameters)
+	    {
+	        return Arrays.equals(((X25519PublicKeyParameters) a).getEncoded(), 
+	                             ((X25519PublicKeyParameters) b).getEncoded());
+	    }
+	    else if (a instanceof X25519PrivateKeyParameters && b instanceof X25519PrivateKeyParameters)
+	    {
+	        return Arrays.equals(((X25519PrivateKeyParameters) a).getEncoded(), 
+	                             ((X25519PrivateKeyParameters) b).getEncoded());
+	    }
+	    
+	    return false;
 	}
 }
\ No newline at end of file
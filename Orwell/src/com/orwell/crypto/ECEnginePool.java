@@ -0,0 +1,336 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import org.strippedcastle.crypto.Digest;
+import org.strippedcastle.crypto.digests.SHA256Digest;
+import org.strippedcastle.crypto.prng.RandomGenerator;
+
+/**
+ * A thread-safe pool of ECEngines using the default parameters, keyed by the
+ * shared information, so that a multi-threaded server can encrypt and decrypt
+ * concurrently without creating a new engine, and its AES, HMAC and KDF, for
+ * each message. An engine is borrowed by one thread at a time and returned to
+ * the pool using release(), which ends the engine's session and erases its 
+ * cached keys.
+ * 
+ * The engines are created with a nonce that delegates to the nonce provided 
+ * when the engine is borrowed, as the nonce belongs to the conversation rather
+ * than to the engine. Engines with other parameters, such as a different 
+ * cipher or digest, are not pooled.
+ * 
+ * The idle engines are keyed by a digest of the shared information, so the
+ * pool does not retain the shared information itself, and the idle engines
+ * of a shared information are forgotten once they have all been borrowed.
+ */
+public class ECEnginePool
+{
+	/* The default maximum number of idle engines kept for each shared information */
+	public static final int DEFAULT_MAX_IDLE = 8;
+	
+	private final int maxIdle;
+	private final HashMap<ByteBuffer, ArrayDeque<ECEngine>> idle = 
+	        new HashMap<ByteBuffer, ArrayDeque<ECEngine>>();
+	private final IdentityHashMap<ECEngine, Entry> engines = 
+	        new IdentityHashMap<ECEngine, Entry>();
+	private long created;
+	private long borrowed;
+	
+	/**
+	 * The pool's record of an engine, the key of its shared information and
+	 * the nonce it delegates to
+	 */
+	private static class Entry
+	{
+	    final ByteBuffer key;
+	    final DelegatingNonce nonce;
+	    boolean borrowed;
+	    
+	    Entry(ByteBuffer key, DelegatingNonce nonce)
+	    {
+	        this.key = key;
+	        this.nonce = nonce;
+	    }
+	}
+	
+	/**
+	 * A nonce that delegates to the nonce of the conversation the engine is 
+	 * currently borrowed for
+	 */
+	private static class DelegatingNonce implements RandomGenerator
+	{
+	    private volatile RandomGenerator nonce;
+	    
+	    private RandomGenerator getNonce()
+	    {
+	        RandomGenerator result = nonce;
+	        
+	        if (result == null)
+	        {
+	            throw new IllegalStateException("The engine has been released to the pool!");
+	        }
+	        
+	        return result;
+	    }
+	    
+	    public void addSeedMaterial(byte[] seed)
+	    {
+	        getNonce().addSeedMaterial(seed);
+	    }
+	    
+	    public void addSeedMaterial(long seed)
+	    {
+	        getNonce().addSeedMaterial(seed);
+	    }
+	    
+	    public void nextBytes(byte[] bytes)
+	    {
+	        getNonce().nextBytes(bytes);
+	    }
+	    
+	    public void nextBytes(byte[] bytes, int start, int len)
+	    {
+	        getNonce().nextBytes(bytes, start, len);
+	    }
+	}
+	
+	/**
+	 * The default constructor, keeps up to DEFAULT_MAX_IDLE idle engines for
+	 * each shared information
+	 */
+	public ECEnginePool()
+	{
+	    this(DEFAULT_MAX_IDLE);
+	}
+	
+	/**
+	 * Creates a pool keeping up to the number of idle engines specified for
+	 * each shared information, the engines returned beyond that are discarded.
+	 * 
+	 * @param maxIdle The maximum number of idle engines for each shared information
+	 * 
+	 * @throws IllegalArgumentException if the maximum is negative
+	 */
+	public ECEnginePool(int maxIdle) throws IllegalArgumentException
+	{
+	    if (maxIdle < 0)
+	    {
+	        throw new IllegalArgumentException("The maximum number of idle engines cannot be negative!");
+	    }
+	    
+	    this.maxIdle = maxIdle;
+	}
+	
+	/**
+	 * Borrows an engine for the shared information, the engine must then be
+	 * initialized using init() or initSession() and returned using release() 
+	 * once the message has been processed. 
+	 * 
+	 * @param sharedInfo The shared information exchanged by users a priori
+	 * @param nonce The cryptographic nonce of the conversation, used to generate IVs
+	 * 
+	 * @return An engine which is only used by the caller until it is released
+	 */
+	public ECEngine borrow(APrioriInfo sharedInfo, RandomGenerator nonce)
+	{
+	    ByteBuffer key = getKey(sharedInfo);
+	    ECEngine engine = null;
+	    
+	    synchronized (this)
+	    {
+	        ArrayDeque<ECEngine> queue = idle.get(key);
+	        
+	        if (queue != null)
+	        {
+	            engine = queue.poll();
+	            
+	            if (queue.isEmpty())
+	            {
+	                idle.remove(key);
+	            }
+	        }
+	        
+	        ++borrowed;
+	        
+	        if (engine != null)
+	        {
+	            Entry entry = engines.get(engine);
+	            entry.nonce.nonce = nonce;
+	            entry.borrowed = true;
+	            return engine;
+	        }
+	        
+	        ++created;
+	    }
+	    
+	    /* Create the engine outside of the lock */
+	    DelegatingNonce delegate = new DelegatingNonce();
+	    delegate.nonce = nonce;
+	    engine = new ECEngine(delegate, sharedInfo);
+	    
+	    Entry entry = new Entry(key, delegate);
+	    entry.borrowed = true;
+	    
+	    synchronized (this)
+	    {
+	        engines.put(engine, entry);
+	    }
+	    
+	    return engine;
+	}
+	
+	/**
+	 * Returns an engine borrowed from the pool, the engine's session is ended
+	 * and its cached keys are erased. The engine must not be used after it is
+	 * released.
+	 * 
+	 * @param engine The engine borrowed from the pool
+	 * 
+	 * @throws IllegalArgumentException if the engine was not borrowed from the pool
+	 */
+	public void release(ECEngine engine) throws IllegalArgumentException
+	{
+	    Entry entry;
+	    
+	    synchronized (this)
+	    {
+	        entry = engines.get(engine);
+	        
+	        if (entry == null || !entry.borrowed)
+	        {
+	            throw new IllegalArgumentException("The engine was not borrowed from the pool!");
+	        }
+	        
+	        entry.borrowed = false;
+	        entry.nonce.nonce = null;
+	    }
+	    
+	    /* The engine is no longer borrowed nor idle, no one else can use it */
+	    engine.clearSession();
+	    
+	    synchronized (this)
+	    {
+	        ArrayDeque<ECEngine> queue = idle.get(entry.key);
+	        
+	        if (queue == null && maxIdle > 0)
+	        {
+	            queue = new ArrayDeque<ECEngine>();
+	            idle.put(entry.key, queue);
+	        }
+	        
+	        if (queue != null && queue.size() < maxIdle)
+	        {
+	            queue.push(engine);
+	        }
+	        else
+	        {
+	            engines.remove(engine);
+	        }
+	    }
+	}
+	
+	/**
+	 * Discards all of the idle engines
+	 */
+	public synchronized void clear()
+	{
+	    for (ArrayDeque<ECEngine> queue : idle.values())
+	    {
+	        for (ECEngine engine : queue)
+	        {
+	            engines.remove(engine);
+	        }
+	    }
+	    
+	    idle.clear();
+	}
+	
+	/**
+	 * Returns the key of the shared information, the SHA256 digest of the
+	 * length of S1 followed by S1, and the length of S2 followed by S2
+	 */
+	private static ByteBuffer getKey(APrioriInfo sharedInfo)
+	{
+	    SHA256Digest sha256 = new SHA256Digest();
+	    byte[] key = new byte[sha256.getDigestSize()];
+	    
+	    update(sha256, sharedInfo.getS1());
+	    update(sha256, sharedInfo.getS2());
+	    sha256.doFinal(key, 0);
+	    
+	    return ByteBuffer.wrap(key);
+	}
+	
+	/**
+	 * Updates the digest with the length of the input followed by the input
+	 */
+	private static void update(Digest digest, byte[] in)
+	{
+	    for (int i = 24; i >= 0; i -= 8)
+	    {
+	        digest.update((byte) (in.length >>> i));
+	    }
+	    
+	    digest.update(in, 0, in.length);
+	}
+	
+	/**
+	 * @return The number of idle engines in the pool
+	 */
+	public synchronized int getIdle()
+	{
+	    int count = 0;
+	    
+	    for (ArrayDeque<ECEngine> queue : idle.values())
+	    {
+	        count += queue.size();
+	    }
+	    
+	    return count;
+	}
+	
+	/**
+	 * @return The number of shared information with idle engines in the pool
+	 */
+	public synchronized int getIdleKeys()
+	{
+	    return idle.size();
+	}
+	
+	/**
+	 * @return The number of engines borrowed from the pool
+	 */
+	public synchronized long getBorrowed()
+	{
+	    return borrowed;
+	}
+	
+	/**
+	 * @return The number of engines the pool had to create
+	 */
+	public synchronized long getCreated()
+	{
+	    return created;
+	}
+}
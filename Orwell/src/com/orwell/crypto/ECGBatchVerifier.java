@@ -0,0 +1,272 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.strippedcastle.crypto.Digest;
+import org.strippedcastle.crypto.params.ECPublicKeyParameters;
+import org.strippedcastle.util.Memoable;
+
+import com.orwell.params.ECKeyParam;
+
+/**
+ * Verifies and decodes batches of signed public keys received as part of 
+ * Elliptic Curve Gillett (ECG) Exchanges, such as a burst of handshake 
+ * messages received by a relay. The HMAC of each key is verified and the
+ * point is decoded, which requires the expensive point decompression, in
+ * parallel using an executor so that the throughput scales with the number
+ * of cores.
+ * 
+ * Each key is verified the same as ECGKeyExchange.verifyPubKey() followed by
+ * ECGKeyUtil.decodeSignedPubKey(), the result for each key is returned in 
+ * the same order as the keys.
+ */
+public class ECGBatchVerifier
+{
+    /* The number of tasks per thread each batch is split into */
+    private static final int TASKS_PER_THREAD = 4;
+    
+    private final ECKeyParam keyParam;
+    private final Digest digest;
+    private final ExecutorService executor;
+    private final boolean ownExecutor;
+    private final int threads;
+    
+    /**
+     * The result of verifying and decoding a signed public key
+     */
+    public static class Result
+    {
+        private final ECPublicKeyParameters pubKey;
+        private final Exception error;
+        
+        Result(ECPublicKeyParameters pubKey, Exception error)
+        {
+            this.pubKey = pubKey;
+            this.error = error;
+        }
+        
+        /**
+         * @return true if the signature of the public key is valid and the
+         * public key was decoded
+         */
+        public boolean isValid()
+        {
+            return pubKey != null;
+        }
+        
+        /**
+         * @return The decoded public key, null if the key is not valid
+         */
+        public ECPublicKeyParameters getPubKey()
+        {
+            return pubKey;
+        }
+        
+        /**
+         * @return The exception thrown if the signed public key is malformed,
+         * null if the key is valid or only the signature is invalid
+         */
+        public Exception getError()
+        {
+            return error;
+        }
+    }
+    
+    /**
+     * Creates a verifier using a pool of background daemon threads, one for
+     * each processor available.
+     * 
+     * @param keyParam The Elliptic Curve key parameter which contains the curve
+     * specifications and domain parameters
+     * @param digest The digest function used to sign the keys such as SHA256,
+     * a copy of the digest is used by each task
+     * 
+     * @throws IllegalArgumentException if the digest does not implement Memoable
+     */
+    public ECGBatchVerifier(ECKeyParam keyParam, Digest digest) throws IllegalArgumentException
+    {
+        this(keyParam, digest, null, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Creates a verifier using the executor provided, the executor is not
+     * shut down by shutdown().
+     * 
+     * @param keyParam The Elliptic Curve key parameter which contains the curve
+     * specifications and domain parameters
+     * @param digest The digest function used to sign the keys such as SHA256,
+     * a copy of the digest is used by each task
+     * @param executor The executor to verify the keys on, if null a pool of
+     * background daemon threads is created for the verifier
+     * @param threads The number of threads of the executor, used to split the
+     * batches into tasks
+     * 
+     * @throws IllegalArgumentException if the digest does not implement Memoable
+     * or the number of threads is not positive
+     */
+    public ECGBatchVerifier(ECKeyParam keyParam, Digest digest, ExecutorService executor, int threads)
+            throws IllegalArgumentException
+    {
+        if (!(digest instanceof Memoable))
+        {
+            throw new IllegalArgumentException("The digest must implement Memoable!");
+        }
+        
+        if (threads <= 0)
+        {
+            throw new IllegalArgumentException("The number of threads must be greater than zero!");
+        }
+        
+        this.keyParam = keyParam;
+        this.digest = digest;
+        this.threads = threads;
+        this.ownExecutor = (executor == null);
+        
+        if (executor == null)
+        {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "ECGBatchVerifier");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        
+        this.executor = executor;
+    }
+    
+    /**
+     * Verifies and decodes the signed public keys received, each key is
+     * verified using the shared information at the same index.
+     * 
+     * @param signedPubKeys The signed public keys received
+     * @param sharedInfo The shared information, S1 and S2, for each key
+     * @param isInitiator True if the keys are received by the user that initiated
+     * the key exchanges, false if received by the recipient
+     * 
+     * @return The result for each key in the same order as the keys
+     * 
+     * @throws IllegalArgumentException if the number of keys and shared information differ
+     * @throws InterruptedException if interrupted while waiting for the batch
+     */
+    public Result[] verify(final byte[][] signedPubKeys, final APrioriInfo[] sharedInfo, 
+                           final boolean isInitiator)
+            throws IllegalArgumentException, InterruptedException
+    {
+        if (signedPubKeys.length != sharedInfo.length)
+        {
+            throw new IllegalArgumentException("Each signed public key requires its shared information!");
+        }
+        
+        final Result[] results = new Result[signedPubKeys.length];
+        int tasks = Math.min(results.length, threads * TASKS_PER_THREAD);
+        
+        if (tasks <= 1)
+        {
+            verifyRange(signedPubKeys, sharedInfo, isInitiator, results, 0, results.length);
+            return results;
+        }
+        
+        /* Split the batch into contiguous ranges of roughly equal size */
+        List<Callable<Void>> ranges = new ArrayList<Callable<Void>>(tasks);
+        
+        for (int i = 0; i < tasks; ++i)
+        {
+            final int start = (int) ((long) results.length * i / tasks);
+            final int end = (int) ((long) results.length * (i + 1) / tasks);
+            
+            ranges.add(new Callable<Void>()
+            {
+                public Void call()
+                {
+                    verifyRange(signedPubKeys, sharedInfo, isInitiator, results, start, end);
+                    return null;
+                }
+            });
+        }
+        
+        for (Future<Void> future : executor.invokeAll(ranges))
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException e)
+            {
+                throw new IllegalStateException("Verifying the batch of keys failed!", e.getCause());
+            }
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Verifies and decodes the keys within the range of the batch
+     */
+    private void verifyRange(byte[][] signedPubKeys, APrioriInfo[] sharedInfo, boolean isInitiator,
+                             Result[] results, int start, int end)
+    {
+        Digest taskDigest = (Digest) ((Memoable) digest).copy();
+        
+        for (int i = start; i < end; ++i)
+        {
+            try
+            {
+                taskDigest.reset();
+                
+                if (ECGKeyExchange.verifyPubKey(taskDigest, signedPubKeys[i], sharedInfo[i], isInitiator))
+                {
+                    results[i] = new Result(ECGKeyUtil.decodeSignedPubKey(keyParam, taskDigest, signedPubKeys[i]), null);
+                }
+                else
+                {
+                    results[i] = new Result(null, null);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                results[i] = new Result(null, e);
+            }
+        }
+    }
+    
+    /**
+     * Stops the background threads, the executor is only shut down if it 
+     * was created by the verifier.
+     */
+    public void shutdown()
+    {
+        if (ownExecutor)
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -18,8 +18,6 @@
  */
 package com.orwell.crypto;
 
-import android.util.Base64;
-
 import java.math.BigInteger;
 import java.security.InvalidParameterException;
 
@@ -29,6 +27,9 @@ import org.strippedcastle.crypto.params.ECPrivateKeyParameters;
 import org.strippedcastle.crypto.params.ECPublicKeyParameters;
 
 import com.orwell.params.ECKeyParam;
+import com.orwell.params.X25519PrivateKeyParameters;
+import com.orwell.params.X25519PublicKeyParameters;
+import com.orwell.util.Base64;
 
 /**
  * A helpful key utility class which contains utility operations which are used
@@ -36,12 +37,41 @@ import com.orwell.params.ECKeyParam;
  * 
  * It provide key exchange utility operations for encoding and decoding Elliptic
  * Curve keys.
+ * 
+ * Decoding the public keys can optionally use an ECPubKeyCache, which avoids
+ * decoding the same keys of contacts over and over, see setPubKeyCache().
+ * 
+ * X25519 keys are encoded as their 32 bytes and decoded using the X25519 
+ * decode methods, the key parameter is not used for X25519 keys.
  */
 public abstract class ECGKeyUtil
 {
+    /* The optional cache of decoded public keys, null if disabled */
+    private static volatile ECPubKeyCache pubKeyCache;
+    
+    /**
+     * Enables the cache of decoded public keys used by decodePubKey() and
+     * decodeSignedPubKey(), the cache is shared by all threads.
+     * 
+     * @param cache The cache of decoded public keys, null to disable
+     */
+    public static void setPubKeyCache(ECPubKeyCache cache)
+    {
+        pubKeyCache = cache;
+    }
+    
+    /**
+     * @return The cache of decoded public keys, null if disabled
+     */
+    public static ECPubKeyCache getPubKeyCache()
+    {
+        return pubKeyCache;
+    }
+    
     /**
      * A method which takes an ECC public key parameter object
-     * and returns the ASN.1 encoded X and Y values for the public key Q.
+     * and returns the ASN.1 encoded X and Y values for the public key Q. For 
+     * an X25519 public key the 32 bytes of the key are returned.
      * 
      * @param keyParam The Elliptic Curve key parameter which contains the curve
      * specifications and domain parameters
@@ -52,7 +82,11 @@ public abstract class ECGKeyUtil
     public static byte[] encodePubKey(ECKeyParam keyParam, CipherParameters pubKey)
     		throws InvalidParameterException
     {
-    	if (pubKey instanceof ECPublicKeyParameters)
+    	if (pubKey instanceof X25519PublicKeyParameters)
+    	{
+    	    return ((X25519PublicKeyParameters) pubKey).getEncoded();
+    	}
+    	else if (pubKey instanceof ECPublicKeyParameters)
     	{
     		/*
     		 * This statement does the following:
@@ -90,12 +124,13 @@ public abstract class ECGKeyUtil
     public static byte[] encodeBase64PubKey(ECKeyParam keyParam, CipherParameters pubKey)
     		throws InvalidParameterException
     {
-    	return Base64.encode(encodePubKey(keyParam, pubKey), Base64.DEFAULT);
+    	return Base64.encode(encodePubKey(keyParam, pubKey));
     }
     
     /**
      * A method which takes an ECC private key parameter object
-     * and returns the private key D BigInteger value as a byte array
+     * and returns the private key D BigInteger value as a byte array. For an
+     * X25519 private key the 32 bytes of the key are returned.
      * 
      * @param keyParam The Elliptic Curve key parameter which contains the curve
      * specifications and domain parameters
@@ -108,7 +143,11 @@ public abstract class ECGKeyUtil
     public static byte[] encodePriKey(ECKeyParam keyParam, CipherParameters priKey)
     		throws InvalidParameterException
 	{
-    	if (priKey instanceof ECPrivateKeyParameters)
+    	if (priKey instanceof X25519PrivateKeyParameters)
+    	{
+    	    return ((X25519PrivateKeyParameters) priKey).getEncoded();
+    	}
+    	else if (priKey instanceof ECPrivateKeyParameters)
     	{
     		/* Return the private key D BigInteger value as byte array */
     		return ((ECPrivateKeyParameters) priKey).getD().toByteArray();
@@ -136,9 +175,7 @@ public abstract class ECGKeyUtil
     		throws InvalidParameterException
 	{
     		/* Return the private key D BigInteger value encoded as base64 */
-    		return Base64.encode(
-    				encodePriKey(keyParam, priKey), 
-    				Base64.DEFAULT);
+    		return Base64.encode(encodePriKey(keyParam, priKey));
 	}
     
     /**
@@ -159,6 +196,13 @@ public abstract class ECGKeyUtil
 		 * the point Q, then returns an ECPublicKeyParameters object for
 		 * the elliptic curve parameters specified 
 		 */
+        ECPubKeyCache cache = pubKeyCache;
+        
+        if (cache != null)
+        {
+            return cache.get(keyParam, encodedPubKey, 0, encodedPubKey.length);
+        }
+        
     	return new ECPublicKeyParameters(
     			keyParam.getCurve().decodePoint(encodedPubKey), 	// Q
     			keyParam.getECDomainParam());
@@ -178,7 +222,7 @@ public abstract class ECGKeyUtil
     public static ECPublicKeyParameters decodeBase64PubKey(ECKeyParam keyParam, 
     													   byte[] encodedPubKey)
     {
-    	return decodePubKey(keyParam, Base64.decode(encodedPubKey, Base64.DEFAULT));
+    	return decodePubKey(keyParam, Base64.decode(encodedPubKey));
     }
     
     /**
@@ -197,6 +241,13 @@ public abstract class ECGKeyUtil
 													       Digest digest, 
 													       byte[] signedPubKey)
     {
+        ECPubKeyCache cache = pubKeyCache;
+        
+        if (cache != null)
+        {
+            return cache.get(keyParam, signedPubKey, 0, signedPubKey.length - digest.getDigestSize());
+        }
+        
     	/*
     	 * Retrieve the ASN.1 encoded ECC public key Q from the contents of signed public key  
     	 */
@@ -232,7 +283,7 @@ public abstract class ECGKeyUtil
             													 Digest digest, 
         														 byte[] signedPubKey)
     {
-    	return decodeSignedPubKey(keyParam, digest, Base64.decode(signedPubKey, Base64.DEFAULT));
+    	return decodeSignedPubKey(keyParam, digest, Base64.decode(signedPubKey));
     	
     }
     
@@ -267,6 +318,71 @@ public abstract class ECGKeyUtil
     public static ECPrivateKeyParameters decodeBase64PriKey(ECKeyParam keyParam,
     												        byte[] encodedPriKey)
     {
-    	return decodePriKey(keyParam, Base64.decode(encodedPriKey, Base64.DEFAULT));
+    	return decodePriKey(keyParam, Base64.decode(encodedPriKey));
+    }
+    
+    /**
+     * A method which takes an encoded X25519 public key and returns an
+     * X25519PublicKeyParameters object for the public key.
+     * 
+     * @param encodedPubKey A byte array of the 32 byte X25519 public key
+     * 
+     * @return An X25519 public key parameter
+     * 
+     * @throws InvalidParameterException if the encoded key is not 32 bytes
+     */
+    public static X25519PublicKeyParameters decodeX25519PubKey(byte[] encodedPubKey)
+            throws InvalidParameterException
+    {
+        if (encodedPubKey.length != X25519.KEY_SIZE)
+        {
+            throw new InvalidParameterException("The encoded public key is not an X25519 public key");
+        }
+        
+        return new X25519PublicKeyParameters(encodedPubKey, 0);
+    }
+    
+    /**
+     * A method which takes an encoded X25519 public key that is signed using
+     * the Elliptic Curve Gillett (ECG) Exchange key exchange and returns an
+     * X25519PublicKeyParameters object for the public key.
+     * 
+     * @param digest The digest function used to originally sign the key such as SHA256
+     * @param signedPubKey A byte array of the X25519 public key that is signed
+     * 
+     * @return An X25519 public key parameter
+     * 
+     * @throws InvalidParameterException if the signed key does not contain a 32 byte key
+     */
+    public static X25519PublicKeyParameters decodeSignedX25519PubKey(Digest digest, byte[] signedPubKey)
+            throws InvalidParameterException
+    {
+        if (signedPubKey.length - digest.getDigestSize() != X25519.KEY_SIZE)
+        {
+            throw new InvalidParameterException("The signed public key is not an X25519 public key");
+        }
+        
+        return new X25519PublicKeyParameters(signedPubKey, 0);
+    }
+    
+    /**
+     * A method which takes an encoded X25519 private key and returns an
+     * X25519PrivateKeyParameters object for the private key.
+     * 
+     * @param encodedPriKey A byte array of the 32 byte X25519 private key
+     * 
+     * @return An X25519 private key parameter
+     * 
+     * @throws InvalidParameterException if the encoded key is not 32 bytes
+     */
+    public static X25519PrivateKeyParameters decodeX25519PriKey(byte[] encodedPriKey)
+            throws InvalidParameterException
+    {
+        if (encodedPriKey.length != X25519.KEY_SIZE)
+        {
+            throw new InvalidParameterException("The encoded private key is not an X25519 private key");
+        }
+        
+        return new X25519PrivateKeyParameters(encodedPriKey, 0);
     }
-}
\ No newline at end of file
+}
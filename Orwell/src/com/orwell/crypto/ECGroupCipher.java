@@ -0,0 +1,364 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.security.InvalidParameterException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.strippedcastle.crypto.BufferedBlockCipher;
+import org.strippedcastle.crypto.CipherParameters;
+import org.strippedcastle.crypto.DataLengthException;
+import org.strippedcastle.crypto.InvalidCipherTextException;
+import org.strippedcastle.crypto.digests.SHA256Digest;
+import org.strippedcastle.crypto.engines.AESEngine;
+import org.strippedcastle.crypto.macs.HMac;
+import org.strippedcastle.crypto.modes.SICBlockCipher;
+import org.strippedcastle.crypto.params.KeyParameter;
+import org.strippedcastle.crypto.params.ParametersWithIV;
+
+import com.orwell.params.ECKeyParam;
+
+/**
+ * Encrypts a message for a group of recipients, the body of the message is
+ * encrypted and authenticated once using a random content key and only the
+ * content key is encrypted for each recipient using the recipient's ECEngine.
+ * The cost of sending a message to a group therefore only grows with the 
+ * number of recipients for the small wrapped keys.
+ * 
+ * The message consists of the number of recipients, followed by the key ID
+ * and wrapped content key of each recipient, followed by the body. The body is
+ * encrypted using AES in SIC/CTR mode and authenticated using an HMAC of the
+ * header and ciphertext, using the same default parameters as the ECEngine.
+ * The recipients may have either elliptic curve or X25519 keys.
+ * 
+ * @note Every recipient knows the content key and could therefore alter the
+ * message for the other recipients, use the ECEngine for each recipient if the
+ * recipients do not trust each other.
+ */
+public class ECGroupCipher
+{
+	/* The size of the key ID identifying each recipient's wrapped key */
+	public static final int KEY_ID_SIZE = 8;
+	
+	/* The maximum number of recipients of a message */
+	public static final int MAX_RECIPIENTS = 0xffff;
+	
+	private static final int CIPHERKEYSIZE = 32;
+	private static final int MACKEYSIZE = 32;
+	private static final int BLOCKSIZE = 16;
+	
+	private final ECKeyParam keyParam;
+	private final SecureRandom random;
+	private final BufferedBlockCipher cipher;
+	private final HMac mac;
+	
+	/**
+	 * The default constructor, creates the group cipher using a SecureRandom
+	 * to generate the content keys
+	 */
+	public ECGroupCipher()
+	{
+	    this(ECKeyParam.getInstance(), new SecureRandom());
+	}
+	
+	/**
+	 * Creates the group cipher using the random number generator provided to
+	 * generate the content keys, which must be a CSPRNG
+	 * 
+	 * @param random The CSPRNG used to generate the content keys
+	 */
+	public ECGroupCipher(SecureRandom random)
+	{
+	    this(ECKeyParam.getInstance(), random);
+	}
+	
+	/**
+	 * Creates the group cipher for recipients with keys on the curve of the
+	 * key parameters, using the random number generator provided to generate
+	 * the content keys, which must be a CSPRNG
+	 * 
+	 * @param keyParam The elliptic curve parameters of the recipients' keys
+	 * @param random The CSPRNG used to generate the content keys
+	 */
+	public ECGroupCipher(ECKeyParam keyParam, SecureRandom random)
+	{
+	    this.keyParam = keyParam;
+	    this.random = random;
+	    this.cipher = new BufferedBlockCipher(new SICBlockCipher(new AESEngine()));
+	    this.mac = new HMac(new SHA256Digest());
+	}
+	
+	/**
+	 * Returns the key ID of the recipient's public key, which identifies the
+	 * recipient's wrapped key in the message, the first KEY_ID_SIZE bytes of 
+	 * the SHA256 digest of the public key encoded by ECGKeyUtil. Elliptic 
+	 * curve keys must be on the default curve.
+	 * 
+	 * @param pubKey The recipient's public key parameters
+	 * 
+	 * @return The key ID of the public key
+	 * 
+	 * @throws InvalidParameterException if the key is not an elliptic curve
+	 * public key on the default curve or an X25519 public key
+	 */
+	public static byte[] getKeyId(CipherParameters pubKey)
+	        throws InvalidParameterException
+	{
+	    return getKeyId(ECKeyParam.getInstance(), pubKey);
+	}
+	
+	/**
+	 * Returns the key ID of the recipient's public key, the first KEY_ID_SIZE
+	 * bytes of the SHA256 digest of the public key encoded by ECGKeyUtil. The
+	 * encoding is the same however the key was created or decoded.
+	 * 
+	 * @param keyParam The elliptic curve parameters of the key, not used for
+	 * X25519 keys
+	 * @param pubKey The recipient's public key parameters
+	 * 
+	 * @return The key ID of the public key
+	 * 
+	 * @throws InvalidParameterException if the key is not an elliptic curve
+	 * or X25519 public key
+	 */
+	public static byte[] getKeyId(ECKeyParam keyParam, CipherParameters pubKey)
+	        throws InvalidParameterException
+	{
+	    byte[] encoded = ECGKeyUtil.encodePubKey(keyParam, pubKey);
+	    SHA256Digest digest = new SHA256Digest();
+	    byte[] hash = new byte[digest.getDigestSize()];
+	    
+	    digest.update(encoded, 0, encoded.length);
+	    digest.doFinal(hash, 0);
+	    
+	    return Arrays.copyOf(hash, KEY_ID_SIZE);
+	}
+	
+	/**
+	 * Encrypts the message for each of the recipients, the engine of each 
+	 * recipient must have been initialized for encryption to the recipient, 
+	 * using either init() or initSession().
+	 * 
+	 * @param in The message to encrypt
+	 * @param inOff The offset in the input to encrypt
+	 * @param inLen The length of the input to encrypt
+	 * @param engines The engine initialized for each recipient
+	 * @param pubKeys The public key parameters of each recipient
+	 * 
+	 * @return The encrypted message for the group
+	 * 
+	 * @throws InvalidCipherTextException if the encryption fails
+	 * @throws IllegalArgumentException if the number of engines and public keys
+	 * differ or there are no recipients or more than MAX_RECIPIENTS
+	 */
+	public byte[] encrypt(byte[] in, int inOff, int inLen, ECEngine[] engines, CipherParameters[] pubKeys)
+	        throws InvalidCipherTextException, IllegalArgumentException
+	{
+	    if (engines.length != pubKeys.length)
+	    {
+	        throw new IllegalArgumentException("Each recipient requires an engine and a public key!");
+	    }
+	    
+	    if (engines.length == 0 || engines.length > MAX_RECIPIENTS)
+	    {
+	        throw new IllegalArgumentException("Invalid number of recipients!");
+	    }
+	    
+	    byte[] contentKey = new byte[CIPHERKEYSIZE + MACKEYSIZE];
+	    byte[][] wrappedKeys = new byte[engines.length][];
+	    int headerLen = 2;
+	    
+	    random.nextBytes(contentKey);
+	    
+	    try
+	    {
+	        /* Wrap the content key for each recipient */
+	        for (int i = 0; i < engines.length; ++i)
+	        {
+	            wrappedKeys[i] = engines[i].processBlock(contentKey, 0, contentKey.length);
+	            
+	            if (wrappedKeys[i].length > 0xffff)
+	            {
+	                throw new DataLengthException("The wrapped content key is too large!");
+	            }
+	            
+	            headerLen += KEY_ID_SIZE + 2 + wrappedKeys[i].length;
+	        }
+	        
+	        initCipher(true, contentKey);
+	        
+	        byte[] out = new byte[headerLen + cipher.getOutputSize(inLen) + mac.getMacSize()];
+	        int off = 0;
+	        
+	        out[off++] = (byte) (engines.length >>> 8);
+	        out[off++] = (byte) engines.length;
+	        
+	        for (int i = 0; i < engines.length; ++i)
+	        {
+	            System.arraycopy(getKeyId(keyParam, pubKeys[i]), 0, out, off, KEY_ID_SIZE);
+	            off += KEY_ID_SIZE;
+	            out[off++] = (byte) (wrappedKeys[i].length >>> 8);
+	            out[off++] = (byte) wrappedKeys[i].length;
+	            System.arraycopy(wrappedKeys[i], 0, out, off, wrappedKeys[i].length);
+	            off += wrappedKeys[i].length;
+	        }
+	        
+	        /* Encrypt the body once and authenticate the header and ciphertext */
+	        int len = cipher.processBytes(in, inOff, inLen, out, off);
+	        len += cipher.doFinal(out, off + len);
+	        
+	        mac.update(out, 0, off + len);
+	        mac.doFinal(out, off + len);
+	        
+	        return out;
+	    }
+	    finally
+	    {
+	        Arrays.fill(contentKey, (byte) 0);
+	    }
+	}
+	
+	/**
+	 * Decrypts a message encrypted for a group, the engine must have been 
+	 * initialized for decryption of the messages from the sender.
+	 * 
+	 * @param in The message to decrypt
+	 * @param inOff The offset in the input to decrypt
+	 * @param inLen The length of the input to decrypt
+	 * @param engine The engine initialized for decryption
+	 * @param pubKey Your public key parameters, identifying your wrapped key
+	 * 
+	 * @return The decrypted message
+	 * 
+	 * @throws InvalidCipherTextException if you are not a recipient of the 
+	 * message, the message is malformed or if the HMAC is invalid (possible 
+	 * data corruption or tampering)
+	 */
+	public byte[] decrypt(byte[] in, int inOff, int inLen, ECEngine engine, CipherParameters pubKey)
+	        throws InvalidCipherTextException
+	{
+	    byte[] keyId = getKeyId(keyParam, pubKey);
+	    int end = inOff + inLen;
+	    int off = inOff;
+	    int wrapOff = -1;
+	    int wrapLen = 0;
+	    
+	    if (inLen < 2)
+	    {
+	        throw new InvalidCipherTextException("Invalid group message, missing the header!");
+	    }
+	    
+	    int count = ((in[off] & 0xff) << 8) | (in[off + 1] & 0xff);
+	    off += 2;
+	    
+	    /* Find the wrapped key of the recipient */
+	    for (int i = 0; i < count; ++i)
+	    {
+	        if (end - off < KEY_ID_SIZE + 2)
+	        {
+	            throw new InvalidCipherTextException("Invalid group message, truncated header!");
+	        }
+	        
+	        int len = ((in[off + KEY_ID_SIZE] & 0xff) << 8) | (in[off + KEY_ID_SIZE + 1] & 0xff);
+	        
+	        if (wrapOff < 0 && regionEquals(in, off, keyId))
+	        {
+	            wrapOff = off + KEY_ID_SIZE + 2;
+	            wrapLen = len;
+	        }
+	        
+	        off += KEY_ID_SIZE + 2 + len;
+	    }
+	    
+	    if (end - off < mac.getMacSize())
+	    {
+	        throw new InvalidCipherTextException("Invalid group message, truncated body!");
+	    }
+	    
+	    if (wrapOff < 0)
+	    {
+	        throw new InvalidCipherTextException("Not a recipient of the group message!");
+	    }
+	    
+	    byte[] contentKey = engine.processBlock(in, wrapOff, wrapLen);
+	    
+	    try
+	    {
+	        if (contentKey.length != CIPHERKEYSIZE + MACKEYSIZE)
+	        {
+	            throw new InvalidCipherTextException("Invalid content key length!");
+	        }
+	        
+	        initCipher(false, contentKey);
+	        
+	        /* Verify the HMAC of the header and ciphertext before decrypting */
+	        int macOff = end - mac.getMacSize();
+	        byte[] T = new byte[mac.getMacSize()];
+	        mac.update(in, inOff, macOff - inOff);
+	        mac.doFinal(T, 0);
+	        
+	        int diff = 0;
+	        
+	        for (int i = 0; i < T.length; ++i)
+	        {
+	            diff |= T[i] ^ in[macOff + i];
+	        }
+	        
+	        if (diff != 0)
+	        {
+	            throw new InvalidCipherTextException("Invalid MAC.");
+	        }
+	        
+	        byte[] M = new byte[cipher.getOutputSize(macOff - off)];
+	        int len = cipher.processBytes(in, off, macOff - off, M, 0);
+	        len += cipher.doFinal(M, len);
+	        
+	        return (len == M.length) ? M : Arrays.copyOf(M, len);
+	    }
+	    finally
+	    {
+	        Arrays.fill(contentKey, (byte) 0);
+	    }
+	}
+	
+	/**
+	 * Initializes the body cipher and HMAC using the content key, each content 
+	 * key is only used for a single message so the IV is fixed.
+	 */
+	private void initCipher(boolean forEncryption, byte[] contentKey)
+	{
+	    cipher.init(forEncryption, new ParametersWithIV(new KeyParameter(contentKey, 0, CIPHERKEYSIZE), 
+	                                                    new byte[BLOCKSIZE]));
+	    mac.init(new KeyParameter(contentKey, CIPHERKEYSIZE, MACKEYSIZE));
+	}
+	
+	private static boolean regionEquals(byte[] buf, int off, byte[] value)
+	{
+	    for (int i = 0; i < value.length; ++i)
+	    {
+	        if (buf[off + i] != value[i])
+	        {
+	            return false;
+	        }
+	    }
+	    
+	    return true;
+	}
+}
@@ -18,14 +18,18 @@
  */
 package com.orwell.crypto;
 
+import java.math.BigInteger;
 import java.security.SecureRandom;
 
 import org.strippedcastle.crypto.AsymmetricCipherKeyPair;
 import org.strippedcastle.crypto.CipherParameters;
 import org.strippedcastle.crypto.KeyGenerationParameters;
-import org.strippedcastle.crypto.generators.ECKeyPairGenerator;
 import org.strippedcastle.crypto.params.ECDomainParameters;
 import org.strippedcastle.crypto.params.ECKeyGenerationParameters;
+import org.strippedcastle.crypto.params.ECPrivateKeyParameters;
+import org.strippedcastle.crypto.params.ECPublicKeyParameters;
+
+import com.orwell.params.ECKeyParam;
 
 /**
  * A wrapper class that simplifies the creation of a private/public Elliptic
@@ -34,7 +38,7 @@ import org.strippedcastle.crypto.params.ECKeyGenerationParameters;
  */
 public class ECKey
 {
-	private ECKeyPairGenerator ECKeyPairGen;
+	private ECCombMultiplier comb;
 	private KeyGenerationParameters keyGenParam;
 	private AsymmetricCipherKeyPair ECKeyPair;
 	
@@ -46,18 +50,42 @@ public class ECKey
 	public ECKey(ECDomainParameters param)
 	{
 		/* Instantiate the elliptic curve key parameters */
-		this.ECKeyPairGen = new ECKeyPairGenerator();
+		this.comb = ECCombMultiplier.getInstance(param);
 		this.keyGenParam = new ECKeyGenerationParameters(param, new SecureRandom());
 	}
 
 	/**
-	 * Wrapper for AsymmetricCipherKeyPairGenerator init() and generateKeyPair()
-	 * function which initializes the elliptic curve and generates a keypair
+	 * ECKey object constructor, uses the comb precomputed by the ECKeyParam,
+	 * use the shared instances from ECKeyParam.getInstance() where possible.
+	 * 
+	 * @param keyParam ECKeyParam for creating the elliptic curve keypair
+	 */
+	public ECKey(ECKeyParam keyParam)
+	{
+		this.comb = keyParam.getComb();
+		this.keyGenParam = new ECKeyGenerationParameters(keyParam.getECDomainParam(), new SecureRandom());
+	}
+	
+	/**
+	 * Generates a keypair in the same manner as the ECKeyPairGenerator, the
+	 * public key is calculated using the comb precomputed for the generator G,
+	 * which is shared by all keys created with the same domain parameters.
 	 */
 	public void init()
 	{
-		ECKeyPairGen.init(keyGenParam);
-		ECKeyPair = ECKeyPairGen.generateKeyPair();
+		ECDomainParameters param = getDomainParameters();
+		BigInteger n = param.getN();
+		BigInteger d;
+		
+		/* Select a private key in the range [1, n - 1] */
+		do
+		{
+		    d = new BigInteger(n.bitLength(), keyGenParam.getRandom());
+		}
+		while (d.signum() == 0 || d.compareTo(n) >= 0);
+		
+		ECKeyPair = new AsymmetricCipherKeyPair(new ECPublicKeyParameters(comb.multiply(d), param),
+		                                        new ECPrivateKeyParameters(d, param));
 	}
 	 
 	/**
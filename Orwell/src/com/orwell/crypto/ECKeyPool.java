@@ -0,0 +1,299 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.orwell.params.ECKeyParam;
+
+/**
+ * A pool of pre-generated elliptic curve keypairs, such as the ephemeral keys
+ * used for a key exchange, so that taking a keypair does not require the key
+ * generation on the calling thread. The pool is refilled asynchronously on a
+ * background executor whenever keypairs are taken, each keypair is handed out
+ * exactly once. If the pool is empty the keypair is generated on the calling
+ * thread, which is counted as a miss.
+ * 
+ * The pool is thread safe, shutdown() must be called once the pool is no
+ * longer needed to stop the background executor.
+ */
+public class ECKeyPool
+{
+	/* The default number of keypairs kept ready in the pool */
+	public static final int DEFAULT_CAPACITY = 8;
+	
+	private final ECKeyParam keyParam;
+	private final int capacity;
+	private final LinkedBlockingQueue<ECKey> keys;
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+	private final AtomicBoolean refilling = new AtomicBoolean(false);
+	private volatile boolean shutdown;
+	
+	/* Pool metrics */
+	private final AtomicLong taken = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong generated = new AtomicLong();
+	private final AtomicLong generateTime = new AtomicLong();
+	private final AtomicLong refills = new AtomicLong();
+	private volatile long lastRefillTime;
+	
+	private final Runnable refillTask = new Runnable()
+	{
+	    public void run()
+	    {
+	        long start = System.nanoTime();
+	        
+	        try
+	        {
+	            while (keys.size() < capacity && !shutdown)
+	            {
+	                keys.offer(generate());
+	            }
+	        }
+	        finally
+	        {
+	            if (shutdown)
+	            {
+	                keys.clear();
+	            }
+	            
+	            lastRefillTime = System.nanoTime() - start;
+	            refills.incrementAndGet();
+	            refilling.set(false);
+	        }
+	        
+	        /* Keypairs may have been taken after the last check */
+	        if (keys.size() < capacity)
+	        {
+	            refill();
+	        }
+	    }
+	};
+	
+	/**
+	 * The default constructor, creates a pool of DEFAULT_CAPACITY keypairs for
+	 * the default curve, refilled by a background daemon thread.
+	 */
+	public ECKeyPool()
+	{
+	    this(ECKeyParam.getInstance(), DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates a pool of keypairs for the curve specified, refilled by a 
+	 * background daemon thread. The pool starts filling immediately.
+	 * 
+	 * @param keyParam The elliptic curve parameters of the keypairs
+	 * @param capacity The number of keypairs to keep ready in the pool
+	 * 
+	 * @throws IllegalArgumentException if the capacity is not positive
+	 */
+	public ECKeyPool(ECKeyParam keyParam, int capacity) throws IllegalArgumentException
+	{
+	    this(keyParam, capacity, null);
+	}
+	
+	/**
+	 * Creates a pool of keypairs for the curve specified, refilled using the
+	 * executor provided. The pool starts filling immediately, the executor is
+	 * not shut down by shutdown().
+	 * 
+	 * @param keyParam The elliptic curve parameters of the keypairs
+	 * @param capacity The number of keypairs to keep ready in the pool
+	 * @param executor The executor used to refill the pool, if null a single
+	 * background daemon thread is created for the pool
+	 * 
+	 * @throws IllegalArgumentException if the capacity is not positive
+	 */
+	public ECKeyPool(ECKeyParam keyParam, int capacity, ExecutorService executor)
+	        throws IllegalArgumentException
+	{
+	    if (capacity <= 0)
+	    {
+	        throw new IllegalArgumentException("The capacity of the pool must be greater than zero!");
+	    }
+	    
+	    this.keyParam = keyParam;
+	    this.capacity = capacity;
+	    this.keys = new LinkedBlockingQueue<ECKey>(capacity);
+	    this.ownExecutor = (executor == null);
+	    
+	    if (executor == null)
+	    {
+	        executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	        {
+	            public Thread newThread(Runnable r)
+	            {
+	                Thread thread = new Thread(r, "ECKeyPool");
+	                thread.setDaemon(true);
+	                thread.setPriority(Thread.MIN_PRIORITY);
+	                return thread;
+	            }
+	        });
+	    }
+	    
+	    this.executor = executor;
+	    refill();
+	}
+	
+	/**
+	 * Takes a keypair from the pool, the keypair is removed from the pool and
+	 * is never handed out again. If the pool is empty the keypair is generated
+	 * on the calling thread.
+	 * 
+	 * @return An initialized ECKey containing the keypair
+	 */
+	public ECKey take()
+	{
+	    ECKey key = keys.poll();
+	    taken.incrementAndGet();
+	    
+	    if (key == null)
+	    {
+	        misses.incrementAndGet();
+	        key = generate();
+	    }
+	    
+	    refill();
+	    return key;
+	}
+	
+	/**
+	 * Generates a keypair and records the time it took
+	 */
+	private ECKey generate()
+	{
+	    long start = System.nanoTime();
+	    
+	    ECKey key = new ECKey(keyParam);
+	    key.init();
+	    
+	    generateTime.addAndGet(System.nanoTime() - start);
+	    generated.incrementAndGet();
+	    return key;
+	}
+	
+	/**
+	 * Schedules a refill of the pool unless a refill is already running
+	 */
+	private void refill()
+	{
+	    if (keys.size() < capacity && !shutdown && refilling.compareAndSet(false, true))
+	    {
+	        try
+	        {
+	            executor.execute(refillTask);
+	        }
+	        catch (RejectedExecutionException e)
+	        {
+	            refilling.set(false);
+	        }
+	    }
+	}
+	
+	/**
+	 * Stops refilling the pool and discards the keypairs remaining in the pool,
+	 * the executor is only shut down if it was created by the pool.
+	 */
+	public void shutdown()
+	{
+	    shutdown = true;
+	    
+	    if (ownExecutor)
+	    {
+	        executor.shutdown();
+	    }
+	    
+	    keys.clear();
+	}
+	
+	/**
+	 * @return The elliptic curve parameters of the keypairs
+	 */
+	public ECKeyParam getKeyParam()
+	{
+	    return keyParam;
+	}
+	
+	/**
+	 * @return The number of keypairs the pool keeps ready
+	 */
+	public int getCapacity()
+	{
+	    return capacity;
+	}
+	
+	/**
+	 * @return The number of keypairs currently ready in the pool
+	 */
+	public int getDepth()
+	{
+	    return keys.size();
+	}
+	
+	/**
+	 * @return The number of keypairs taken from the pool
+	 */
+	public long getTaken()
+	{
+	    return taken.get();
+	}
+	
+	/**
+	 * @return The number of keypairs that were generated on the calling 
+	 * thread because the pool was empty
+	 */
+	public long getMisses()
+	{
+	    return misses.get();
+	}
+	
+	/**
+	 * @return The number of refills of the pool completed
+	 */
+	public long getRefills()
+	{
+	    return refills.get();
+	}
+	
+	/**
+	 * @return The time in nanoseconds the last refill took to fill the pool
+	 */
+	public long getLastRefillTime()
+	{
+	    return lastRefillTime;
+	}
+	
+	/**
+	 * @return The average time in nanoseconds to generate a keypair, 
+	 * including the keypairs generated on the calling thread
+	 */
+	public long getAverageGenerateTime()
+	{
+	    long count = generated.get();
+	    return (count == 0) ? 0 : generateTime.get() / count;
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.strippedcastle.math.ec.ECPoint;
+
+/**
+ * An opt-in cache of the combs precomputed for the public keys of peers, so
+ * that repeated ECDH agreements with the same peer, such as initializing the
+ * ECEngine for a frequent contact, only require the comb multiplication rather
+ * than a generic scalar multiplication of the peer's public key.
+ * 
+ * The combs are keyed by the encoded point and the least recently used comb is
+ * evicted once the cache reaches its capacity. Precomputing the comb costs
+ * about as much as one scalar multiplication, the cache should therefore only
+ * be used for peers that are expected to be agreed with more than once.
+ * 
+ * The cache is thread safe and may be shared by multiple engines.
+ */
+public class ECPeerCache
+{
+	/* The default number of peers to keep the precomputed combs for */
+	public static final int DEFAULT_CAPACITY = 32;
+	
+	private final int capacity;
+	private final LinkedHashMap<ByteBuffer, ECCombMultiplier> combs;
+	private long hits;
+	private long misses;
+	
+	/**
+	 * The default constructor, creates a cache of the precomputed combs for
+	 * up to DEFAULT_CAPACITY peers.
+	 */
+	public ECPeerCache()
+	{
+	    this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates a cache of the precomputed combs for up to the number of peers
+	 * specified.
+	 * 
+	 * @param capacity The maximum number of peers to cache the combs for
+	 * 
+	 * @throws IllegalArgumentException if the capacity is not positive
+	 */
+	public ECPeerCache(int capacity) throws IllegalArgumentException
+	{
+	    if (capacity <= 0)
+	    {
+	        throw new IllegalArgumentException("The capacity of the cache must be greater than zero!");
+	    }
+	    
+	    this.capacity = capacity;
+	    this.combs = new LinkedHashMap<ByteBuffer, ECCombMultiplier>(16, 0.75f, true)
+	    {
+	        private static final long serialVersionUID = 1L;
+	        
+	        @Override
+	        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ECCombMultiplier> eldest)
+	        {
+	            return size() > ECPeerCache.this.capacity;
+	        }
+	    };
+	}
+	
+	/**
+	 * Calculates the scalar multiplication kQ of the peer's public key using
+	 * the comb cached for the peer, the comb is precomputed and added to the
+	 * cache if the peer is not in the cache.
+	 * 
+	 * @param Q The public key of the peer
+	 * @param n The order of the public key
+	 * @param k The scalar to multiply the public key by
+	 * 
+	 * @return The normalized point kQ
+	 */
+	public ECPoint multiply(ECPoint Q, BigInteger n, BigInteger k)
+	{
+	    return getComb(Q, n).multiply(k);
+	}
+	
+	/**
+	 * Returns the comb for the peer's public key, precomputing the comb and
+	 * adding it to the cache if the peer is not in the cache.
+	 * 
+	 * @param Q The public key of the peer
+	 * @param n The order of the public key
+	 * 
+	 * @return The comb for the public key
+	 */
+	public ECCombMultiplier getComb(ECPoint Q, BigInteger n)
+	{
+	    ByteBuffer key = ByteBuffer.wrap(Q.getEncoded());
+	    ECCombMultiplier comb;
+	    
+	    synchronized (combs)
+	    {
+	        comb = combs.get(key);
+	        
+	        if (comb != null)
+	        {
+	            ++hits;
+	            return comb;
+	        }
+	        
+	        ++misses;
+	    }
+	    
+	    /* Precompute outside of the lock, a concurrent miss may compute it twice */
+	    comb = new ECCombMultiplier(Q, n);
+	    
+	    synchronized (combs)
+	    {
+	        combs.put(key, comb);
+	    }
+	    
+	    return comb;
+	}
+	
+	/**
+	 * Removes the comb cached for the peer's public key, such as when the
+	 * contact has been deleted
+	 * 
+	 * @param Q The public key of the peer
+	 */
+	public void remove(ECPoint Q)
+	{
+	    synchronized (combs)
+	    {
+	        combs.remove(ByteBuffer.wrap(Q.getEncoded()));
+	    }
+	}
+	
+	/**
+	 * Removes all of the combs from the cache
+	 */
+	public void clear()
+	{
+	    synchronized (combs)
+	    {
+	        combs.clear();
+	    }
+	}
+	
+	/**
+	 * @return The number of peers currently cached
+	 */
+	public int size()
+	{
+	    synchronized (combs)
+	    {
+	        return combs.size();
+	    }
+	}
+	
+	/**
+	 * @return The maximum number of peers cached
+	 */
+	public int getCapacity()
+	{
+	    return capacity;
+	}
+	
+	/**
+	 * @return The number of multiplications that used a cached comb
+	 */
+	public long getHits()
+	{
+	    synchronized (combs)
+	    {
+	        return hits;
+	    }
+	}
+	
+	/**
+	 * @return The number of multiplications that had to precompute the comb
+	 */
+	public long getMisses()
+	{
+	    synchronized (combs)
+	    {
+	        return misses;
+	    }
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.strippedcastle.crypto.params.ECPublicKeyParameters;
+
+import com.orwell.params.ECKeyParam;
+
+/**
+ * A bounded cache of decoded public keys keyed by the encoded point, which
+ * avoids decoding the same keys of contacts over and over, decoding a 
+ * compressed point requires a modular square root. 
+ * 
+ * The cache is split into stripes by the hash of the encoded point, each
+ * stripe is a least recently used cache with its own lock, so that threads
+ * decoding different keys rarely contend. The cache is enabled for 
+ * ECGKeyUtil using ECGKeyUtil.setPubKeyCache().
+ */
+public class ECPubKeyCache
+{
+	/* The default number of public keys to cache */
+	public static final int DEFAULT_CAPACITY = 256;
+	
+	/* The number of stripes, must be a power of 2 */
+	private static final int STRIPES = 16;
+	
+	private final int capacity;
+	private final Stripe[] stripes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * A least recently used stripe of the cache
+	 */
+	private static class Stripe extends LinkedHashMap<ByteBuffer, ECPublicKeyParameters>
+	{
+	    private static final long serialVersionUID = 1L;
+	    private final int capacity;
+	    
+	    Stripe(int capacity)
+	    {
+	        super(16, 0.75f, true);
+	        this.capacity = capacity;
+	    }
+	    
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ECPublicKeyParameters> eldest)
+	    {
+	        return size() > capacity;
+	    }
+	}
+	
+	/**
+	 * The default constructor, creates a cache of up to DEFAULT_CAPACITY keys
+	 */
+	public ECPubKeyCache()
+	{
+	    this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates a cache of up to the number of public keys specified, the
+	 * capacity is rounded up to a multiple of the number of stripes.
+	 * 
+	 * @param capacity The maximum number of public keys to cache
+	 * 
+	 * @throws IllegalArgumentException if the capacity is not positive
+	 */
+	public ECPubKeyCache(int capacity) throws IllegalArgumentException
+	{
+	    if (capacity <= 0)
+	    {
+	        throw new IllegalArgumentException("The capacity of the cache must be greater than zero!");
+	    }
+	    
+	    int perStripe = (capacity + STRIPES - 1) / STRIPES;
+	    
+	    this.capacity = perStripe * STRIPES;
+	    this.stripes = new Stripe[STRIPES];
+	    
+	    for (int i = 0; i < STRIPES; ++i)
+	    {
+	        stripes[i] = new Stripe(perStripe);
+	    }
+	}
+	
+	/**
+	 * Returns the stripe for the encoded point
+	 */
+	private Stripe getStripe(ByteBuffer key)
+	{
+	    int h = key.hashCode();
+	    h ^= (h >>> 16);
+	    return stripes[(h ^ (h >>> 8)) & (STRIPES - 1)];
+	}
+	
+	/**
+	 * Returns the public key for the encoded point, decoding the point and 
+	 * adding the public key to the cache if it is not in the cache. Only the 
+	 * keys decoded for the same ECKeyParam are returned from the cache, use 
+	 * the shared instances from ECKeyParam.getInstance().
+	 * 
+	 * @param keyParam The Elliptic Curve key parameter which contains the curve
+	 * specifications and domain parameters
+	 * @param encodedPubKey The buffer containing the ASN.1 encoded public key Q
+	 * @param off The offset of the encoded public key
+	 * @param len The length of the encoded public key
+	 * 
+	 * @return An ECC public key parameter for Q
+	 */
+	public ECPublicKeyParameters get(ECKeyParam keyParam, byte[] encodedPubKey, int off, int len)
+	{
+	    ByteBuffer key = ByteBuffer.wrap(encodedPubKey, off, len);
+	    Stripe stripe = getStripe(key);
+	    ECPublicKeyParameters pubKey;
+	    
+	    synchronized (stripe)
+	    {
+	        pubKey = stripe.get(key);
+	    }
+	    
+	    if (pubKey != null && pubKey.getParameters() == keyParam.getECDomainParam())
+	    {
+	        hits.incrementAndGet();
+	        return pubKey;
+	    }
+	    
+	    misses.incrementAndGet();
+	    
+	    /* Decode outside of the lock, the cached key must not share the buffer */
+	    byte[] encoded = Arrays.copyOfRange(encodedPubKey, off, off + len);
+	    pubKey = new ECPublicKeyParameters(keyParam.getCurve().decodePoint(encoded), 
+	                                       keyParam.getECDomainParam());
+	    
+	    synchronized (stripe)
+	    {
+	        stripe.put(ByteBuffer.wrap(encoded), pubKey);
+	    }
+	    
+	    return pubKey;
+	}
+	
+	/**
+	 * Removes all of the public keys from the cache
+	 */
+	public void clear()
+	{
+	    for (Stripe stripe : stripes)
+	    {
+	        synchronized (stripe)
+	        {
+	            stripe.clear();
+	        }
+	    }
+	}
+	
+	/**
+	 * @return The number of public keys currently cached
+	 */
+	public int size()
+	{
+	    int size = 0;
+	    
+	    for (Stripe stripe : stripes)
+	    {
+	        synchronized (stripe)
+	        {
+	            size += stripe.size();
+	        }
+	    }
+	    
+	    return size;
+	}
+	
+	/**
+	 * @return The maximum number of public keys cached
+	 */
+	public int getCapacity()
+	{
+	    return capacity;
+	}
+	
+	/**
+	 * @return The number of public keys returned from the cache
+	 */
+	public long getHits()
+	{
+	    return hits.get();
+	}
+	
+	/**
+	 * @return The number of public keys that had to be decoded
+	 */
+	public long getMisses()
+	{
+	    return misses.get();
+	}
+	
+	/**
+	 * @return The fraction of the public keys returned from the cache
+	 */
+	public double getHitRate()
+	{
+	    long h = hits.get();
+	    long total = h + misses.get();
+	    return (total == 0) ? 0.0 : (double) h / total;
+	}
+}
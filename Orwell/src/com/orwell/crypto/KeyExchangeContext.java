@@ -0,0 +1,221 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import org.strippedcastle.crypto.DataLengthException;
+import org.strippedcastle.crypto.Digest;
+import org.strippedcastle.crypto.macs.HMac;
+import org.strippedcastle.crypto.params.KeyParameter;
+import org.strippedcastle.util.Memoable;
+
+/**
+ * A reusable context for signing and verifying the keys exchanged using the
+ * Elliptic Curve Gillett (ECG) Exchange, bound to the shared information and
+ * to the role of the user in the exchange. The HMACs are keyed once when the
+ * context is created, signing and verifying a key thereafter only requires 
+ * the HMAC of the key, without any allocation. The signatures are identical
+ * to those of ECGKeyExchange.signPubKey() and verifyPubKey().
+ * 
+ * The context is not thread safe, each thread should use its own context.
+ */
+public class KeyExchangeContext
+{
+    private final boolean isInitiator;
+    private final HMac signMac;
+    private final HMac verifyMac;
+    private final byte[] calcSignature;
+    
+    /**
+     * Creates the context for signing the keys sent and verifying the keys
+     * received, the keys sent are signed using S1 + S2 if initiating the key
+     * exchange or S2 + S1 if responding to a key exchange, and the keys
+     * received are verified using the opposite.
+     * 
+     * @param digest The digest function to use for signing the keys such as SHA256,
+     * the digest is used by the context and must not be shared
+     * @param sharedInfo The shared information, S1 and S2
+     * @param isInitiator True if initiating a key exchange, false if responding to a key exchange
+     * 
+     * @throws DataLengthException if shared information is empty
+     * @throws IllegalArgumentException if the digest does not implement Memoable,
+     * all of the SHA digests do
+     */
+    public KeyExchangeContext(Digest digest, APrioriInfo sharedInfo, boolean isInitiator)
+            throws DataLengthException, IllegalArgumentException
+    {
+        byte[] S1 = sharedInfo.getS1();
+        byte[] S2 = sharedInfo.getS2();
+        
+        if (S1.length == 0 || S2.length == 0)
+        {
+            throw new DataLengthException("The shared information S1 and S2 cannot be null/empty!");
+        }
+        
+        this.isInitiator = isInitiator;
+        this.signMac = new HMac(digest);
+        this.verifyMac = new HMac(newDigest(digest));
+        this.calcSignature = new byte[signMac.getMacSize()];
+        
+        /* The HMACs retain the keyed pad states, they are keyed only once */
+        signMac.init(new KeyParameter(isInitiator ? concat(S1, S2) : concat(S2, S1)));
+        verifyMac.init(new KeyParameter(isInitiator ? concat(S2, S1) : concat(S1, S2)));
+    }
+    
+    /**
+     * Creates a second instance of the digest for the verification HMAC
+     * 
+     * @throws IllegalArgumentException if the digest cannot be copied
+     */
+    private static Digest newDigest(Digest digest) throws IllegalArgumentException
+    {
+        if (!(digest instanceof Memoable))
+        {
+            throw new IllegalArgumentException("The digest must implement Memoable!");
+        }
+        
+        Digest copy = (Digest) ((Memoable) digest).copy();
+        copy.reset();
+        return copy;
+    }
+    
+    private static byte[] concat(byte[] a, byte[] b)
+    {
+        byte[] S = new byte[a.length + b.length];
+        System.arraycopy(a, 0, S, 0, a.length);
+        System.arraycopy(b, 0, S, a.length, b.length);
+        return S;
+    }
+    
+    /**
+     * Signs the ASN.1 encoded public key Q, the same as 
+     * ECGKeyExchange.signPubKey()
+     * 
+     * @param encodedPubKey A byte array of the ASN.1 encoded public key Q
+     * 
+     * @return A byte array containing the public key concatenated with the HMAC
+     */
+    public byte[] signPubKey(byte[] encodedPubKey)
+    {
+        byte[] signedPubKey = new byte[encodedPubKey.length + signMac.getMacSize()];
+        signPubKey(encodedPubKey, 0, encodedPubKey.length, signedPubKey, 0);
+        return signedPubKey;
+    }
+    
+    /**
+     * Signs the ASN.1 encoded public key Q and writes the public key 
+     * concatenated with the HMAC to the output buffer provided, the output
+     * may be the same buffer as the input if the offsets are equal.
+     * 
+     * @param in The buffer containing the encoded public key
+     * @param inOff The offset of the encoded public key
+     * @param inLen The length of the encoded public key
+     * @param out The output buffer for the signed public key
+     * @param outOff The offset in the output buffer to write to
+     * 
+     * @return The length of the signed public key written
+     * 
+     * @throws DataLengthException if the output buffer is too small
+     */
+    public int signPubKey(byte[] in, int inOff, int inLen, byte[] out, int outOff)
+            throws DataLengthException
+    {
+        if (out.length - outOff < inLen + signMac.getMacSize())
+        {
+            throw new DataLengthException("Output buffer too small for the signed public key!");
+        }
+        
+        signMac.update(in, inOff, inLen);
+        
+        if (in != out || inOff != outOff)
+        {
+            System.arraycopy(in, inOff, out, outOff, inLen);
+        }
+        
+        signMac.doFinal(out, outOff + inLen);
+        
+        return inLen + signMac.getMacSize();
+    }
+    
+    /**
+     * Verifies a signed public key received, the same as 
+     * ECGKeyExchange.verifyPubKey()
+     * 
+     * @param signedPubKey byte array containing public key concatenated with the hash of the public key 
+     * 
+     * @return true if the public key is verified to be valid
+     * 
+     * @throws DataLengthException if the signed public key is smaller than the signature
+     */
+    public boolean verifyPubKey(byte[] signedPubKey) throws DataLengthException
+    {
+        return verifyPubKey(signedPubKey, 0, signedPubKey.length);
+    }
+    
+    /**
+     * Verifies a signed public key received in place, such as a slice of
+     * the message containing the key, without copying the key or signature.
+     * 
+     * @param buf The buffer containing the signed public key
+     * @param off The offset of the signed public key
+     * @param len The length of the signed public key, including the signature
+     * 
+     * @return true if the public key is verified to be valid
+     * 
+     * @throws DataLengthException if the signed public key is smaller than the signature
+     */
+    public boolean verifyPubKey(byte[] buf, int off, int len) throws DataLengthException
+    {
+        int macSize = verifyMac.getMacSize();
+        
+        /* Check that the signed public key is large enough to contain the signature */
+        if (len <= macSize)
+        {
+            throw new DataLengthException("Invalid signed public key, it's smaller than signature!");
+        }
+        
+        verifyMac.update(buf, off, len - macSize);
+        verifyMac.doFinal(calcSignature, 0);
+        
+        /* Constant time comparison of the signatures */
+        int diff = 0;
+        
+        for (int i = 0; i < macSize; ++i)
+        {
+            diff |= calcSignature[i] ^ buf[off + len - macSize + i];
+        }
+        
+        return diff == 0;
+    }
+    
+    /**
+     * @return The size of the signature appended to the public keys
+     */
+    public int getMacSize()
+    {
+        return signMac.getMacSize();
+    }
+    
+    /**
+     * @return True if the context is for the user initiating the key exchange
+     */
+    public boolean isInitiator()
+    {
+        return isInitiator;
+    }
+}
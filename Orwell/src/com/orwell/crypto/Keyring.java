@@ -0,0 +1,738 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent keyring of the contacts' public keys, which maps a contact ID 
+ * to the encoded public key of the contact and any key exchange metadata,
+ * such as the public key signed during the ECG Exchange. The public keys are
+ * encoded and decoded using ECGKeyUtil.
+ * 
+ * The keyring is stored in two files, an append-only data file of records 
+ * and an index file which is a hash table of the offsets of the latest record
+ * of each contact. The index is memory-mapped, so a lookup only requires 
+ * probing the mapped table and reading a single record, and opening a keyring
+ * only reads the records appended since the index was last updated rather 
+ * than every record in the keyring. If the index is missing or damaged it is
+ * rebuilt from the data file.
+ * 
+ * Each record is checked using a CRC32, a partially written record at the end
+ * of the data file is discarded when the keyring is opened, while a damaged
+ * record followed by other records is reported and the data file is left as
+ * it is. Updating or removing a contact appends a new record, the previous
+ * records remain in the data file.
+ * 
+ * Record layout, all integers are big-endian:
+ *  - 4 bytes, the length of the rest of the record
+ *  - 4 bytes, the CRC32 of the rest of the record following the CRC32
+ *  - 1 byte, the type of the record, PUT or REMOVE
+ *  - 2 bytes, the length of the contact ID followed by the UTF-8 contact ID
+ *  - 2 bytes, the length of the public key followed by the public key
+ *  - 4 bytes, the length of the metadata followed by the metadata
+ */
+public class Keyring
+{
+    /* The initial number of slots of the index, always a power of two */
+    public static final int DEFAULT_CAPACITY = 1 << 10;
+    
+    /* The file headers, a magic number followed by the version */
+    private static final int DATA_MAGIC = 0x4F4B5252;
+    private static final int INDEX_MAGIC = 0x4F4B5249;
+    private static final int VERSION = 1;
+    private static final int DATA_HEADER_SIZE = 8;
+    
+    /* The index header is the magic, version, capacity, count and the length
+     * of the data file which has been indexed, each slot is the hash of the
+     * contact ID and the offset of its record, 0 if the slot is empty.
+     */
+    private static final int INDEX_HEADER_SIZE = 24;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int LENGTH_OFFSET = 16;
+    private static final int SLOT_SIZE = 12;
+    
+    /* The types of records and the maximum record length */
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final RandomAccessFile dataFile;
+    private final RandomAccessFile indexFile;
+    private final FileChannel data;
+    private final FileChannel index;
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer slots;
+    private int capacity;
+    private int count;
+    private long dataLength;
+    private boolean closed;
+    
+    /**
+     * An entry of the keyring, the contact ID, encoded public key and 
+     * metadata of the contact
+     */
+    public static class Entry
+    {
+        private final String contactId;
+        private final byte[] pubKey;
+        private final byte[] metadata;
+        
+        Entry(String contactId, byte[] pubKey, byte[] metadata)
+        {
+            this.contactId = contactId;
+            this.pubKey = pubKey;
+            this.metadata = metadata;
+        }
+        
+        /**
+         * @return The contact ID
+         */
+        public String getContactId()
+        {
+            return contactId;
+        }
+        
+        /**
+         * @return The encoded public key of the contact
+         */
+        public byte[] getPubKey()
+        {
+            return pubKey;
+        }
+        
+        /**
+         * @return The key exchange metadata of the contact, empty if none
+         */
+        public byte[] getMetadata()
+        {
+            return metadata;
+        }
+    }
+    
+    /**
+     * Opens the keyring stored in the data file specified, the index is stored
+     * in the same directory with the extension ".idx". The files are created
+     * if they do not exist.
+     * 
+     * @param file The data file of the keyring
+     * 
+     * @throws IOException if the files cannot be opened, the data file is 
+     * not a keyring or a record other than the last is damaged
+     */
+    public Keyring(File file) throws IOException
+    {
+        this(file, new File(file.getPath() + ".idx"));
+    }
+    
+    /**
+     * Opens the keyring stored in the data and index files specified, the
+     * files are created if they do not exist.
+     * 
+     * @param file The data file of the keyring
+     * @param indexFile The index file of the keyring
+     * 
+     * @throws IOException if the files cannot be opened, the data file is 
+     * not a keyring or a record other than the last is damaged
+     */
+    public Keyring(File file, File indexFile) throws IOException
+    {
+        this.dataFile = new RandomAccessFile(file, "rw");
+        this.data = dataFile.getChannel();
+        
+        try
+        {
+            openData();
+            this.indexFile = new RandomAccessFile(indexFile, "rw");
+        }
+        catch (IOException e)
+        {
+            dataFile.close();
+            throw e;
+        }
+        
+        this.index = this.indexFile.getChannel();
+        
+        try
+        {
+            openIndex();
+        }
+        catch (IOException e)
+        {
+            this.indexFile.close();
+            dataFile.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Adds the contact's public key to the keyring, replacing the public key 
+     * and metadata of the contact if the contact is already in the keyring.
+     * 
+     * @param contactId The contact ID
+     * @param pubKey The encoded public key of the contact, see ECGKeyUtil
+     * @param metadata The key exchange metadata of the contact, can be null
+     * 
+     * @throws IOException if the record cannot be written
+     * @throws IllegalArgumentException if the contact ID or public key are too long
+     */
+    public synchronized void put(String contactId, byte[] pubKey, byte[] metadata) 
+            throws IOException, IllegalArgumentException
+    {
+        append(PUT, contactId, pubKey, (metadata != null) ? metadata : new byte[0]);
+    }
+    
+    /**
+     * Returns the entry of the contact
+     * 
+     * @param contactId The contact ID
+     * 
+     * @return The entry of the contact, null if the contact is not in the keyring
+     * 
+     * @throws IOException if the record cannot be read or is damaged
+     */
+    public synchronized Entry get(String contactId) throws IOException
+    {
+        checkOpen();
+        
+        byte[] id = contactId.getBytes(UTF8);
+        int slot = find(hash(id), id);
+        
+        if (slot < 0)
+        {
+            return null;
+        }
+        
+        ByteBuffer record = readRecord(getOffset(slot));
+        
+        if (record == null)
+        {
+            throw new IOException("The keyring record of the contact is damaged!");
+        }
+        
+        if (record.get() == REMOVE)
+        {
+            return null;
+        }
+        
+        byte[] readId = readBytes(record, record.getShort() & 0xFFFF);
+        byte[] pubKey = readBytes(record, record.getShort() & 0xFFFF);
+        byte[] metadata = readBytes(record, record.getInt());
+        
+        return new Entry(new String(readId, UTF8), pubKey, metadata);
+    }
+    
+    /**
+     * Removes the contact from the keyring
+     * 
+     * @param contactId The contact ID
+     * 
+     * @return True if the contact was in the keyring
+     * 
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized boolean remove(String contactId) throws IOException
+    {
+        if (get(contactId) == null)
+        {
+            return false;
+        }
+        
+        append(REMOVE, contactId, new byte[0], new byte[0]);
+        return true;
+    }
+    
+    /**
+     * Forces the records and the index to be written to the storage device
+     * 
+     * @throws IOException if the files cannot be written
+     */
+    public synchronized void sync() throws IOException
+    {
+        checkOpen();
+        data.force(false);
+        slots.force();
+    }
+    
+    /**
+     * Writes the records and the index to the storage device and closes the
+     * keyring
+     * 
+     * @throws IOException if the files cannot be written
+     */
+    public synchronized void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        
+        try
+        {
+            sync();
+        }
+        finally
+        {
+            closed = true;
+            slots = null;
+            indexFile.close();
+            dataFile.close();
+        }
+    }
+    
+    /**
+     * @return The number of contact IDs in the index, including those removed
+     */
+    public synchronized int getIndexedCount()
+    {
+        return count;
+    }
+    
+    /**
+     * @return The length of the data file
+     */
+    public synchronized long getDataLength()
+    {
+        return dataLength;
+    }
+    
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("The keyring is closed!");
+        }
+    }
+    
+    /**
+     * Writes the header of a new data file or verifies the header of an
+     * existing data file
+     */
+    private void openData() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_SIZE);
+        
+        if (data.size() == 0)
+        {
+            header.putInt(DATA_MAGIC).putInt(VERSION).flip();
+            write(header, 0);
+        }
+        else if (!read(header, 0) || header.getInt(0) != DATA_MAGIC || header.getInt(4) != VERSION)
+        {
+            throw new IOException("The file is not a keyring!");
+        }
+        
+        dataLength = data.size();
+    }
+    
+    /**
+     * Maps the index and indexes the records appended since it was last 
+     * updated, the index is rebuilt if it is missing or damaged
+     */
+    private void openIndex() throws IOException
+    {
+        long size = index.size();
+        
+        if (size >= INDEX_HEADER_SIZE)
+        {
+            slots = index.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            capacity = slots.getInt(CAPACITY_OFFSET);
+            count = slots.getInt(COUNT_OFFSET);
+            long indexed = slots.getLong(LENGTH_OFFSET);
+            
+            if (slots.getInt(0) == INDEX_MAGIC && slots.getInt(4) == VERSION 
+                && capacity > 0 && (capacity & (capacity - 1)) == 0 
+                && size == INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE
+                && count >= 0 && count <= capacity / 2
+                && indexed >= DATA_HEADER_SIZE && indexed <= dataLength)
+            {
+                replay(indexed);
+                return;
+            }
+        }
+        
+        /* Rebuild the index from all of the records, the damaged index is not
+         * marked as valid until all of the records have been indexed
+         */
+        slots = null;
+        resize(DEFAULT_CAPACITY, null, null);
+        replay(DATA_HEADER_SIZE);
+    }
+    
+    /**
+     * Indexes the records from the offset specified to the end of the data 
+     * file, a partially written record at the end of the data file is 
+     * discarded
+     * 
+     * @throws IOException if a damaged record is followed by other records
+     */
+    private void replay(long offset) throws IOException
+    {
+        while (offset < dataLength)
+        {
+            ByteBuffer record = readRecord(offset);
+            
+            if (record == null)
+            {
+                /* Only a torn write can be safely discarded, truncating a 
+                 * damaged record in the middle would discard every record 
+                 * following it
+                 */
+                if (!isTorn(offset))
+                {
+                    throw new IOException("The keyring record at offset " + offset + " is damaged!");
+                }
+                
+                data.truncate(offset);
+                dataLength = offset;
+                break;
+            }
+            
+            record.get();
+            byte[] id = readBytes(record, record.getShort() & 0xFFFF);
+            insert(hash(id), id, offset);
+            offset += 4 + record.limit() + 4;
+        }
+        
+        slots.putLong(LENGTH_OFFSET, dataLength);
+    }
+    
+    /**
+     * Returns true if the damaged record at the offset runs to the end of the
+     * data file, which is the result of a partially written record
+     */
+    private boolean isTorn(long offset) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        
+        if (!read(header, offset))
+        {
+            return true;
+        }
+        
+        int len = header.getInt(0);
+        
+        return len >= 0 && offset + 4 + len >= dataLength;
+    }
+    
+    /**
+     * Appends a record to the data file and updates the index
+     */
+    private void append(byte type, String contactId, byte[] pubKey, byte[] metadata) 
+            throws IOException, IllegalArgumentException
+    {
+        checkOpen();
+        
+        byte[] id = contactId.getBytes(UTF8);
+        
+        if (id.length > 0xFFFF || pubKey.length > 0xFFFF)
+        {
+            throw new IllegalArgumentException("The contact ID and public key must be less than 64 KiB!");
+        }
+        
+        int len = 4 + 1 + 2 + id.length + 2 + pubKey.length + 4 + metadata.length;
+        
+        if (len > MAX_RECORD_SIZE)
+        {
+            throw new IllegalArgumentException("The keyring record must be less than 1 MiB!");
+        }
+        
+        ByteBuffer record = ByteBuffer.allocate(4 + len);
+        record.putInt(len).putInt(0).put(type);
+        record.putShort((short) id.length).put(id);
+        record.putShort((short) pubKey.length).put(pubKey);
+        record.putInt(metadata.length).put(metadata);
+        
+        crc.reset();
+        crc.update(record.array(), 8, len - 4);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        
+        long offset = dataLength;
+        write(record, offset);
+        dataLength += record.capacity();
+        
+        insert(hash(id), id, offset);
+        slots.putLong(LENGTH_OFFSET, dataLength);
+    }
+    
+    /**
+     * Reads the record at the offset and verifies its CRC32, the buffer 
+     * returned is positioned at the type of the record
+     * 
+     * @return The record, null if the record is incomplete or damaged
+     */
+    private ByteBuffer readRecord(long offset) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        
+        if (!read(header, offset))
+        {
+            return null;
+        }
+        
+        int len = header.getInt(0) - 4;
+        
+        if (len < 9 || len > MAX_RECORD_SIZE)
+        {
+            return null;
+        }
+        
+        ByteBuffer record = ByteBuffer.allocate(len);
+        
+        if (!read(record, offset + 8))
+        {
+            return null;
+        }
+        
+        crc.reset();
+        crc.update(record.array(), 0, len);
+        
+        if ((int) crc.getValue() != header.getInt(4))
+        {
+            return null;
+        }
+        
+        record.rewind();
+        return record;
+    }
+    
+    /**
+     * Returns the slot of the contact ID, or -1 if it is not in the index
+     */
+    private int find(int hash, byte[] id) throws IOException
+    {
+        int mask = capacity - 1;
+        
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask)
+        {
+            long offset = getOffset(slot);
+            
+            if (offset == 0)
+            {
+                return -1;
+            }
+            
+            if (getHash(slot) == hash && Arrays.equals(id, readId(offset)))
+            {
+                return slot;
+            }
+        }
+    }
+    
+    /**
+     * Points the slot of the contact ID to the record at the offset, the index
+     * is doubled in size if more than half of the slots are used
+     */
+    private void insert(int hash, byte[] id, long offset) throws IOException
+    {
+        int slot = find(hash, id);
+        
+        if (slot >= 0)
+        {
+            setOffset(slot, offset);
+            return;
+        }
+        
+        if (count + 1 > capacity / 2)
+        {
+            int[] hashes = new int[count];
+            long[] offsets = new long[count];
+            int n = 0;
+            
+            for (int i = 0; i < capacity; ++i)
+            {
+                if (getOffset(i) != 0)
+                {
+                    hashes[n] = getHash(i);
+                    offsets[n++] = getOffset(i);
+                }
+            }
+            
+            resize(capacity * 2, hashes, offsets);
+        }
+        
+        put(hash, offset);
+        slots.putInt(COUNT_OFFSET, ++count);
+    }
+    
+    /**
+     * Resizes the index and inserts the slots, the length of the data file
+     * indexed is cleared until the resize is complete so that an interrupted 
+     * resize results in the index being rebuilt.
+     */
+    private void resize(int newCapacity, int[] hashes, long[] offsets) throws IOException
+    {
+        long indexed = (slots != null) ? slots.getLong(LENGTH_OFFSET) : 0;
+        
+        if (slots != null)
+        {
+            slots.putLong(LENGTH_OFFSET, 0);
+            slots.force();
+        }
+        
+        long size = INDEX_HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+        indexFile.setLength(size);
+        slots = index.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        
+        for (int i = 0; i < size; i += 8)
+        {
+            slots.putLong(i, 0);
+        }
+        
+        capacity = newCapacity;
+        count = (hashes != null) ? hashes.length : 0;
+        
+        for (int i = 0; i < count; ++i)
+        {
+            put(hashes[i], offsets[i]);
+        }
+        
+        slots.putInt(0, INDEX_MAGIC);
+        slots.putInt(4, VERSION);
+        slots.putInt(CAPACITY_OFFSET, capacity);
+        slots.putInt(COUNT_OFFSET, count);
+        slots.putLong(LENGTH_OFFSET, indexed);
+    }
+    
+    /**
+     * Puts the hash and offset in the first empty slot
+     */
+    private void put(int hash, long offset)
+    {
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        
+        while (getOffset(slot) != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+        
+        slots.putInt(INDEX_HEADER_SIZE + slot * SLOT_SIZE, hash);
+        setOffset(slot, offset);
+    }
+    
+    private int getHash(int slot)
+    {
+        return slots.getInt(INDEX_HEADER_SIZE + slot * SLOT_SIZE);
+    }
+    
+    private long getOffset(int slot)
+    {
+        return slots.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + 4);
+    }
+    
+    private void setOffset(int slot, long offset)
+    {
+        slots.putLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + 4, offset);
+    }
+    
+    /**
+     * Reads the contact ID of the record at the offset
+     */
+    private byte[] readId(long offset) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(11);
+        
+        if (!read(header, offset))
+        {
+            throw new IOException("The keyring record of the contact is damaged!");
+        }
+        
+        byte[] id = new byte[header.getShort(9) & 0xFFFF];
+        
+        if (!read(ByteBuffer.wrap(id), offset + 11))
+        {
+            throw new IOException("The keyring record of the contact is damaged!");
+        }
+        
+        return id;
+    }
+    
+    /**
+     * The FNV-1a hash of the contact ID, which unlike String.hashCode() is 
+     * well distributed in the low bits used to select the slot
+     */
+    private static int hash(byte[] id)
+    {
+        int hash = 0x811C9DC5;
+        
+        for (int i = 0; i < id.length; ++i)
+        {
+            hash ^= id[i] & 0xFF;
+            hash *= 0x01000193;
+        }
+        
+        return hash ^ (hash >>> 16);
+    }
+    
+    private static byte[] readBytes(ByteBuffer buf, int len) throws IOException
+    {
+        if (len < 0 || len > buf.remaining())
+        {
+            throw new IOException("The keyring record of the contact is damaged!");
+        }
+        
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        
+        return bytes;
+    }
+    
+    /**
+     * Reads the buffer from the data file at the offset
+     * 
+     * @return False if the end of the data file was reached
+     */
+    private boolean read(ByteBuffer buf, long offset) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            int n = data.read(buf, offset);
+            
+            if (n < 0)
+            {
+                return false;
+            }
+            
+            offset += n;
+        }
+        
+        return true;
+    }
+    
+    private void write(ByteBuffer buf, long offset) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            offset += data.write(buf, offset);
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The X25519 function of RFC 7748, the Diffie-Hellman function on 
+ * Curve25519. It is an alternative to ECDH on the NIST curves, the keys are
+ * 32 bytes and the public keys are only the u-coordinate of the point, so no
+ * point compression or decompression is needed.
+ * 
+ * The scalar multiplication uses the constant time Montgomery ladder of RFC
+ * 7748 with the field elements represented as 10 limbs of alternately 26 and
+ * 25 bits, the conditional swaps and the field arithmetic do not depend on
+ * the value of the private key.
+ */
+public abstract class X25519
+{
+    /* The size of the private keys, public keys and agreement in bytes */
+    public static final int KEY_SIZE = 32;
+    
+    /* The number of limbs of a field element */
+    private static final int LIMBS = 10;
+    
+    /* (A - 2) / 4 = 121665, where A is the Montgomery curve constant */
+    private static final int A24 = 121665;
+    
+    /* The u-coordinate of the base point, 9 */
+    private static final byte[] BASE_POINT = new byte[KEY_SIZE];
+    
+    static
+    {
+        BASE_POINT[0] = 9;
+    }
+    
+    /**
+     * Generates a private key, the random bytes are clamped as specified in
+     * RFC 7748.
+     * 
+     * @param random The source of randomness for the private key
+     * @param k The buffer of KEY_SIZE bytes for the private key
+     */
+    public static void generatePrivateKey(SecureRandom random, byte[] k)
+    {
+        random.nextBytes(k);
+        
+        k[0] &= 0xF8;
+        k[31] &= 0x7F;
+        k[31] |= 0x40;
+    }
+    
+    /**
+     * Calculates the public key of the private key, the private key multiplied
+     * by the base point.
+     * 
+     * @param k The private key
+     * @param kOff The offset of the private key
+     * @param r The buffer for the public key
+     * @param rOff The offset in the buffer to write the public key to
+     */
+    public static void generatePublicKey(byte[] k, int kOff, byte[] r, int rOff)
+    {
+        scalarMult(k, kOff, BASE_POINT, 0, r, rOff);
+    }
+    
+    /**
+     * Calculates the agreement of the private key and the peer's public key.
+     * 
+     * @param k The private key
+     * @param kOff The offset of the private key
+     * @param u The peer's public key
+     * @param uOff The offset of the peer's public key
+     * @param r The buffer for the agreement
+     * @param rOff The offset in the buffer to write the agreement to
+     * 
+     * @throws IllegalStateException if the agreement is zero, the peer's public
+     * key is then a point of small order
+     */
+    public static void calculateAgreement(byte[] k, int kOff, byte[] u, int uOff, byte[] r, int rOff)
+            throws IllegalStateException
+    {
+        scalarMult(k, kOff, u, uOff, r, rOff);
+        
+        int bits = 0;
+        
+        for (int i = 0; i < KEY_SIZE; ++i)
+        {
+            bits |= r[rOff + i];
+        }
+        
+        if (bits == 0)
+        {
+            throw new IllegalStateException("Zero is not a valid agreement value for X25519");
+        }
+    }
+    
+    /**
+     * Multiplies the point with the u-coordinate u by the clamped scalar k
+     * using the Montgomery ladder and writes the u-coordinate of the result.
+     */
+    private static void scalarMult(byte[] k, int kOff, byte[] u, int uOff, byte[] r, int rOff)
+    {
+        byte[] z = new byte[KEY_SIZE];
+        long[] x1 = new long[LIMBS];
+        long[] x2 = new long[LIMBS];
+        long[] z2 = new long[LIMBS];
+        long[] x3 = new long[LIMBS];
+        long[] z3 = new long[LIMBS];
+        long[] A = new long[LIMBS];
+        long[] AA = new long[LIMBS];
+        long[] B = new long[LIMBS];
+        long[] BB = new long[LIMBS];
+        long[] E = new long[LIMBS];
+        long[] C = new long[LIMBS];
+        long[] D = new long[LIMBS];
+        
+        System.arraycopy(k, kOff, z, 0, KEY_SIZE);
+        z[0] &= 0xF8;
+        z[31] &= 0x7F;
+        z[31] |= 0x40;
+        
+        decode(u, uOff, x1);
+        System.arraycopy(x1, 0, x3, 0, LIMBS);
+        x2[0] = 1;
+        z3[0] = 1;
+        
+        int swap = 0;
+        
+        for (int t = 254; t >= 0; --t)
+        {
+            int bit = (z[t >>> 3] >>> (t & 7)) & 1;
+            
+            swap ^= bit;
+            swap(x2, x3, swap);
+            swap(z2, z3, swap);
+            swap = bit;
+            
+            add(A, x2, z2);
+            mul(AA, A, A);
+            sub(B, x2, z2);
+            mul(BB, B, B);
+            sub(E, AA, BB);
+            add(C, x3, z3);
+            sub(D, x3, z3);
+            
+            /* DA and CB are kept in D and C */
+            mul(D, D, A);
+            mul(C, C, B);
+            add(x3, D, C);
+            mul(x3, x3, x3);
+            sub(z3, D, C);
+            mul(z3, z3, z3);
+            mul(z3, z3, x1);
+            
+            mul(x2, AA, BB);
+            mulA24(z2, E);
+            add(z2, z2, AA);
+            mul(z2, z2, E);
+        }
+        
+        swap(x2, x3, swap);
+        swap(z2, z3, swap);
+        
+        invert(z2, z2);
+        mul(x2, x2, z2);
+        encode(x2, r, rOff);
+        
+        Arrays.fill(z, (byte) 0);
+        
+        for (long[] fe : new long[][] { x1, x2, z2, x3, z3, A, AA, B, BB, E, C, D })
+        {
+            Arrays.fill(fe, 0);
+        }
+    }
+    
+    /**
+     * Decodes the little-endian u-coordinate, the most significant bit is ignored
+     */
+    private static void decode(byte[] n, int nOff, long[] h)
+    {
+        long acc = 0;
+        int bits = 0;
+        int pos = nOff;
+        
+        for (int i = 0; i < LIMBS; ++i)
+        {
+            int width = 26 - (i & 1);
+            
+            while (bits < width)
+            {
+                acc |= (long) (n[pos++] & 0xFF) << bits;
+                bits += 8;
+            }
+            
+            h[i] = acc & ((1L << width) - 1);
+            acc >>>= width;
+            bits -= width;
+        }
+    }
+    
+    /**
+     * Encodes the field element fully reduced modulo p as little-endian bytes,
+     * the field element must be carried.
+     */
+    private static void encode(long[] h, byte[] s, int sOff)
+    {
+        long[] t = h.clone();
+        
+        /* Determine in constant time if h >= p, q is then 1 otherwise 0 */
+        long q = (19 * t[9] + (1L << 24)) >> 25;
+        
+        for (int i = 0; i < LIMBS; ++i)
+        {
+            q = (t[i] + q) >> (26 - (i & 1));
+        }
+        
+        /* Subtract q * p by adding 19 * q and discarding bit 255 */
+        t[0] += 19 * q;
+        
+        for (int i = 0; i < LIMBS - 1; ++i)
+        {
+            int width = 26 - (i & 1);
+            long carry = t[i] >> width;
+            t[i + 1] += carry;
+            t[i] -= carry << width;
+        }
+        
+        t[9] &= (1L << 25) - 1;
+        
+        long acc = 0;
+        int bits = 0;
+        int pos = sOff;
+        
+        for (int i = 0; i < LIMBS; ++i)
+        {
+            acc |= t[i] << bits;
+            bits += 26 - (i & 1);
+            
+            while (bits >= 8)
+            {
+                s[pos++] = (byte) acc;
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        
+        s[pos] = (byte) acc;
+        Arrays.fill(t, 0);
+    }
+    
+    /**
+     * Swaps f and g in constant time if b is 1, leaves them if b is 0
+     */
+    private static void swap(long[] f, long[] g, int b)
+    {
+        long mask = -b;
+        
+        for (int i = 0; i < LIMBS; ++i)
+        {
+            long t = mask & (f[i] ^ g[i]);
+            f[i] ^= t;
+            g[i] ^= t;
+        }
+    }
+    
+    private static void add(long[] h, long[] f, long[] g)
+    {
+        for (int i = 0; i < LIMBS; ++i)
+        {
+            h[i] = f[i] + g[i];
+        }
+    }
+    
+    private static void sub(long[] h, long[] f, long[] g)
+    {
+        for (int i = 0; i < LIMBS; ++i)
+        {
+            h[i] = f[i] - g[i];
+        }
+    }
+    
+    /**
+     * Multiplies f and g, h can be either f or g. The products of limbs which
+     * exceed 2^255 are multiplied by 19 as 2^255 = 19 mod p, the products of
+     * two odd limbs are doubled as the odd limbs are 25 bits.
+     */
+    private static void mul(long[] h, long[] f, long[] g)
+    {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+        long f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4];
+        long g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+        
+        long g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4, g5_19 = 19 * g5;
+        long g6_19 = 19 * g6, g7_19 = 19 * g7, g8_19 = 19 * g8, g9_19 = 19 * g9;
+        long f1_2 = 2 * f1, f3_2 = 2 * f3, f5_2 = 2 * f5, f7_2 = 2 * f7, f9_2 = 2 * f9;
+        
+        long h0 = f0 * g0 + f1_2 * g9_19 + f2 * g8_19 + f3_2 * g7_19 + f4 * g6_19 
+                + f5_2 * g5_19 + f6 * g4_19 + f7_2 * g3_19 + f8 * g2_19 + f9_2 * g1_19;
+        long h1 = f0 * g1 + f1 * g0 + f2 * g9_19 + f3 * g8_19 + f4 * g7_19 
+                + f5 * g6_19 + f6 * g5_19 + f7 * g4_19 + f8 * g3_19 + f9 * g2_19;
+        long h2 = f0 * g2 + f1_2 * g1 + f2 * g0 + f3_2 * g9_19 + f4 * g8_19 
+                + f5_2 * g7_19 + f6 * g6_19 + f7_2 * g5_19 + f8 * g4_19 + f9_2 * g3_19;
+        long h3 = f0 * g3 + f1 * g2 + f2 * g1 + f3 * g0 + f4 * g9_19 
+                + f5 * g8_19 + f6 * g7_19 + f7 * g6_19 + f8 * g5_19 + f9 * g4_19;
+        long h4 = f0 * g4 + f1_2 * g3 + f2 * g2 + f3_2 * g1 + f4 * g0 
+                + f5_2 * g9_19 + f6 * g8_19 + f7_2 * g7_19 + f8 * g6_19 + f9_2 * g5_19;
+        long h5 = f0 * g5 + f1 * g4 + f2 * g3 + f3 * g2 + f4 * g1 
+                + f5 * g0 + f6 * g9_19 + f7 * g8_19 + f8 * g7_19 + f9 * g6_19;
+        long h6 = f0 * g6 + f1_2 * g5 + f2 * g4 + f3_2 * g3 + f4 * g2 
+                + f5_2 * g1 + f6 * g0 + f7_2 * g9_19 + f8 * g8_19 + f9_2 * g7_19;
+        long h7 = f0 * g7 + f1 * g6 + f2 * g5 + f3 * g4 + f4 * g3 
+                + f5 * g2 + f6 * g1 + f7 * g0 + f8 * g9_19 + f9 * g8_19;
+        long h8 = f0 * g8 + f1_2 * g7 + f2 * g6 + f3_2 * g5 + f4 * g4 
+                + f5_2 * g3 + f6 * g2 + f7_2 * g1 + f8 * g0 + f9_2 * g9_19;
+        long h9 = f0 * g9 + f1 * g8 + f2 * g7 + f3 * g6 + f4 * g5 
+                + f5 * g4 + f6 * g3 + f7 * g2 + f8 * g1 + f9 * g0;
+        
+        h[0] = h0; h[1] = h1; h[2] = h2; h[3] = h3; h[4] = h4;
+        h[5] = h5; h[6] = h6; h[7] = h7; h[8] = h8; h[9] = h9;
+        carry(h);
+    }
+    
+    /**
+     * Multiplies f by (A - 2) / 4
+     */
+    private static void mulA24(long[] h, long[] f)
+    {
+        for (int i = 0; i < LIMBS; ++i)
+        {
+            h[i] = f[i] * A24;
+        }
+        
+        carry(h);
+    }
+    
+    /**
+     * Reduces the limbs to 26 and 25 bits, the carry out of the top limb is
+     * multiplied by 19 as 2^255 = 19 mod p. The carries of the limbs are
+     * interleaved as in the reference implementation to shorten the chains.
+     */
+    private static void carry(long[] h)
+    {
+        carry(h, 0);
+        carry(h, 4);
+        carry(h, 1);
+        carry(h, 5);
+        carry(h, 2);
+        carry(h, 6);
+        carry(h, 3);
+        carry(h, 7);
+        carry(h, 4);
+        carry(h, 8);
+        
+        long c = (h[9] + (1L << 24)) >> 25;
+        h[0] += c * 19;
+        h[9] -= c << 25;
+        
+        carry(h, 0);
+    }
+    
+    private static void carry(long[] h, int i)
+    {
+        int width = 26 - (i & 1);
+        long c = (h[i] + (1L << (width - 1))) >> width;
+        h[i + 1] += c;
+        h[i] -= c << width;
+    }
+    
+    /**
+     * Squares f n times
+     */
+    private static void square(long[] h, long[] f, int n)
+    {
+        mul(h, f, f);
+        
+        for (int i = 1; i < n; ++i)
+        {
+            mul(h, h, h);
+        }
+    }
+    
+    /**
+     * Calculates the inverse of z as z^(p - 2), where p - 2 = 2^255 - 21, 
+     * using the addition chain of the reference implementation
+     */
+    private static void invert(long[] out, long[] z)
+    {
+        long[] t0 = new long[LIMBS];
+        long[] t1 = new long[LIMBS];
+        long[] t2 = new long[LIMBS];
+        long[] t3 = new long[LIMBS];
+        
+        square(t0, z, 1);
+        square(t1, t0, 2);
+        mul(t1, z, t1);
+        mul(t0, t0, t1);
+        square(t2, t0, 1);
+        mul(t1, t1, t2);
+        square(t2, t1, 5);
+        mul(t1, t2, t1);
+        square(t2, t1, 10);
+        mul(t2, t2, t1);
+        square(t3, t2, 20);
+        mul(t2, t3, t2);
+        square(t2, t2, 10);
+        mul(t1, t2, t1);
+        square(t2, t1, 50);
+        mul(t2, t2, t1);
+        square(t3, t2, 100);
+        mul(t2, t3, t2);
+        square(t2, t2, 50);
+        mul(t1, t2, t1);
+        square(t1, t1, 5);
+        mul(out, t1, t0);
+        
+        Arrays.fill(t0, 0);
+        Arrays.fill(t1, 0);
+        Arrays.fill(t2, 0);
+        Arrays.fill(t3, 0);
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.crypto;
+
+import java.security.SecureRandom;
+
+import org.strippedcastle.crypto.AsymmetricCipherKeyPair;
+import org.strippedcastle.crypto.CipherParameters;
+
+import com.orwell.params.X25519PrivateKeyParameters;
+import com.orwell.params.X25519PublicKeyParameters;
+
+/**
+ * A wrapper class that simplifies the creation of a private/public X25519
+ * keypair, the alternative to the Elliptic Curve keypairs of ECKey. The keys
+ * can be used with the ECEngine and the ECG Exchange in place of the Elliptic
+ * Curve keys, both users must use the same type of keys.
+ */
+public class X25519Key
+{
+	private SecureRandom random;
+	private AsymmetricCipherKeyPair keyPair;
+	
+	/**
+	 * X25519Key object constructor
+	 */
+	public X25519Key()
+	{
+	    this.random = new SecureRandom();
+	}
+	
+	/**
+	 * Generates a keypair, the private key is 32 random bytes clamped as 
+	 * specified in RFC 7748 and the public key is the private key multiplied 
+	 * by the base point.
+	 */
+	public void init()
+	{
+	    byte[] k = new byte[X25519.KEY_SIZE];
+	    byte[] u = new byte[X25519.KEY_SIZE];
+	    
+	    X25519.generatePrivateKey(random, k);
+	    X25519.generatePublicKey(k, 0, u, 0);
+	    
+	    keyPair = new AsymmetricCipherKeyPair(new X25519PublicKeyParameters(u, 0),
+	                                          new X25519PrivateKeyParameters(k, 0));
+	    
+	    for (int i = 0; i < k.length; ++i)
+	    {
+	        k[i] = 0;
+	    }
+	}
+	
+	/**
+	 * Wrapper for AsymmetricCipherKeyPair getPrivate()
+	 * 
+	 * @return The private key parameters
+	 */
+	public CipherParameters getPrivate()
+	{
+	    return keyPair.getPrivate();
+	}
+	
+	/**
+	 * Wrapper for AsymmetricCipherKeyPair getPublic()
+	 * 
+	 * @return The public key parameters
+	 */
+	public CipherParameters getPublic()
+	{
+	    return keyPair.getPublic();
+	}
+}
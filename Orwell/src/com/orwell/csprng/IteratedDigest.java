@@ -0,0 +1,269 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.csprng;
+
+import java.util.Arrays;
+
+import org.strippedcastle.crypto.Digest;
+import org.strippedcastle.crypto.digests.SHA256Digest;
+import org.strippedcastle.crypto.digests.SHA512Digest;
+
+/**
+ * Specialized iterations of SHA256 and SHA512 for the SDFGenerator, where the
+ * digest is repeatedly applied to its own output. As each message is exactly
+ * the size of the digest, the message is a single padded block whose first 
+ * words are the previous hash and whose remaining words are constant. The 
+ * hash words are therefore used directly as the message schedule, without
+ * converting to and from bytes or buffering, and the working block is 
+ * preallocated so that the iterations do not allocate.
+ */
+abstract class IteratedDigest
+{
+    /**
+     * Returns the specialized iterations for the digest
+     * 
+     * @param digest The digest of the SDFGenerator
+     * 
+     * @return The specialized iterations, null if the digest is not SHA256 or SHA512
+     */
+    static IteratedDigest getInstance(Digest digest)
+    {
+        if (digest.getClass() == SHA256Digest.class)
+        {
+            return new SHA256();
+        }
+        else if (digest.getClass() == SHA512Digest.class)
+        {
+            return new SHA512();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Replaces the seed with the digest applied to the seed the number of
+     * iterations specified
+     * 
+     * @param seed The seed, the size of the digest
+     * @param iterations The number of iterations of the digest
+     */
+    abstract void iterate(byte[] seed, int iterations);
+    
+    /**
+     * The iterations of SHA256, FIPS 180-4 section 6.2
+     */
+    static final class SHA256 extends IteratedDigest
+    {
+        private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+        };
+        
+        private static final int[] IV = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 
+            0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+        };
+        
+        private final int[] W = new int[64];
+        
+        void iterate(byte[] seed, int iterations)
+        {
+            int[] W = this.W;
+            
+            for (int i = 0; i < 8; ++i)
+            {
+                W[i] = (seed[4 * i] << 24) | ((seed[4 * i + 1] & 0xFF) << 16) 
+                     | ((seed[4 * i + 2] & 0xFF) << 8) | (seed[4 * i + 3] & 0xFF);
+            }
+            
+            /* The padding, a one bit and the length of the message, 256 bits */
+            W[8] = 0x80000000;
+            Arrays.fill(W, 9, 15, 0);
+            W[15] = 256;
+            
+            for (int n = 0; n < iterations; ++n)
+            {
+                for (int t = 16; t < 64; ++t)
+                {
+                    int x = W[t - 15];
+                    int y = W[t - 2];
+                    int s0 = ((x >>> 7) | (x << 25)) ^ ((x >>> 18) | (x << 14)) ^ (x >>> 3);
+                    int s1 = ((y >>> 17) | (y << 15)) ^ ((y >>> 19) | (y << 13)) ^ (y >>> 10);
+                    W[t] = W[t - 16] + s0 + W[t - 7] + s1;
+                }
+                
+                int a = IV[0], b = IV[1], c = IV[2], d = IV[3];
+                int e = IV[4], f = IV[5], g = IV[6], h = IV[7];
+                
+                for (int t = 0; t < 64; ++t)
+                {
+                    int S1 = ((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21)) ^ ((e >>> 25) | (e << 7));
+                    int T1 = h + S1 + ((e & f) ^ (~e & g)) + K[t] + W[t];
+                    int S0 = ((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19)) ^ ((a >>> 22) | (a << 10));
+                    int T2 = S0 + ((a & b) ^ (a & c) ^ (b & c));
+                    
+                    h = g;
+                    g = f;
+                    f = e;
+                    e = d + T1;
+                    d = c;
+                    c = b;
+                    b = a;
+                    a = T1 + T2;
+                }
+                
+                /* The hash is the message of the next iteration */
+                W[0] = IV[0] + a;
+                W[1] = IV[1] + b;
+                W[2] = IV[2] + c;
+                W[3] = IV[3] + d;
+                W[4] = IV[4] + e;
+                W[5] = IV[5] + f;
+                W[6] = IV[6] + g;
+                W[7] = IV[7] + h;
+            }
+            
+            for (int i = 0; i < 8; ++i)
+            {
+                seed[4 * i] = (byte) (W[i] >>> 24);
+                seed[4 * i + 1] = (byte) (W[i] >>> 16);
+                seed[4 * i + 2] = (byte) (W[i] >>> 8);
+                seed[4 * i + 3] = (byte) W[i];
+            }
+            
+            Arrays.fill(W, 0);
+        }
+    }
+    
+    /**
+     * The iterations of SHA512, FIPS 180-4 section 6.4
+     */
+    static final class SHA512 extends IteratedDigest
+    {
+        private static final long[] K = {
+            0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+            0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+            0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+            0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+            0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+            0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+            0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+            0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+            0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+            0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+            0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+            0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+            0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+            0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+            0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+            0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+            0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+            0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+            0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+            0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+        };
+        
+        private static final long[] IV = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L, 
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+        };
+        
+        private final long[] W = new long[80];
+        
+        void iterate(byte[] seed, int iterations)
+        {
+            long[] W = this.W;
+            
+            for (int i = 0; i < 8; ++i)
+            {
+                long w = 0;
+                
+                for (int j = 0; j < 8; ++j)
+                {
+                    w = (w << 8) | (seed[8 * i + j] & 0xFF);
+                }
+                
+                W[i] = w;
+            }
+            
+            /* The padding, a one bit and the length of the message, 512 bits */
+            W[8] = 0x8000000000000000L;
+            Arrays.fill(W, 9, 15, 0);
+            W[15] = 512;
+            
+            for (int n = 0; n < iterations; ++n)
+            {
+                for (int t = 16; t < 80; ++t)
+                {
+                    long x = W[t - 15];
+                    long y = W[t - 2];
+                    long s0 = ((x >>> 1) | (x << 63)) ^ ((x >>> 8) | (x << 56)) ^ (x >>> 7);
+                    long s1 = ((y >>> 19) | (y << 45)) ^ ((y >>> 61) | (y << 3)) ^ (y >>> 6);
+                    W[t] = W[t - 16] + s0 + W[t - 7] + s1;
+                }
+                
+                long a = IV[0], b = IV[1], c = IV[2], d = IV[3];
+                long e = IV[4], f = IV[5], g = IV[6], h = IV[7];
+                
+                for (int t = 0; t < 80; ++t)
+                {
+                    long S1 = ((e >>> 14) | (e << 50)) ^ ((e >>> 18) | (e << 46)) ^ ((e >>> 41) | (e << 23));
+                    long T1 = h + S1 + ((e & f) ^ (~e & g)) + K[t] + W[t];
+                    long S0 = ((a >>> 28) | (a << 36)) ^ ((a >>> 34) | (a << 30)) ^ ((a >>> 39) | (a << 25));
+                    long T2 = S0 + ((a & b) ^ (a & c) ^ (b & c));
+                    
+                    h = g;
+                    g = f;
+                    f = e;
+                    e = d + T1;
+                    d = c;
+                    c = b;
+                    b = a;
+                    a = T1 + T2;
+                }
+                
+                /* The hash is the message of the next iteration */
+                W[0] = IV[0] + a;
+                W[1] = IV[1] + b;
+                W[2] = IV[2] + c;
+                W[3] = IV[3] + d;
+                W[4] = IV[4] + e;
+                W[5] = IV[5] + f;
+                W[6] = IV[6] + g;
+                W[7] = IV[7] + h;
+            }
+            
+            for (int i = 0; i < 8; ++i)
+            {
+                for (int j = 0; j < 8; ++j)
+                {
+                    seed[8 * i + j] = (byte) (W[i] >>> (56 - 8 * j));
+                }
+            }
+            
+            Arrays.fill(W, 0);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.csprng;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.strippedcastle.crypto.Digest;
+import org.strippedcastle.crypto.digests.SHA256Digest;
+
+/**
+ * An opt-in cache of the seeds derived by the SDFGenerator, so that deriving
+ * the seed again for the same shared information, such as when a conversation
+ * is resumed or a dictionary is rebuilt, does not repeat the iterations of 
+ * the digest. See SDFGenerator.setCache().
+ * 
+ * The seeds are keyed by the SHA256 digest of the shared information S1 & S2,
+ * the digest algorithm and the number of iterations, so the shared information
+ * itself is not kept by the cache. The least recently used seed is evicted 
+ * once the cache reaches its capacity, the seeds are erased when they are 
+ * evicted, replaced, removed or the cache is cleared.
+ * 
+ * The cache is thread safe and may be shared by multiple generators.
+ */
+public class SDFCache
+{
+	/* The default number of seeds to cache */
+	public static final int DEFAULT_CAPACITY = 16;
+	
+	private final int capacity;
+	private final LinkedHashMap<ByteBuffer, byte[]> seeds;
+	private long hits;
+	private long misses;
+	
+	/**
+	 * The default constructor, creates a cache of up to DEFAULT_CAPACITY seeds
+	 */
+	public SDFCache()
+	{
+	    this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Creates a cache of up to the number of seeds specified
+	 * 
+	 * @param capacity The maximum number of seeds to cache
+	 * 
+	 * @throws IllegalArgumentException if the capacity is not positive
+	 */
+	public SDFCache(int capacity) throws IllegalArgumentException
+	{
+	    if (capacity <= 0)
+	    {
+	        throw new IllegalArgumentException("The capacity of the cache must be greater than zero!");
+	    }
+	    
+	    this.capacity = capacity;
+	    this.seeds = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true)
+	    {
+	        private static final long serialVersionUID = 1L;
+	        
+	        @Override
+	        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest)
+	        {
+	            if (size() > SDFCache.this.capacity)
+	            {
+	                Arrays.fill(eldest.getValue(), (byte) 0);
+	                return true;
+	            }
+	            
+	            return false;
+	        }
+	    };
+	}
+	
+	/**
+	 * Copies the seed cached for the derivation into the seed buffer
+	 * 
+	 * @param key The key of the derivation, see getKey()
+	 * @param seed The buffer for the seed
+	 * 
+	 * @return True if the seed was cached
+	 */
+	boolean get(ByteBuffer key, byte[] seed)
+	{
+	    synchronized (seeds)
+	    {
+	        byte[] cached = seeds.get(key);
+	        
+	        if (cached == null || cached.length != seed.length)
+	        {
+	            ++misses;
+	            return false;
+	        }
+	        
+	        System.arraycopy(cached, 0, seed, 0, seed.length);
+	        ++hits;
+	        return true;
+	    }
+	}
+	
+	/**
+	 * Adds a copy of the seed derived to the cache
+	 * 
+	 * @param key The key of the derivation, see getKey()
+	 * @param seed The seed derived
+	 */
+	void put(ByteBuffer key, byte[] seed)
+	{
+	    synchronized (seeds)
+	    {
+	        byte[] previous = seeds.put(key, seed.clone());
+	        
+	        if (previous != null)
+	        {
+	            Arrays.fill(previous, (byte) 0);
+	        }
+	    }
+	}
+	
+	/**
+	 * Returns the key of a derivation, the SHA256 digest of the lengths and
+	 * values of S1 & S2, the digest algorithm name and the number of iterations
+	 * 
+	 * @param S1 Shared information S1
+	 * @param S2 Shared information S2
+	 * @param digest The digest used by the generator
+	 * @param iterations The number of iterations of the digest
+	 * 
+	 * @return The key of the derivation
+	 */
+	static ByteBuffer getKey(byte[] S1, byte[] S2, Digest digest, int iterations)
+	{
+	    byte[] algorithm = digest.getAlgorithmName().getBytes();
+	    SHA256Digest sha256 = new SHA256Digest();
+	    byte[] key = new byte[sha256.getDigestSize()];
+	    
+	    update(sha256, S1);
+	    update(sha256, S2);
+	    update(sha256, algorithm);
+	    
+	    for (int i = 24; i >= 0; i -= 8)
+	    {
+	        sha256.update((byte) (iterations >>> i));
+	    }
+	    
+	    sha256.doFinal(key, 0);
+	    
+	    return ByteBuffer.wrap(key);
+	}
+	
+	/**
+	 * Updates the digest with the length of the input followed by the input
+	 */
+	private static void update(Digest digest, byte[] in)
+	{
+	    for (int i = 24; i >= 0; i -= 8)
+	    {
+	        digest.update((byte) (in.length >>> i));
+	    }
+	    
+	    digest.update(in, 0, in.length);
+	}
+	
+	/**
+	 * Removes and erases the seed cached for the shared information
+	 * 
+	 * @param S1 Shared information S1
+	 * @param S2 Shared information S2
+	 * @param digest The digest used by the generator
+	 * @param iterations The number of iterations of the digest
+	 */
+	public void remove(byte[] S1, byte[] S2, Digest digest, int iterations)
+	{
+	    ByteBuffer key = getKey(S1, S2, digest, iterations);
+	    
+	    synchronized (seeds)
+	    {
+	        byte[] seed = seeds.remove(key);
+	        
+	        if (seed != null)
+	        {
+	            Arrays.fill(seed, (byte) 0);
+	        }
+	    }
+	}
+	
+	/**
+	 * Removes and erases all of the seeds in the cache
+	 */
+	public void clear()
+	{
+	    synchronized (seeds)
+	    {
+	        for (byte[] seed : seeds.values())
+	        {
+	            Arrays.fill(seed, (byte) 0);
+	        }
+	        
+	        seeds.clear();
+	    }
+	}
+	
+	/**
+	 * @return The number of seeds currently cached
+	 */
+	public int size()
+	{
+	    synchronized (seeds)
+	    {
+	        return seeds.size();
+	    }
+	}
+	
+	/**
+	 * @return The maximum number of seeds cached
+	 */
+	public int getCapacity()
+	{
+	    return capacity;
+	}
+	
+	/**
+	 * @return The number of derivations that used a cached seed
+	 */
+	public long getHits()
+	{
+	    synchronized (seeds)
+	    {
+	        return hits;
+	    }
+	}
+	
+	/**
+	 * @return The number of derivations that had to derive the seed
+	 */
+	public long getMisses()
+	{
+	    synchronized (seeds)
+	    {
+	        return misses;
+	    }
+	}
+}
@@ -18,10 +18,14 @@
  */
 package com.orwell.csprng;
 
+import java.nio.ByteBuffer;
+
 import org.strippedcastle.crypto.DataLengthException;
 import org.strippedcastle.crypto.DerivationFunction;
 import org.strippedcastle.crypto.DerivationParameters;
 import org.strippedcastle.crypto.Digest;
+import org.strippedcastle.crypto.generators.HKDFBytesGenerator;
+import org.strippedcastle.crypto.params.HKDFParameters;
 
 import com.orwell.params.SDFParameters;
 
@@ -29,7 +33,12 @@ import com.orwell.params.SDFParameters;
  * Seed Derivative Function (SDF) generator, derives a seed value to be used
  * with a PRNG given the SDF parameters, Digest, and the number of iterations
  * that the digest is applied
- *
+ * 
+ * The seed is derived once for the SDF parameters, further keys can then be
+ * derived from the seed using expand() without repeating the iterations of
+ * the digest, such as the seeds for the dictionary, the nonce and MAC keys.
+ * The seeds can also be cached using an SDFCache, so that deriving the seed
+ * again for the same shared information returns immediately.
  */
 public class SDFGenerator implements DerivationFunction
 {
@@ -38,6 +47,11 @@ public class SDFGenerator implements DerivationFunction
 	private int iterations;
 	private byte[] S1;
 	private byte[] S2;
+	private byte[] seed;
+	private boolean seeded;
+	private IteratedDigest iterated;
+	private HKDFBytesGenerator hkdf;
+	private SDFCache cache;
 	
 	/**
 	 * Define the digest to use for the SDF generator as well as the number
@@ -58,6 +72,7 @@ public class SDFGenerator implements DerivationFunction
 		
 		this.digest = digest;
 		this.iterations = iterations;
+		this.iterated = IteratedDigest.getInstance(digest);
 	}
 	
 	/**
@@ -71,8 +86,28 @@ public class SDFGenerator implements DerivationFunction
 	{	
 		this.digest = digest;
 		this.iterations = DEFAULT_ITERATIONS;
+		this.iterated = IteratedDigest.getInstance(digest);
 	}
 
+	/**
+	 * Enables the opt-in cache of the seeds derived, the cache can be shared 
+	 * by multiple generators.
+	 * 
+	 * @param cache The cache of the seeds derived, null to disable
+	 */
+	public void setCache(SDFCache cache)
+	{
+		this.cache = cache;
+	}
+	
+	/**
+	 * @return The cache of the seeds derived, null if disabled
+	 */
+	public SDFCache getCache()
+	{
+		return cache;
+	}
+	
 	/* 
 	 * Initialize the SDF generator given the SDF parameters, the derivation
 	 * parameters must be an instance of SDFParameters
@@ -88,6 +123,7 @@ public class SDFGenerator implements DerivationFunction
 			SDFParameters p = (SDFParameters) param;
 			this.S1 = p.getS1();
 			this.S2 = p.getS2();
+			clearSeed();
 		}
 		else
 		{
@@ -98,7 +134,8 @@ public class SDFGenerator implements DerivationFunction
     /**
      * Fill the length bytes specified of the output buffer with bytes generated from
      * the seed derivation function (SDF). If no length is specified the size of the
-     * digest will be used as the length of output
+     * digest will be used as the length of output, use expand() to derive more
+     * bytes than the size of the digest.
      *
      * @param out The output buffer to fill with the bytes generated for the seed
      * @param outOff The offset in the output buffer to populate
@@ -150,29 +187,170 @@ public class SDFGenerator implements DerivationFunction
             throw new IllegalArgumentException("Output length too large!");
         }
 
-        // Digest input is the initial key and the generated seed
-        byte[] digestInput = new byte[S1.length + S2.length];
-        byte[] seed = new byte[digest.getDigestSize()];
+        System.arraycopy(getSeed(), 0, out, outOff, len);
 
+        return len;
+    }
+    
+    /**
+     * Put the length bytes specified generated from the seed derivation function
+     * (SDF) into the output buffer at its position, the position is advanced by
+     * the length. If no length is specified the size of the digest will be used
+     * as the length of output. Unlike the byte array generateBytes() the buffer
+     * only needs to have the length remaining, such as a direct buffer holding
+     * the seed of a PRNG.
+     *
+     * @param out The output buffer to put the bytes generated for the seed
+     * @param len The length of the output, if no length specified size of digest is used
+     * 
+     * @return The length of random bytes generated
+     * 
+     * @throws IllegalArgumentException if the length is greater than the size of the digest.
+     * @throws DataLengthException if the out buffer does not have the length remaining.
+     */
+    public int generateBytes(ByteBuffer out, int len)
+            throws DataLengthException, IllegalArgumentException
+    {
+        if (len < 0 || digest.getDigestSize() < len)
+        {
+            throw new IllegalArgumentException("Length of output specified greater than the size of digest output!");
+        }
+        
+        // No length specified, use the default digest length
+        if (len == 0)
+        {
+            len = digest.getDigestSize();
+        }
+        
+        if (out.remaining() < len)
+        {
+            throw new DataLengthException("Output buffer too small for length specified!");
+        }
+        
+        out.put(getSeed(), 0, len);
+        
+        return len;
+    }
+    
+    /**
+     * Fill the length bytes specified of the output buffer with bytes derived 
+     * from the seed using HKDF-Expand (RFC 5869), the seed is the pseudorandom 
+     * key. Each info, such as "dictionary" or "nonce", derives an independent 
+     * key, and the iterations of the digest are only performed once for all of
+     * the keys derived.
+     * 
+     * @param info The context and application specific information, can be null
+     * @param out The output buffer to fill with the bytes derived
+     * @param outOff The offset in the output buffer to populate
+     * @param len The length of the output, at most 255 times the size of the digest
+     * 
+     * @return The length of the bytes derived
+     * 
+     * @throws IllegalArgumentException if the length is greater than 255 times
+     * the size of the digest
+     * @throws DataLengthException if the out buffer is too small.
+     */
+    public int expand(byte[] info, byte[] out, int outOff, int len)
+            throws DataLengthException, IllegalArgumentException
+    {
+        if (len < 0 || len > 255 * digest.getDigestSize())
+        {
+            throw new IllegalArgumentException("Length of output specified greater than 255 times the size of digest output!");
+        }
+        
+        if ((out.length - len) < outOff)
+        {
+            throw new DataLengthException("Output buffer too small for length specified!");
+        }
+        
+        if (hkdf == null)
+        {
+            hkdf = new HKDFBytesGenerator(digest);
+        }
+        
+        hkdf.init(HKDFParameters.skipExtractParameters(getSeed(), info));
+        
+        return hkdf.generateBytes(out, outOff, len);
+    }
+    
+    /**
+     * Returns the seed derived from the shared information S1 & S2, the seed is
+     * only derived on the first call after init(). The seed buffer is reused for
+     * each init(), and the iterations of SHA256 and SHA512 are specialized so
+     * that deriving the seed does not allocate.
+     */
+    private byte[] getSeed()
+    {
+        if (seeded)
+        {
+            return seed;
+        }
+        
+        if (seed == null || seed.length != digest.getDigestSize())
+        {
+            seed = new byte[digest.getDigestSize()];
+        }
+        
+        SDFCache cache = this.cache;
+        ByteBuffer key = null;
+        
+        if (cache != null)
+        {
+            key = SDFCache.getKey(S1, S2, digest, iterations);
+            
+            if (cache.get(key, seed))
+            {
+                seeded = true;
+                return seed;
+            }
+        }
+        
         // The shared information S1 & S2 concatenated is the initial key
-    	System.arraycopy(S1, 0, digestInput, 0, S1.length);
-    	System.arraycopy(S2, 0, digestInput, S1.length, S2.length);
+        digest.update(S1, 0, S1.length);
+        digest.update(S2, 0, S2.length);
         
     	// Generate the initial seed
-        digest.update(digestInput, 0, digestInput.length);
         digest.doFinal(seed, 0);
     	
         // Perform additional iterations of the digest to generate the final seed
-        for (int i = 0; i < this.iterations; i++)
+        if (iterated != null)
         {
-            digest.update(seed, 0, seed.length);
-            digest.doFinal(seed, 0);
+            iterated.iterate(seed, iterations);
         }
-    
-        System.arraycopy(seed, 0, out, outOff, len);
+        else
+        {
+            for (int i = 0; i < this.iterations; i++)
+            {
+                digest.update(seed, 0, seed.length);
+                digest.doFinal(seed, 0);
+            }
+        }
+        
         digest.reset();
-
-        return len;
+        seeded = true;
+        
+        if (cache != null)
+        {
+            cache.put(key, seed);
+        }
+        
+        return seed;
+    }
+    
+    /**
+     * Erases the seed derived for the previous SDF parameters
+     */
+    private void clearSeed()
+    {
+        if (seed != null)
+        {
+            for (int i = 0; i < seed.length; ++i)
+            {
+                seed[i] = 0;
+            }
+        }
+        
+        seeded = false;
     }
     
 	/**
@@ -21,6 +21,7 @@ package com.orwell.params;
 import java.math.BigInteger;
 import java.security.spec.KeySpec;
 import java.security.InvalidParameterException;
+import java.util.HashMap;
 
 import org.strippedcastle.crypto.CipherParameters;
 import org.strippedcastle.crypto.params.ECDomainParameters;
@@ -29,11 +30,18 @@ import org.strippedcastle.jce.ECNamedCurveTable;
 import org.strippedcastle.math.ec.ECCurve;
 import org.strippedcastle.math.ec.ECPoint;
 
+import com.orwell.crypto.ECCombMultiplier;
+
 /**
  * A class which acts as a wrapper for the Elliptic Curve specifications
  * (ECParamSpec) and domain parameters (ECDomainParameters) making it
  * easier to simply define one object that can be used to specify the
  * parameters of the Elliptic Curve Asymmetric keys.
+ * 
+ * The parameters are immutable, getInstance() returns the canonical shared
+ * instance for each named curve, which is also the home of the per-curve
+ * precomputation such as the comb for the generator G. The instances are
+ * created lazily the first time a curve is requested and are thread safe.
  */
 public class ECKeyParam implements CipherParameters, KeySpec
 {	
@@ -47,8 +55,14 @@ public class ECKeyParam implements CipherParameters, KeySpec
 	 * @see http://www.bouncycastle.org/wiki/display/JA1/Supported+Curves+%28ECDSA+and+ECGOST%29
 	 */
 	private static final String defNamedCurve = "secp256r1";
-	private ECParameterSpec ECParamSpec;
-	private ECDomainParameters ECDomainParam;
+	
+	/* The canonical instance for each named curve requested */
+	private static final HashMap<String, ECKeyParam> curves = new HashMap<String, ECKeyParam>();
+	
+	private final String namedCurve;
+	private final ECParameterSpec ECParamSpec;
+	private final ECDomainParameters ECDomainParam;
+	private volatile ECCombMultiplier comb;
 
 	/**
 	 * The default constructor, creates an instance of ECKeyParam object using the
@@ -57,6 +71,7 @@ public class ECKeyParam implements CipherParameters, KeySpec
 	public ECKeyParam()
 	{
 		/* Instantiate the ECParameterSpec and ECDomainParameters objects */
+		this.namedCurve = defNamedCurve;
 		this.ECParamSpec = ECNamedCurveTable.getParameterSpec(defNamedCurve);
 		this.ECDomainParam = new ECDomainParameters(
 				ECParamSpec.getCurve(),		// Curve
@@ -81,6 +96,7 @@ public class ECKeyParam implements CipherParameters, KeySpec
 	public ECKeyParam(String namedCurve) throws InvalidParameterException
 	{
 		/* Instantiate the ECParameterSpec and ECDomainParameters objects */
+		this.namedCurve = namedCurve;
 		this.ECParamSpec = ECNamedCurveTable.getParameterSpec(namedCurve);
 		
 		if (this.ECParamSpec == null)
@@ -94,6 +110,73 @@ public class ECKeyParam implements CipherParameters, KeySpec
 				ECParamSpec.getN());		// N		
 	}
 	
+	/**
+	 * Returns the canonical shared instance for the default named curve, 
+	 * which at the present moment is secp256r1.
+	 * 
+	 * @return The shared ECKeyParam for the default named curve
+	 */
+	public static ECKeyParam getInstance()
+	{
+	    return getInstance(defNamedCurve);
+	}
+	
+	/**
+	 * Returns the canonical shared instance for the named curve specified, 
+	 * the instance is created the first time the curve is requested. Using the
+	 * shared instances avoids creating the curve objects for each instance
+	 * and allows the per-curve precomputation to be shared.
+	 * 
+	 * @param namedCurve The named elliptic curve to use
+	 * 
+	 * @return The shared ECKeyParam for the named curve
+	 * 
+	 * @throws InvalidParameterException if the named curve provided is not supported
+	 */
+	public static ECKeyParam getInstance(String namedCurve) throws InvalidParameterException
+	{
+	    synchronized (curves)
+	    {
+	        ECKeyParam keyParam = curves.get(namedCurve);
+	        
+	        if (keyParam == null)
+	        {
+	            keyParam = new ECKeyParam(namedCurve);
+	            curves.put(namedCurve, keyParam);
+	        }
+	        
+	        return keyParam;
+	    }
+	}
+	
+	/**
+	 * Returns the comb precomputed for the generator G of the curve, which is
+	 * used to generate the keypairs. The comb is created the first time it
+	 * is requested.
+	 * 
+	 * @return The comb for the generator G
+	 */
+	public ECCombMultiplier getComb()
+	{
+	    ECCombMultiplier result = comb;
+	    
+	    if (result == null)
+	    {
+	        result = ECCombMultiplier.getInstance(ECDomainParam);
+	        comb = result;
+	    }
+	    
+	    return result;
+	}
+	
+	/**
+	 * @return The name of the curve
+	 */
+	public String getNamedCurve()
+	{
+	    return namedCurve;
+	}
+	
 	/**
 	 * @return The object's ECParameterSpec
 	 */
@@ -18,6 +18,12 @@
  */
 package com.orwell.params;
 
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
 import org.strippedcastle.crypto.DataLengthException;
 import org.strippedcastle.crypto.prng.RandomGenerator;
 import org.strippedcastle.crypto.MaxBytesExceededException;
@@ -35,6 +41,14 @@ import com.orwell.csprng.ISAACRandomGenerator;
  * time the next operation is performed. Additionally, this class can also be
  * initialized to any prior state given that the deterministic CSPRNG is provided
  * with the same seed value it had prior and the IV of the last state.
+ * 
+ * Optionally, the upcoming nonces can be prefetched into a ring buffer that
+ * is refilled in the background, see startPrefetch(). The CSPRNG is a stream,
+ * the prefetched nonces are the same bytes in the same order the CSPRNG would
+ * have generated them, and the cycle is only incremented as each nonce is
+ * taken, so the sequence and the cycles are exactly the same as without 
+ * prefetching. Re-seeding, resetting or initializing the CSPRNG discards the
+ * nonces prefetched, as the sequence restarts from the new state.
  */
 public class Nonce implements RandomGenerator
 {
@@ -48,6 +62,67 @@ public class Nonce implements RandomGenerator
 	private static final int MAXCYCLES = 100000;
 	private int cycle = 0;
 	
+	/* Set once the current nonce has been handed out and must not be overwritten */
+	private boolean nonceShared;
+	
+	/* The ring buffer of the bytes prefetched from the CSPRNG */
+	private final Object lock = new Object();
+	private byte[] ring;
+	private int head;
+	private int available;
+	private int prefetch;
+	private boolean prefetching;
+	private boolean refilling;
+	private ExecutorService executor;
+	private boolean ownExecutor;
+	private long misses;
+	
+	private final Runnable refillTask = new Runnable()
+	{
+	    public void run()
+	    {
+	        try
+	        {
+	            while (true)
+	            {
+	                byte[] buf;
+	                int tail;
+	                int len;
+	                
+	                synchronized (lock)
+	                {
+	                    buf = ring;
+	                    
+	                    if (!prefetching || buf == null || available == buf.length)
+	                    {
+	                        return;
+	                    }
+	                    
+	                    tail = (head + available) % buf.length;
+	                    len = Math.min(buf.length - available, buf.length - tail);
+	                }
+	                
+	                /* Only the free part of the ring is written, outside of the lock */
+	                csprng.nextBytes(buf, tail, len);
+	                
+	                synchronized (lock)
+	                {
+	                    available += len;
+	                    lock.notifyAll();
+	                }
+	            }
+	        }
+	        finally
+	        {
+	            synchronized (lock)
+	            {
+	                refilling = false;
+	                lock.notifyAll();
+	            }
+	        }
+	    }
+	};
+	
 	/**
 	 * Construct the nonce with a deterministic CSPRNG, at the moment only ISAAC
 	 * engine is supported, but in the future other CSPRNG such as ISAAC+ will 
@@ -146,11 +221,29 @@ public class Nonce implements RandomGenerator
 					"nonce value was given to the constructor!");
 		}
 		
+		synchronized (lock)
+		{
+		    /* The nonces prefetched are from the previous state */
+		    discard();
+		    
+		    initState(seed, nonceLen);
+		    
+		    allocate();
+		    refill();
+		}
+	}
+	
+	/**
+	 * Initializes the CSPRNG and returns the nonce to the last state
+	 */
+	private void initState(byte[] seed, int nonceLen)
+	{
 		/* Initialize CSPRNG */
 		csprng.init(seed);
 		
 		/* Construct a new empty nonce of the size specified*/
 		nonce = new byte[nonceLen];
+		nonceShared = false;
 		
 		/* Prior nonce state cycle specified, initialize nonce to last state */
 	    if (cycle != 0)
@@ -185,11 +278,36 @@ public class Nonce implements RandomGenerator
 	public byte[] nextNonce()
 	{
     	nonce = new byte[nonce.length];
-    	csprng.nextBytes(nonce);
+    	generate(nonce, 0, nonce.length);
         ++cycle;
+        nonceShared = true;
         return nonce;
 	}
 	
+	/**
+	 * Generates the next nonce into the output buffer provided, the nonce is
+	 * the same as the nonce returned by nextNonce(). Unlike nextNonce() a new
+	 * array is not allocated for each nonce, unless the current nonce has been
+	 * returned by getNonce().
+	 * 
+	 * @param out The output buffer for the nonce
+	 * @param outOff The offset in the output buffer of the nonce
+	 * 
+	 * @throws DataLengthException if the output buffer is too small for the nonce
+	 */
+	public void nextNonce(byte[] out, int outOff)
+	        throws DataLengthException
+	{
+	    if ((out.length - nonce.length) < outOff)
+	    {
+	        throw new DataLengthException("Output buffer too small for the nonce!");
+	    }
+	    
+	    generate(out, outOff, nonce.length);
+	    setNonce(out, outOff, nonce.length);
+	    ++cycle;
+	}
+	
 	/**
 	 * Accesses the current nonce, you should always execute the nextNonce()
 	 * method before accessing a nonce to ensure that a unique nonce has been
@@ -199,6 +317,7 @@ public class Nonce implements RandomGenerator
 	 */
 	public byte[] getNonce()
 	{
+	    nonceShared = true;
 		return nonce;
 	}
 	
@@ -220,7 +339,307 @@ public class Nonce implements RandomGenerator
 	 */
 	public void reset()
 	{
-	    csprng.reset();
+	    synchronized (lock)
+	    {
+	        discard();
+	        csprng.reset();
+	        allocate();
+	    }
+	}
+	
+	/**
+	 * Starts prefetching the upcoming nonces into a ring buffer refilled by a 
+	 * background daemon thread, so that generating a nonce is a copy from the
+	 * ring buffer. The nonces and the cycles are exactly the same as without
+	 * prefetching. Prefetching begins once the nonce is initialized, or
+	 * immediately if already initialized.
+	 * 
+	 * @param nonces The number of nonces of the current length to prefetch
+	 * 
+	 * @throws IllegalArgumentException if the number of nonces is not positive
+	 * @throws IllegalStateException if the nonces are already being prefetched
+	 */
+	public void startPrefetch(int nonces)
+	        throws IllegalArgumentException, IllegalStateException
+	{
+	    startPrefetch(nonces, null);
+	}
+	
+	/**
+	 * Starts prefetching the upcoming nonces into a ring buffer refilled using
+	 * the executor provided, so that generating a nonce is a copy from the ring
+	 * buffer. The nonces and the cycles are exactly the same as without 
+	 * prefetching. Prefetching begins once the nonce is initialized, or 
+	 * immediately if already initialized. The executor is not shut down by 
+	 * stopPrefetch().
+	 * 
+	 * @param nonces The number of nonces of the current length to prefetch
+	 * @param executor The executor used to refill the ring buffer, if null a 
+	 * single background daemon thread is created for the nonce
+	 * 
+	 * @throws IllegalArgumentException if the number of nonces is not positive
+	 * @throws IllegalStateException if the nonces are already being prefetched
+	 */
+	public void startPrefetch(int nonces, ExecutorService executor)
+	        throws IllegalArgumentException, IllegalStateException
+	{
+	    if (nonces <= 0)
+	    {
+	        throw new IllegalArgumentException("The number of nonces to prefetch must be greater than zero!");
+	    }
+	    
+	    synchronized (lock)
+	    {
+	        if (prefetching)
+	        {
+	            throw new IllegalStateException("The nonces are already being prefetched!");
+	        }
+	        
+	        this.ownExecutor = (executor == null);
+	        
+	        if (executor == null)
+	        {
+	            executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	            {
+	                public Thread newThread(Runnable r)
+	                {
+	                    Thread thread = new Thread(r, "Nonce");
+	                    thread.setDaemon(true);
+	                    return thread;
+	                }
+	            });
+	        }
+	        
+	        this.executor = executor;
+	        this.prefetch = nonces;
+	        this.prefetching = true;
+	        
+	        if (nonce != null)
+	        {
+	            allocate();
+	            refill();
+	        }
+	    }
+	}
+	
+	/**
+	 * Stops prefetching the nonces, the nonces already prefetched are still 
+	 * used before generating the nonces using the CSPRNG so that the sequence
+	 * is unchanged. The executor is only shut down if it was created for the
+	 * nonce.
+	 */
+	public void stopPrefetch()
+	{
+	    synchronized (lock)
+	    {
+	        if (!prefetching)
+	        {
+	            return;
+	        }
+	        
+	        prefetching = false;
+	        awaitRefill();
+	        
+	        if (ownExecutor)
+	        {
+	            executor.shutdown();
+	        }
+	        
+	        executor = null;
+	        
+	        if (available == 0)
+	        {
+	            ring = null;
+	        }
+	    }
+	}
+	
+	/**
+	 * @return True if the nonces are being prefetched
+	 */
+	public boolean isPrefetching()
+	{
+	    synchronized (lock)
+	    {
+	        return prefetching;
+	    }
+	}
+	
+	/**
+	 * @return The number of nonces of the current length ready in the ring buffer
+	 */
+	public int getPrefetched()
+	{
+	    synchronized (lock)
+	    {
+	        return (nonce == null || nonce.length == 0) ? 0 : available / nonce.length;
+	    }
+	}
+	
+	/**
+	 * @return The number of nonces that were generated on the calling thread
+	 * because the ring buffer did not have the nonce ready
+	 */
+	public long getMisses()
+	{
+	    synchronized (lock)
+	    {
+	        return misses;
+	    }
+	}
+	
+	/**
+	 * Fills the length bytes of the buffer with the next bytes of the CSPRNG,
+	 * the bytes prefetched are used first
+	 */
+	private void generate(byte[] bytes, int start, int len)
+	{
+	    synchronized (lock)
+	    {
+	        if (ring == null)
+	        {
+	            csprng.nextBytes(bytes, start, len);
+	            return;
+	        }
+	        
+	        /* The CSPRNG can only be used once the refill has finished */
+	        while (refilling && available < len)
+	        {
+	            awaitRefillOnce();
+	        }
+	        
+	        int n = Math.min(available, len);
+	        int first = Math.min(n, ring.length - head);
+	        
+	        System.arraycopy(ring, head, bytes, start, first);
+	        System.arraycopy(ring, 0, bytes, start + first, n - first);
+	        
+	        head = (head + n) % ring.length;
+	        available -= n;
+	        
+	        if (n < len)
+	        {
+	            ++misses;
+	            csprng.nextBytes(bytes, start + n, len - n);
+	        }
+	        
+	        if (!prefetching && available == 0)
+	        {
+	            ring = null;
+	        }
+	        
+	        refill();
+	    }
+	}
+	
+	/**
+	 * Updates the current nonce, the array of the nonce is reused unless it
+	 * has been handed out
+	 */
+	private void setNonce(byte[] bytes, int start, int len)
+	{
+	    if (nonceShared || nonce == null || nonce.length != len)
+	    {
+	        nonce = new byte[len];
+	        nonceShared = false;
+	    }
+	    
+	    System.arraycopy(bytes, start, nonce, 0, len);
+	}
+	
+	/**
+	 * Allocates the ring buffer for the current length of the nonce, any bytes
+	 * prefetched are kept. Must be called holding the lock.
+	 */
+	private void allocate()
+	{
+	    if (!prefetching || nonce == null || nonce.length == 0)
+	    {
+	        return;
+	    }
+	    
+	    byte[] buf = new byte[Math.max(prefetch * nonce.length, available)];
+	    
+	    if (ring != null)
+	    {
+	        int first = Math.min(available, ring.length - head);
+	        System.arraycopy(ring, head, buf, 0, first);
+	        System.arraycopy(ring, 0, buf, first, available - first);
+	        Arrays.fill(ring, (byte) 0);
+	    }
+	    
+	    ring = buf;
+	    head = 0;
+	}
+	
+	/**
+	 * Schedules a refill of the ring buffer once it is half empty unless a 
+	 * refill is already running. Must be called holding the lock.
+	 */
+	private void refill()
+	{
+	    if (prefetching && ring != null && !refilling && available <= ring.length / 2)
+	    {
+	        refilling = true;
+	        
+	        try
+	        {
+	            executor.execute(refillTask);
+	        }
+	        catch (RejectedExecutionException e)
+	        {
+	            refilling = false;
+	        }
+	    }
+	}
+	
+	/**
+	 * Waits for the refill to finish and erases the bytes prefetched, the
+	 * CSPRNG can then be used. Must be called holding the lock.
+	 */
+	private void discard()
+	{
+	    awaitRefill();
+	    
+	    if (ring != null)
+	    {
+	        Arrays.fill(ring, (byte) 0);
+	    }
+	    
+	    head = 0;
+	    available = 0;
+	    
+	    if (!prefetching)
+	    {
+	        ring = null;
+	    }
+	}
+	
+	/**
+	 * Waits for the refill to finish. Must be called holding the lock.
+	 */
+	private void awaitRefill()
+	{
+	    while (refilling)
+	    {
+	        awaitRefillOnce();
+	    }
+	}
+	
+	/**
+	 * Waits for the refill to make progress, the wait is not interrupted as the
+	 * CSPRNG must not be used until the refill has finished
+	 */
+	private void awaitRefillOnce()
+	{
+	    try
+	    {
+	        lock.wait();
+	    }
+	    catch (InterruptedException e)
+	    {
+	        Thread.currentThread().interrupt();
+	    }
 	}
 
 	/**
@@ -236,7 +655,13 @@ public class Nonce implements RandomGenerator
     @Override
     public void addSeedMaterial(byte[] seed)
     {
-        csprng.addSeedMaterial(seed);
+        synchronized (lock)
+        {
+            discard();
+            csprng.addSeedMaterial(seed);
+            allocate();
+            refill();
+        }
     }
 
     /**
@@ -252,7 +677,13 @@ public class Nonce implements RandomGenerator
     @Override
     public void addSeedMaterial(long seed)
     {
-        csprng.addSeedMaterial(seed);
+        synchronized (lock)
+        {
+            discard();
+            csprng.addSeedMaterial(seed);
+            allocate();
+            refill();
+        }
     }
 
     /**
@@ -263,8 +694,8 @@ public class Nonce implements RandomGenerator
     @Override
     public void nextBytes(byte[] bytes)
     {
-        csprng.nextBytes(bytes);
-        nonce = bytes.clone();
+        generate(bytes, 0, bytes.length);
+        setNonce(bytes, 0, bytes.length);
         ++cycle;
     }
 
@@ -278,8 +709,8 @@ public class Nonce implements RandomGenerator
     @Override
     public void nextBytes(byte[] bytes, int start, int len)
     {
-        csprng.nextBytes(bytes, start, len);
-        nonce = bytes.clone();
+        generate(bytes, start, len);
+        setNonce(bytes, 0, bytes.length);
         ++cycle;
     }
 }
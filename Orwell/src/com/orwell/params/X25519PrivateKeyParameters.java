@@ -0,0 +1,73 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.params;
+
+import org.strippedcastle.crypto.DataLengthException;
+import org.strippedcastle.crypto.params.AsymmetricKeyParameter;
+
+import com.orwell.crypto.X25519;
+
+/**
+ * An X25519 private key, the clamped scalar, encoded as 32 bytes in
+ * little-endian order as specified in RFC 7748.
+ */
+public class X25519PrivateKeyParameters extends AsymmetricKeyParameter
+{
+    private final byte[] data = new byte[X25519.KEY_SIZE];
+    
+    /**
+     * Creates the private key from the encoded key, the key is copied
+     * 
+     * @param buf The buffer containing the encoded key
+     * @param off The offset of the encoded key
+     * 
+     * @throws DataLengthException if the buffer is too small for the key
+     */
+    public X25519PrivateKeyParameters(byte[] buf, int off)
+            throws DataLengthException
+    {
+        super(true);
+        
+        if (buf.length - off < X25519.KEY_SIZE)
+        {
+            throw new DataLengthException("An X25519 key must be 32 bytes!");
+        }
+        
+        System.arraycopy(buf, off, data, 0, X25519.KEY_SIZE);
+    }
+    
+    /**
+     * Writes the encoded key to the buffer
+     * 
+     * @param buf The buffer for the encoded key
+     * @param off The offset in the buffer to write the key to
+     */
+    public void encode(byte[] buf, int off)
+    {
+        System.arraycopy(data, 0, buf, off, X25519.KEY_SIZE);
+    }
+    
+    /**
+     * @return A copy of the encoded key
+     */
+    public byte[] getEncoded()
+    {
+        return data.clone();
+    }
+}
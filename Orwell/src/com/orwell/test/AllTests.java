@@ -26,14 +26,21 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({ 
         APrioriInfoTest.class, 
         Ascii85Test.class, 
+        Base64Test.class, 
+        BWTStreamTest.class, 
+        DictionaryTransformTest.class, 
         ECEngineTest.class, 
         ECGKeyExchangeTest.class,
         ECGKeyUtilTest.class, 
         ECKeyParamTest.class, 
+        ECKeyPoolTest.class, 
         ECKeyTest.class,
         FastQuickSortTest.class, 
         ISAACRandomGeneratorTest.class, 
-        NonceTest.class })
+        KeyringTest.class, 
+        NonceTest.class, 
+        SDFGeneratorTest.class, 
+        X25519Test.class })
 public class AllTests
 {
 
@@ -0,0 +1,242 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the framed BWT streams, the streams are in the default package and
+ * are therefore created using reflection.
+ */
+public class BWTStreamTest
+{
+    /* The offset of the primary index in the first frame */
+    private static final int PRIMARY_OFFSET = 5;
+    
+    private static final String[] words = { "the", "nonce", "cipher", "key", "orwell", 
+                                            "message", "a", "of", "stream", "block" };
+    
+    /**
+     * Test that payloads of several sizes are the same after compressing and
+     * decompressing, including single chain blocks, chained blocks and a
+     * partial block of a single byte written by flush()
+     */
+    @Test
+    public void roundTrip() throws IOException
+    {
+        int[] sizes = { 0, 1, 2, 999, 1000, 1001, 5000 };
+        
+        for (int size : sizes)
+        {
+            byte[] payload = createText(size, size);
+            assertArrayEquals(payload, decompress(compress(payload, 1000), 1000));
+        }
+        
+        /* Blocks large enough to be split into chains */
+        byte[] payload = createText(150000, 7);
+        assertArrayEquals(payload, decompress(compress(payload, 100000), 100000));
+        
+        /* A single byte block flushed before the rest of the payload */
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream out = newCompressor(buffer, 1000);
+        out.write(payload, 0, 1);
+        out.flush();
+        out.write(payload, 1, 2999);
+        out.close();
+        
+        assertArrayEquals(Arrays.copyOf(payload, 3000), decompress(buffer.toByteArray(), 1000));
+    }
+    
+    /**
+     * Test that corrupt and truncated frames throw an IOException rather than
+     * any other exception, for both the single chain and chained formats
+     */
+    @Test
+    public void corruptFrames() throws IOException
+    {
+        byte[] payload = createText(1000, 3);
+        byte[] compressed = compress(payload, 1000);
+        
+        /* Primary indexes outside of the block */
+        int[] invalid = { 0, -1, 1001, Integer.MAX_VALUE };
+        
+        for (int index : invalid)
+        {
+            assertRejected(setInt(compressed.clone(), PRIMARY_OFFSET, index), 1000);
+        }
+        
+        /* Primary indexes within the block either fail or decode garbage */
+        for (int index = 1; index <= 1000; index += 37)
+        {
+            assertCorrupt(setInt(compressed.clone(), PRIMARY_OFFSET, index), payload, 1000);
+        }
+        
+        /* The last row, which lets a corrupt walk step past the block */
+        assertCorrupt(setInt(compressed.clone(), PRIMARY_OFFSET, 1000), payload, 1000);
+        
+        /* Invalid lengths and number of chains */
+        assertRejected(setInt(compressed.clone(), 0, 0), 1000);
+        assertRejected(setInt(compressed.clone(), 0, 1001), 1000);
+        byte[] chains = compressed.clone();
+        chains[4] = 2;
+        assertRejected(chains, 1000);
+        chains[4] = 0;
+        assertRejected(chains, 1000);
+        
+        /* Truncated header and block */
+        assertRejected(Arrays.copyOf(compressed, 3), 1000);
+        assertRejected(Arrays.copyOf(compressed, compressed.length - 1), 1000);
+        
+        /* The indexes of each chain of a chained block */
+        payload = createText(100000, 5);
+        compressed = compress(payload, 100000);
+        int count = compressed[4];
+        assertTrue(count > 1);
+        
+        for (int i = 0; i < count; ++i)
+        {
+            int off = PRIMARY_OFFSET + 4 * i;
+            
+            assertRejected(setInt(compressed.clone(), off, 0), 100000);
+            assertRejected(setInt(compressed.clone(), off, 100001), 100000);
+            assertCorrupt(setInt(compressed.clone(), off, 100000), payload, 100000);
+            assertCorrupt(setInt(compressed.clone(), off, 1), payload, 100000);
+        }
+    }
+    
+    /**
+     * Creates a text of random words of the size specified
+     */
+    private byte[] createText(int size, long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size + 10);
+        
+        while (text.length() < size)
+        {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        
+        return text.substring(0, size).getBytes();
+    }
+    
+    private byte[] compress(byte[] payload, int blockSize) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream out = newCompressor(buffer, blockSize);
+        
+        /* Write in pieces which do not align with the blocks */
+        for (int off = 0; off < payload.length; off += 333)
+        {
+            out.write(payload, off, Math.min(333, payload.length - off));
+        }
+        
+        out.close();
+        return buffer.toByteArray();
+    }
+    
+    private byte[] decompress(byte[] compressed, int maxBlockSize) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        InputStream in = newDecompressor(new ByteArrayInputStream(compressed), maxBlockSize);
+        byte[] buf = new byte[777];
+        int n;
+        
+        while ((n = in.read(buf)) != -1)
+        {
+            buffer.write(buf, 0, n);
+        }
+        
+        in.close();
+        return buffer.toByteArray();
+    }
+    
+    /**
+     * Asserts that decompressing the corrupt frames throws an IOException
+     */
+    private void assertRejected(byte[] compressed, int maxBlockSize)
+    {
+        try
+        {
+            decompress(compressed, maxBlockSize);
+            fail("Decompressed a corrupt frame");
+        }
+        catch (IOException e)
+        {
+        }
+    }
+    
+    /**
+     * Asserts that decompressing the corrupt frames either throws an 
+     * IOException or decodes a payload of the same length, but never fails
+     * with any other exception
+     */
+    private void assertCorrupt(byte[] compressed, byte[] payload, int maxBlockSize)
+    {
+        try
+        {
+            byte[] decompressed = decompress(compressed, maxBlockSize);
+            assertEquals(payload.length, decompressed.length);
+        }
+        catch (IOException e)
+        {
+        }
+    }
+    
+    private static byte[] setInt(byte[] buf, int off, int val)
+    {
+        buf[off]   = (byte) (val >>> 24);
+        buf[off+1] = (byte) (val >>> 16);
+        buf[off+2] = (byte) (val >>> 8);
+        buf[off+3] = (byte) val;
+        return buf;
+    }
+    
+    private static OutputStream newCompressor(OutputStream out, int blockSize)
+    {
+        return (OutputStream) newInstance("BWTCompressorOutputStream", OutputStream.class, out, blockSize);
+    }
+    
+    private static InputStream newDecompressor(InputStream in, int maxBlockSize)
+    {
+        return (InputStream) newInstance("BWTDecompressorInputStream", InputStream.class, in, maxBlockSize);
+    }
+    
+    private static Object newInstance(String name, Class<?> type, Object stream, int size)
+    {
+        try
+        {
+            return Class.forName(name).getConstructor(type, int.class).newInstance(stream, size);
+        }
+        catch (Exception e)
+        {
+            throw new AssertionError("Unable to create " + name + ": " + e);
+        }
+    }
+}
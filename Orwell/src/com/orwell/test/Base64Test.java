@@ -0,0 +1,141 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.orwell.util.Base64;
+
+public class Base64Test
+{
+    /* The test vectors from RFC 4648 */
+    private static final String[] decoded = { "", "f", "fo", "foo", "foob", "fooba", "foobar" };
+    private static final String[] encoded = { "", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy" };
+    
+    /**
+     * Test the encoding and decoding of the RFC 4648 test vectors
+     */
+    @Test
+    public void testVectors()
+    {
+        for (int i = 0; i < decoded.length; ++i)
+        {
+            assertEquals(encoded[i], Base64.encodeToString(decoded[i].getBytes(), false));
+            assertArrayEquals(decoded[i].getBytes(), Base64.decode(encoded[i]));
+            assertArrayEquals(decoded[i].getBytes(), Base64.decode(encoded[i].replace("=", "")));
+        }
+    }
+    
+    /**
+     * Test that wrapping the lines matches android.util.Base64.DEFAULT, a 
+     * newline after every 76 characters and at the end of the data
+     */
+    @Test
+    public void testWrap()
+    {
+        assertEquals("", Base64.encodeToString(new byte[0], true));
+        assertEquals("Zm9v\n", Base64.encodeToString("foo".getBytes(), true));
+        
+        for (int len = 50; len < 250; ++len)
+        {
+            byte[] data = new byte[len];
+            Arrays.fill(data, (byte) len);
+            
+            String wrapped = Base64.encodeToString(data, true);
+            String[] lines = wrapped.split("\n");
+            
+            assertTrue(wrapped.endsWith("\n"));
+            assertFalse(wrapped.endsWith("\n\n"));
+            assertEquals(Base64.getEncodedLength(len, true), wrapped.length());
+            assertEquals(Base64.encodeToString(data, false), wrapped.replace("\n", ""));
+            
+            for (int i = 0; i < lines.length - 1; ++i)
+            {
+                assertEquals(76, lines[i].length());
+            }
+            
+            assertArrayEquals(data, Base64.decode(wrapped));
+        }
+    }
+    
+    /**
+     * Test encoding and decoding slices of buffers and ByteBuffers
+     */
+    @Test
+    public void testSlices()
+    {
+        byte[] data = new byte[256];
+        
+        for (int i = 0; i < data.length; ++i)
+        {
+            data[i] = (byte) i;
+        }
+        
+        byte[] out = new byte[Base64.getEncodedLength(100, true) + 10];
+        int len = Base64.encode(data, 7, 100, out, 5, true);
+        assertEquals(Base64.getEncodedLength(100, true), len);
+        
+        byte[] dec = new byte[110];
+        assertEquals(100, Base64.decode(out, 5, len, dec, 3));
+        assertArrayEquals(Arrays.copyOfRange(data, 7, 107), Arrays.copyOfRange(dec, 3, 103));
+        
+        /* Both heap and direct ByteBuffers */
+        for (boolean direct : new boolean[] { false, true })
+        {
+            ByteBuffer in = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+            ByteBuffer enc = direct ? ByteBuffer.allocateDirect(400) : ByteBuffer.allocate(400);
+            ByteBuffer res = direct ? ByteBuffer.allocateDirect(300) : ByteBuffer.allocate(300);
+            
+            in.put(data).flip();
+            len = Base64.encode(in, enc, false);
+            assertFalse(in.hasRemaining());
+            assertEquals(len, enc.position());
+            
+            enc.flip();
+            assertEquals(data.length, Base64.decode(enc, res));
+            
+            byte[] result = new byte[res.flip().remaining()];
+            res.get(result);
+            assertArrayEquals(data, result);
+        }
+    }
+    
+    /**
+     * Test that invalid characters are rejected
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidCharacter()
+    {
+        Base64.decode("Zm9v!Yg==");
+    }
+    
+    /**
+     * Test that truncated input is rejected
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void testTruncated()
+    {
+        Base64.decode("Zm9vY");
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the dictionary word replacement transform, the transform is in the
+ * default package and is therefore used through reflection.
+ */
+public class DictionaryTransformTest
+{
+    /* A word whose hash is a negative multiple of the table size of the word list */
+    private static final String NEGATIVE_PROBE_WORD = "jwyahuxinp";
+    
+    private static final String[] words = { "the", "of", "and", "nonce", "cipher", "message", 
+                                            "stream", "orwell", "encrypted", "dictionary" };
+    
+    private static final String text = "The nonce of the cipher and the Message, the stream of "
+            + "encrypted messages; ORWELL orwell Orwell x y été dictionary\n"
+            + NEGATIVE_PROBE_WORD + " " + NEGATIVE_PROBE_WORD.toUpperCase() + " ciphers 42";
+    
+    private File wordList;
+    private File indexFile;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        wordList = File.createTempFile("words", ".txt");
+        indexFile = File.createTempFile("words", ".idx");
+        
+        StringBuilder list = new StringBuilder();
+        
+        for (String word : words)
+        {
+            list.append(word).append('\n');
+        }
+        
+        list.append(NEGATIVE_PROBE_WORD).append('\n');
+        
+        /* Words which are not kept, too short, not lower case or duplicates */
+        list.append("a\nNonce\nthe\n");
+        
+        FileOutputStream out = new FileOutputStream(wordList);
+        out.write(list.toString().getBytes("UTF-8"));
+        out.close();
+    }
+    
+    @After
+    public void tearDown()
+    {
+        wordList.delete();
+        indexFile.delete();
+    }
+    
+    /**
+     * Test that the text is the same after the forward and inverse transform,
+     * that dictionary words are replaced and that a word probing past the end
+     * of the table is compiled and found
+     */
+    @Test
+    public void roundTrip() throws Exception
+    {
+        assertEquals(words.length + 1, compile(wordList, indexFile));
+        
+        Object transform = open(indexFile);
+        byte[] input = text.getBytes("UTF-8");
+        byte[] replaced = forward(transform, input);
+        
+        assertTrue(replaced.length < input.length);
+        assertArrayEquals(input, inverse(transform, replaced));
+        
+        /* The word is replaced by its codeword, the last one byte codeword */
+        byte[] single = forward(transform, NEGATIVE_PROBE_WORD.getBytes("US-ASCII"));
+        assertArrayEquals(new byte[] { (byte) (0x80 + words.length) }, single);
+    }
+    
+    /**
+     * Test the round trip using the word list shipped with the library, which
+     * uses the two and three byte codewords
+     */
+    @Test
+    public void roundTripWordList() throws Exception
+    {
+        assertTrue(compile(new File("unsorted_wordlist.txt"), indexFile) > 8192);
+        
+        Object transform = open(indexFile);
+        StringBuilder sample = new StringBuilder();
+        
+        for (int i = 0; i < 200; ++i)
+        {
+            sample.append(text).append(' ').append(i).append(". ");
+        }
+        
+        byte[] input = sample.toString().getBytes("UTF-8");
+        assertArrayEquals(input, inverse(transform, forward(transform, input)));
+    }
+    
+    /**
+     * Test that a codeword which is not in the dictionary is rejected
+     */
+    @Test
+    public void invalidCodeword() throws Exception
+    {
+        compile(wordList, indexFile);
+        
+        try
+        {
+            inverse(open(indexFile), new byte[] { (byte) 0xBF });
+            fail("Decoded a codeword not in the dictionary");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+    
+    private static int compile(File wordList, File indexFile) throws Exception
+    {
+        Method compile = Class.forName("DictionaryTransform").getMethod("compile", File.class, File.class);
+        return (Integer) invoke(compile, null, wordList, indexFile);
+    }
+    
+    private static Object open(File indexFile) throws Exception
+    {
+        return Class.forName("DictionaryTransform").getConstructor(File.class).newInstance(indexFile);
+    }
+    
+    private static byte[] forward(Object transform, byte[] block) throws Exception
+    {
+        return (byte[]) invoke(transform.getClass().getMethod("forward", byte[].class, int.class), 
+                               transform, block, 0);
+    }
+    
+    private static byte[] inverse(Object transform, byte[] block) throws Exception
+    {
+        return (byte[]) invoke(transform.getClass().getMethod("inverse", byte[].class, int.class), 
+                               transform, block, 0);
+    }
+    
+    /**
+     * Invokes the method, rethrowing the exception thrown by the method itself
+     */
+    private static Object invoke(Method method, Object obj, Object... args) throws Exception
+    {
+        try
+        {
+            return method.invoke(obj, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof Exception)
+            {
+                throw (Exception) e.getCause();
+            }
+            
+            throw e;
+        }
+    }
+}
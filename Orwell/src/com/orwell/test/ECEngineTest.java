@@ -18,11 +18,18 @@
  */
 package com.orwell.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -30,17 +37,26 @@ import org.junit.Test;
 import org.junit.contrib.assumes.Assumes;
 import org.junit.contrib.assumes.Corollaries;
 import org.junit.runner.RunWith;
+import org.strippedcastle.crypto.DataLengthException;
 import org.strippedcastle.crypto.InvalidCipherTextException;
 import org.strippedcastle.crypto.digests.SHA256Digest;
+import org.strippedcastle.crypto.engines.AESEngine;
 import org.strippedcastle.crypto.engines.ISAACEngine;
+import org.strippedcastle.crypto.modes.GCMBlockCipher;
 import org.strippedcastle.crypto.params.ECPrivateKeyParameters;
 import org.strippedcastle.crypto.params.ECPublicKeyParameters;
 import org.strippedcastle.crypto.prng.RandomGenerator;
 import org.strippedcastle.util.encoders.Hex;
 
 import com.orwell.crypto.APrioriInfo;
+import com.orwell.crypto.ECCipherInputStream;
+import com.orwell.crypto.ECCipherOutputStream;
 import com.orwell.crypto.ECEngine;
+import com.orwell.crypto.ECEnginePool;
+import com.orwell.crypto.ECGKeyUtil;
+import com.orwell.crypto.ECGroupCipher;
 import com.orwell.crypto.ECKey;
+import com.orwell.crypto.ECPeerCache;
 import com.orwell.csprng.ISAACRandomGenerator;
 import com.orwell.csprng.SDFGenerator;
 import com.orwell.params.ECKeyParam;
@@ -315,6 +331,642 @@ public class ECEngineTest
         }
 	}
 	
+	/**
+	 * Test that the messages encrypted in session mode, which reuses the keys
+	 * derived for the key pair, are identical to the messages encrypted by the
+	 * IESEngine and can be decrypted in either mode.
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test
+	public void sessionMode() throws InvalidCipherTextException
+	{
+	    ECEngine engine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine sessionEngine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine sessionDecEngine = new ECEngine(newNonce(), priorInfo);
+	    
+	    engine.init(true, alicePriKey, bobPubKey);
+	    sessionEngine.initSession(true, alicePriKey, bobPubKey);
+	    sessionDecEngine.initSession(false, bobPriKey, alicePubKey);
+	    assertTrue(sessionEngine.isSession());
+	    
+	    for (String expBlock : expBlockSizes)
+	    {
+	        byte[] encBlock = engine.processBlock(expBlock.getBytes());
+	        byte[] encSessionBlock = sessionEngine.processBlock(expBlock.getBytes());
+	        
+	        /* Both modes must produce the same message given the same nonce */
+	        assertTrue(Arrays.equals(encBlock, encSessionBlock));
+	        assertTrue(expBlock.equals(new String(sessionDecEngine.processBlock(encSessionBlock))));
+	        assertTrue(expBlock.equals(new String(bobEngine.processBlock(encSessionBlock))));
+	    }
+	    
+	    /* Re-initializing with the same keys, decoded again, keeps the session */
+	    sessionEngine.initSession(true, new ECPrivateKeyParameters(alicePriKey.getD(), param.getECDomainParam()), 
+	                              new ECPublicKeyParameters(bobPubKey.getQ(), param.getECDomainParam()));
+	    engine.init(true, alicePriKey, bobPubKey);
+	    assertTrue(Arrays.equals(engine.processBlock(exp64ByteMsg.getBytes()), 
+	                             sessionEngine.processBlock(exp64ByteMsg.getBytes())));
+	    
+	    sessionEngine.clearSession();
+	    assertFalse(sessionEngine.isSession());
+	}
+	
+	/**
+	 * Test that a message which has been tampered with is rejected in session mode
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test(expected=InvalidCipherTextException.class)
+	public void sessionModeInvalidMac() throws InvalidCipherTextException
+	{
+	    ECEngine sessionEngine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine sessionDecEngine = new ECEngine(newNonce(), priorInfo);
+	    sessionEngine.initSession(true, alicePriKey, bobPubKey);
+	    sessionDecEngine.initSession(false, bobPriKey, alicePubKey);
+	    
+	    byte[] encBlock = sessionEngine.processBlock(exp128ByteMsg.getBytes());
+	    encBlock[0] ^= 1;
+	    sessionDecEngine.processBlock(encBlock);
+	}
+	
+	/**
+	 * Test that encrypting and decrypting into a caller supplied output buffer,
+	 * at an offset and from a slice of a larger input buffer, produces the same
+	 * messages as processBlock() in both modes.
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test
+	public void outputBuffer() throws InvalidCipherTextException
+	{
+	    ECEngine engine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine bufEngine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine bufDecEngine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine sessionEngine = new ECEngine(newNonce(), priorInfo);
+	    
+	    engine.init(true, alicePriKey, bobPubKey);
+	    bufEngine.init(true, alicePriKey, bobPubKey);
+	    bufDecEngine.init(false, bobPriKey, alicePubKey);
+	    sessionEngine.initSession(true, alicePriKey, bobPubKey);
+	    
+	    byte[] in = new byte[256];
+	    byte[] out = new byte[512];
+	    byte[] dec = new byte[512];
+	    
+	    for (String expBlock : expBlockSizes)
+	    {
+	        byte[] msg = expBlock.getBytes();
+	        System.arraycopy(msg, 0, in, 7, msg.length);
+	        
+	        byte[] encBlock = engine.processBlock(msg);
+	        assertEquals(encBlock.length, bufEngine.getOutputSize(msg.length));
+	        
+	        int len = bufEngine.processBlock(in, 7, msg.length, out, 3);
+	        assertEquals(encBlock.length, len);
+	        assertTrue(Arrays.equals(encBlock, Arrays.copyOfRange(out, 3, 3 + len)));
+	        
+	        assertEquals(len, sessionEngine.processBlock(in, 7, msg.length, out, 11));
+	        assertTrue(Arrays.equals(encBlock, Arrays.copyOfRange(out, 11, 11 + len)));
+	        
+	        assertTrue(bufDecEngine.getOutputSize(len) >= msg.length);
+	        int decLen = bufDecEngine.processBlock(out, 11, len, dec, 5);
+	        assertTrue(expBlock.equals(new String(dec, 5, decLen)));
+	    }
+	}
+	
+	/**
+	 * Test that processBlock() only processes the length of the input specified
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test
+	public void inputSlice() throws InvalidCipherTextException
+	{
+	    byte[] in = (exp64ByteMsg + exp12ByteMsg).getBytes();
+	    byte[] encBlock = aliceEngine.processBlock(in, 0, exp64ByteMsg.length());
+	    
+	    assertTrue(exp64ByteMsg.equals(new String(bobEngine.processBlock(encBlock))));
+	}
+	
+	/**
+	 * Test that an output buffer which is too small is rejected
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test(expected=DataLengthException.class)
+	public void outputBufferTooSmall() throws InvalidCipherTextException
+	{
+	    byte[] msg = exp64ByteMsg.getBytes();
+	    aliceEngine.processBlock(msg, 0, msg.length, new byte[aliceEngine.getOutputSize(msg.length)], 1);
+	}
+	
+	/**
+	 * Test that an engine which has not been initialized, or whose session
+	 * has been cleared, is rejected rather than failing with a 
+	 * NullPointerException
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test
+	public void notInitialized() throws InvalidCipherTextException
+	{
+	    byte[] msg = exp64ByteMsg.getBytes();
+	    ECEngine engine = new ECEngine(newNonce(), priorInfo);
+	    
+	    try
+	    {
+	        engine.processBlock(msg, 0, msg.length, new byte[4 * msg.length], 0);
+	        fail("Processed a message with an engine that was not initialized");
+	    }
+	    catch (IllegalStateException e)
+	    {
+	    }
+	    
+	    try
+	    {
+	        engine.processBlock(msg);
+	        fail("Processed a message with an engine that was not initialized");
+	    }
+	    catch (IllegalStateException e)
+	    {
+	    }
+	    
+	    engine.initSession(true, alicePriKey, bobPubKey);
+	    engine.processBlock(msg, 0, msg.length, new byte[engine.getOutputSize(msg.length)], 0);
+	    engine.clearSession();
+	    
+	    try
+	    {
+	        engine.processBlock(msg, 0, msg.length, new byte[4 * msg.length], 0);
+	        fail("Processed a message with an engine whose session was cleared");
+	    }
+	    catch (IllegalStateException e)
+	    {
+	    }
+	}
+	
+	/**
+	 * Test that the agreements using the combs cached for the peers produce
+	 * the same messages and that the least recently used peer is evicted
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test
+	public void peerCache() throws InvalidCipherTextException
+	{
+	    ECPeerCache cache = new ECPeerCache(1);
+	    ECEngine engine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine cacheEngine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine cacheDecEngine = new ECEngine(newNonce(), priorInfo);
+	    cacheEngine.setPeerCache(cache);
+	    cacheDecEngine.setPeerCache(cache);
+	    
+	    for (String expBlock : expBlockSizes)
+	    {
+	        engine.init(true, alicePriKey, bobPubKey);
+	        cacheEngine.init(true, alicePriKey, bobPubKey);
+	        cacheDecEngine.init(false, bobPriKey, alicePubKey);
+	        
+	        byte[] encBlock = cacheEngine.processBlock(expBlock.getBytes());
+	        assertTrue(Arrays.equals(engine.processBlock(expBlock.getBytes()), encBlock));
+	        assertTrue(expBlock.equals(new String(cacheDecEngine.processBlock(encBlock))));
+	    }
+	    
+	    /* Each message alternates between the two peers, evicting the other */
+	    assertEquals(1, cache.size());
+	    assertEquals(2 * expBlockSizes.size(), cache.getMisses());
+	    assertEquals(0, cache.getHits());
+	    
+	    /* Agreements with the same peer use the cached comb */
+	    cache = new ECPeerCache();
+	    cacheEngine.setPeerCache(cache);
+	    
+	    for (String expBlock : expBlockSizes)
+	    {
+	        engine.init(true, alicePriKey, bobPubKey);
+	        cacheEngine.init(true, alicePriKey, ECGKeyUtil.decodePubKey(param, ECGKeyUtil.encodePubKey(param, bobPubKey)));
+	        assertTrue(Arrays.equals(engine.processBlock(expBlock.getBytes()), 
+	                                 cacheEngine.processBlock(expBlock.getBytes())));
+	    }
+	    
+	    assertEquals(1, cache.getMisses());
+	    assertEquals(expBlockSizes.size() - 1, cache.getHits());
+	}
+	
+	/**
+	 * Test that a message encrypted once for a group can be decrypted by each
+	 * recipient, and not by anyone else or if the message was tampered with
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test
+	public void groupCipher() throws InvalidCipherTextException
+	{
+	    ECKey carolKey = new ECKey(param);
+	    carolKey.init();
+	    ECPublicKeyParameters carolPubKey = (ECPublicKeyParameters) carolKey.getPublic();
+	    ECGroupCipher group = new ECGroupCipher();
+	    
+	    ECEngine toBob = new ECEngine(newNonce(), priorInfo);
+	    ECEngine toCarol = new ECEngine(newNonce(), priorInfo);
+	    ECEngine bob = new ECEngine(newNonce(), priorInfo);
+	    ECEngine carol = new ECEngine(newNonce(), priorInfo);
+	    toBob.initSession(true, alicePriKey, bobPubKey);
+	    toCarol.init(true, alicePriKey, carolPubKey);
+	    bob.initSession(false, bobPriKey, alicePubKey);
+	    carol.init(false, (ECPrivateKeyParameters) carolKey.getPrivate(), alicePubKey);
+	    
+	    for (String expBlock : expBlockSizes)
+	    {
+	        byte[] msg = expBlock.getBytes();
+	        byte[] encGroup = group.encrypt(msg, 0, msg.length, new ECEngine[] { toBob, toCarol }, 
+	                                        new ECPublicKeyParameters[] { bobPubKey, carolPubKey });
+	        
+	        assertTrue(expBlock.equals(new String(group.decrypt(encGroup, 0, encGroup.length, bob, bobPubKey))));
+	        assertTrue(expBlock.equals(new String(group.decrypt(encGroup, 0, encGroup.length, carol, carolPubKey))));
+	    }
+	    
+	    /* A recipient identifies itself using its key decoded from the exchange */
+	    ECPublicKeyParameters decodedPubKey = ECGKeyUtil.decodePubKey(param, ECGKeyUtil.encodePubKey(param, carolPubKey));
+	    assertTrue(Arrays.equals(ECGroupCipher.getKeyId(carolPubKey), ECGroupCipher.getKeyId(decodedPubKey)));
+	    
+	    /* Alice is not a recipient */
+	    byte[] encGroup = group.encrypt(exp64ByteMsg.getBytes(), 0, 64, new ECEngine[] { toBob }, 
+	                                    new ECPublicKeyParameters[] { bobPubKey });
+	    
+	    try
+	    {
+	        group.decrypt(encGroup, 0, encGroup.length, aliceEngine, alicePubKey);
+	        fail("Decrypted a group message without being a recipient");
+	    }
+	    catch (InvalidCipherTextException e)
+	    {
+	    }
+	    
+	    /* Tampering with the body is detected */
+	    encGroup[encGroup.length - 40] ^= 1;
+	    
+	    try
+	    {
+	        group.decrypt(encGroup, 0, encGroup.length, bob, bobPubKey);
+	        fail("Decrypted a group message that was tampered with");
+	    }
+	    catch (InvalidCipherTextException e)
+	    {
+	    }
+	}
+	
+	/**
+	 * Test that a payload encrypted as a stream of chunks is decrypted, for
+	 * payloads spanning several chunks and payloads smaller than a chunk
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void cipherStream() throws IOException
+	{
+	    ECEngine encEngine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine decEngine = new ECEngine(newNonce(), priorInfo);
+	    encEngine.initSession(true, alicePriKey, bobPubKey);
+	    decEngine.init(false, bobPriKey, alicePubKey);
+	    
+	    int[] sizes = { 0, 1, 100, 1000, 4096, 10000 };
+	    
+	    for (int size : sizes)
+	    {
+	        byte[] payload = new byte[size];
+	        new Random(size).nextBytes(payload);
+	        
+	        byte[] encrypted = encryptStream(encEngine, payload, 1000);
+	        assertTrue(Arrays.equals(payload, decryptStream(decEngine, encrypted, 1000)));
+	    }
+	}
+	
+	/**
+	 * Test that a stream of chunks which was tampered with, truncated or has
+	 * had its chunks reordered is rejected
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void cipherStreamInvalid() throws IOException
+	{
+	    ECEngine encEngine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine decEngine = new ECEngine(newNonce(), priorInfo);
+	    encEngine.initSession(true, alicePriKey, bobPubKey);
+	    decEngine.initSession(false, bobPriKey, alicePubKey);
+	    
+	    byte[] payload = new byte[2000];
+	    int frame = 4 + 1000 + 32;
+	    
+	    /* Tampered with */
+	    byte[] encrypted = encryptStream(encEngine, payload, 1000);
+	    encrypted[10] ^= 1;
+	    assertStreamRejected(decEngine, encrypted);
+	    
+	    /* Truncated before the last chunk */
+	    encrypted = encryptStream(encEngine, payload, 1000);
+	    assertStreamRejected(decEngine, Arrays.copyOf(encrypted, 2 * frame));
+	    
+	    /* The first two chunks swapped */
+	    encrypted = encryptStream(encEngine, payload, 1000);
+	    byte[] swapped = encrypted.clone();
+	    System.arraycopy(encrypted, 0, swapped, frame, frame);
+	    System.arraycopy(encrypted, frame, swapped, 0, frame);
+	    assertStreamRejected(decEngine, swapped);
+	    
+	    /* The first chunk spliced from another stream with the same keys */
+	    byte[] first = encryptStream(encEngine, payload, 1000);
+	    byte[] second = encryptStream(encEngine, payload, 1000);
+	    assertTrue(Arrays.equals(payload, decryptStream(decEngine, first, 1000)));
+	    System.arraycopy(first, 0, second, 0, frame);
+	    assertStreamRejected(decEngine, second);
+	    
+	    /* The last chunk flag set on the first chunk, every read fails */
+	    encrypted = encryptStream(encEngine, payload, 1000);
+	    encrypted[0] |= 0x80;
+	    ECCipherInputStream in = new ECCipherInputStream(new ByteArrayInputStream(encrypted), decEngine, 1000);
+	    
+	    for (int i = 0; i < 3; ++i)
+	    {
+	        try
+	        {
+	            in.read();
+	            fail("Read from an invalid stream");
+	        }
+	        catch (IOException e)
+	        {
+	        }
+	    }
+	}
+	
+	/**
+	 * Test that the engines borrowed from the pool produce the same messages as
+	 * new engines and that the released engines are reused
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test
+	public void enginePool() throws InvalidCipherTextException
+	{
+	    ECEnginePool pool = new ECEnginePool(1);
+	    ECEngine engine = new ECEngine(newNonce(), priorInfo);
+	    Nonce encNonce = newNonce();
+	    Nonce decNonce = newNonce();
+	    
+	    engine.init(true, alicePriKey, bobPubKey);
+	    
+	    for (String expBlock : expBlockSizes)
+	    {
+	        ECEngine encEngine = pool.borrow(priorInfo, encNonce);
+	        ECEngine decEngine = pool.borrow(priorInfo, decNonce);
+	        
+	        encEngine.init(true, alicePriKey, bobPubKey);
+	        decEngine.initSession(false, bobPriKey, alicePubKey);
+	        
+	        byte[] encBlock = encEngine.processBlock(expBlock.getBytes());
+	        assertTrue(Arrays.equals(engine.processBlock(expBlock.getBytes()), encBlock));
+	        assertTrue(expBlock.equals(new String(decEngine.processBlock(encBlock))));
+	        
+	        pool.release(decEngine);
+	        pool.release(encEngine);
+	    }
+	    
+	    /* Only one engine is kept idle, the other is created for each message */
+	    assertEquals(1, pool.getIdle());
+	    assertEquals(2 * expBlockSizes.size(), pool.getBorrowed());
+	    assertEquals(expBlockSizes.size() + 1, pool.getCreated());
+	    assertEquals(1, pool.getIdleKeys());
+	    
+	    /* The shared information is forgotten once its idle engines are borrowed */
+	    ECEngine reused = pool.borrow(priorInfo, encNonce);
+	    assertEquals(0, pool.getIdleKeys());
+	    pool.release(reused);
+	    assertEquals(1, pool.getIdleKeys());
+	    
+	    /* Engines for other shared information are not reused */
+	    ECEngine other = pool.borrow(new APrioriInfo("other", "info"), encNonce);
+	    assertEquals(expBlockSizes.size() + 2, pool.getCreated());
+	    pool.release(other);
+	    
+	    try
+	    {
+	        pool.release(other);
+	        fail("Released an engine twice");
+	    }
+	    catch (IllegalArgumentException e)
+	    {
+	    }
+	    
+	    /* A released engine cannot be used */
+	    try
+	    {
+	        other.init(true, alicePriKey, bobPubKey);
+	        other.processBlock(exp64ByteMsg.getBytes());
+	        fail("Used a released engine");
+	    }
+	    catch (IllegalStateException e)
+	    {
+	    }
+	    
+	    /* Releasing an engine not borrowed from the pool does not end its session */
+	    ECEngine foreign = new ECEngine(newNonce(), priorInfo);
+	    foreign.initSession(true, alicePriKey, bobPubKey);
+	    
+	    try
+	    {
+	        pool.release(foreign);
+	        fail("Released an engine not borrowed from the pool");
+	    }
+	    catch (IllegalArgumentException e)
+	    {
+	    }
+	    
+	    ECEngine decEngine = new ECEngine(newNonce(), priorInfo);
+	    decEngine.initSession(false, bobPriKey, alicePubKey);
+	    byte[] encBlock = foreign.processBlock(exp64ByteMsg.getBytes());
+	    assertTrue(exp64ByteMsg.equals(new String(decEngine.processBlock(encBlock))));
+	    
+	    pool.clear();
+	    assertEquals(0, pool.getIdle());
+	    assertEquals(0, pool.getIdleKeys());
+	}
+	
+	/**
+	 * Test that the engines using AES-GCM decrypt the messages encrypted with
+	 * and without session mode and reject messages which have been modified
+	 * 
+	 * @throws InvalidCipherTextException
+	 * @throws IOException
+	 */
+	@Test
+	public void aeadCipher() throws InvalidCipherTextException, IOException
+	{
+	    ECEngine encEngine = new ECEngine(new GCMBlockCipher(new AESEngine()), newNonce(), priorInfo);
+	    ECEngine sessionEngine = new ECEngine(new GCMBlockCipher(new AESEngine()), newNonce(), priorInfo);
+	    ECEngine decEngine = new ECEngine(new GCMBlockCipher(new AESEngine()), newNonce(), priorInfo);
+	    
+	    assertTrue(encEngine.isAEAD());
+	    assertFalse(aliceEngine.isAEAD());
+	    
+	    encEngine.init(true, alicePriKey, bobPubKey);
+	    sessionEngine.initSession(true, alicePriKey, bobPubKey);
+	    decEngine.initSession(false, bobPriKey, alicePubKey);
+	    
+	    for (String expBlock : expBlockSizes)
+	    {
+	        byte[] msg = expBlock.getBytes();
+	        byte[] encBlock = encEngine.processBlock(msg);
+	        
+	        assertEquals(encEngine.getOutputSize(msg.length), encBlock.length);
+	        assertTrue(Arrays.equals(encBlock, sessionEngine.processBlock(msg)));
+	        assertFalse(Arrays.equals(encBlock, aliceEngine.processBlock(msg)));
+	        assertTrue(expBlock.equals(new String(decEngine.processBlock(encBlock))));
+	    }
+	    
+	    /* A modified message is rejected and the output erased, including the
+	     * final partial block of messages which are not block aligned
+	     */
+	    for (String expBlock : new String[] { exp64ByteMsg, exp65ByteMsg, exp63ByteMsg, exp1ByteMsg })
+	    {
+	        byte[] encBlock = encEngine.processBlock(expBlock.getBytes());
+	        byte[] tagBlock = encEngine.processBlock(expBlock.getBytes());
+	        byte[] out = new byte[encBlock.length];
+	        encBlock[3] ^= 1;
+	        tagBlock[tagBlock.length - 1] ^= 1;
+	        
+	        try
+	        {
+	            decEngine.processBlock(encBlock, 0, encBlock.length, out, 0);
+	            fail("Decrypted a modified message");
+	        }
+	        catch (InvalidCipherTextException e)
+	        {
+	            assertTrue(Arrays.equals(new byte[out.length], out));
+	        }
+	        
+	        try
+	        {
+	            decEngine.processBlock(tagBlock, 0, tagBlock.length, out, 0);
+	            fail("Decrypted a message with a modified tag");
+	        }
+	        catch (InvalidCipherTextException e)
+	        {
+	            assertTrue(Arrays.equals(new byte[out.length], out));
+	        }
+	    }
+	    
+	    /* Streams use the AEAD cipher for each chunk */
+	    encEngine.initSession(true, alicePriKey, bobPubKey);
+	    byte[] payload = new byte[5000];
+	    new Random(7).nextBytes(payload);
+	    
+	    byte[] encrypted = encryptStream(encEngine, payload, 1000);
+	    assertTrue(Arrays.equals(payload, decryptStream(decEngine, encrypted, 1000)));
+	    
+	    encrypted = encryptStream(encEngine, payload, 1000);
+	    encrypted[encrypted.length - 1] ^= 1;
+	    assertStreamRejected(decEngine, encrypted);
+	}
+	
+	/**
+	 * Test that reusing the keyed cipher and HMAC in session mode produces the
+	 * same messages when the session is interleaved with messages encrypted
+	 * by the IESEngine and when the direction of the session changes
+	 * 
+	 * @throws InvalidCipherTextException
+	 */
+	@Test
+	public void sessionKeyReuse() throws InvalidCipherTextException
+	{
+	    ECEngine engine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine sessionEngine = new ECEngine(newNonce(), priorInfo);
+	    ECEngine decEngine = new ECEngine(newNonce(), priorInfo);
+	    
+	    engine.init(true, alicePriKey, bobPubKey);
+	    
+	    for (String expBlock : expBlockSizes)
+	    {
+	        byte[] msg = expBlock.getBytes();
+	        byte[] encBlock = engine.processBlock(msg);
+	        
+	        /* Alternate between session mode and the IESEngine */
+	        if (expBlock.length() % 2 == 0)
+	        {
+	            sessionEngine.initSession(true, alicePriKey, bobPubKey);
+	        }
+	        else
+	        {
+	            sessionEngine.init(true, alicePriKey, bobPubKey);
+	        }
+	        
+	        assertTrue(Arrays.equals(encBlock, sessionEngine.processBlock(msg)));
+	        
+	        /* Alternate the direction of the session */
+	        decEngine.initSession(false, bobPriKey, alicePubKey);
+	        assertTrue(expBlock.equals(new String(decEngine.processBlock(encBlock))));
+	        
+	        decEngine.initSession(true, bobPriKey, alicePubKey);
+	        assertTrue(Arrays.equals(decEngine.processBlock(msg), engine.processBlock(msg)));
+	        sessionEngine.processBlock(msg);
+	    }
+	}
+	
+	private byte[] encryptStream(ECEngine engine, byte[] payload, int chunkSize) throws IOException
+	{
+	    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	    ECCipherOutputStream out = new ECCipherOutputStream(buffer, engine, chunkSize);
+	    
+	    /* Write in pieces which do not align with the chunks */
+	    for (int off = 0; off < payload.length; off += 333)
+	    {
+	        out.write(payload, off, Math.min(333, payload.length - off));
+	    }
+	    
+	    out.close();
+	    return buffer.toByteArray();
+	}
+	
+	private byte[] decryptStream(ECEngine engine, byte[] encrypted, int chunkSize) throws IOException
+	{
+	    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	    ECCipherInputStream in = new ECCipherInputStream(new ByteArrayInputStream(encrypted), engine, chunkSize);
+	    byte[] buf = new byte[777];
+	    int n;
+	    
+	    while ((n = in.read(buf)) != -1)
+	    {
+	        buffer.write(buf, 0, n);
+	    }
+	    
+	    in.close();
+	    return buffer.toByteArray();
+	}
+	
+	private void assertStreamRejected(ECEngine engine, byte[] encrypted)
+	{
+	    try
+	    {
+	        decryptStream(engine, encrypted, 1000);
+	        fail("Decrypted an invalid stream");
+	    }
+	    catch (IOException e)
+	    {
+	    }
+	}
+	
+	/**
+	 * Creates a new nonce initialized with the same seed as the nonces of the
+	 * engines created in setUp()
+	 */
+	private Nonce newNonce()
+	{
+	    Nonce nonce = new Nonce(new ISAACRandomGenerator(new ISAACEngine()));
+	    nonce.init(seed, seed.length);
+	    return nonce;
+	}
+	
 	/**
      * Test for a message in the case where the size of the message to decrypt
      * is less than the size of the MAC. This is usually the case where a message 
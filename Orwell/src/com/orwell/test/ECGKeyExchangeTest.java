@@ -30,9 +30,11 @@ import org.strippedcastle.crypto.params.ECPrivateKeyParameters;
 import org.strippedcastle.crypto.params.ECPublicKeyParameters;
 
 import com.orwell.crypto.APrioriInfo;
+import com.orwell.crypto.ECGBatchVerifier;
 import com.orwell.crypto.ECGKeyExchange;
 import com.orwell.crypto.ECGKeyUtil;
 import com.orwell.crypto.ECKey;
+import com.orwell.crypto.KeyExchangeContext;
 import com.orwell.params.ECKeyParam;
 
 /**
@@ -297,4 +299,98 @@ public class ECGKeyExchangeTest
 						priorInfo,	// INSECURE default shared info 
 						false));	// Recipient
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Test that the keys signed and verified using a KeyExchangeContext are
+	 * identical to those of ECGKeyExchange, including verifying a signed key
+	 * in place as a slice of a larger message
+	 */
+	@Test
+	public void keyExchangeContext()
+	{
+		KeyExchangeContext alice = new KeyExchangeContext(new SHA256Digest(), priorInfo, true);
+		KeyExchangeContext bob = new KeyExchangeContext(new SHA256Digest(), priorInfo, false);
+		
+		byte[] aliceEncodedPubKey = ECGKeyUtil.encodePubKey(param, alicePubKey);
+		byte[] bobEncodedPubKey = ECGKeyUtil.encodePubKey(param, bobPubKey);
+		byte[] aliceSignedPubKey = alice.signPubKey(aliceEncodedPubKey);
+		byte[] bobSignedPubKey = bob.signPubKey(bobEncodedPubKey);
+		
+		/* The signatures are identical to those of ECGKeyExchange */
+		assertArrayEquals(ECGKeyExchange.signPubKey(new SHA256Digest(), aliceEncodedPubKey, priorInfo, true), 
+		                  aliceSignedPubKey);
+		assertArrayEquals(ECGKeyExchange.signPubKey(new SHA256Digest(), bobEncodedPubKey, priorInfo, false), 
+		                  bobSignedPubKey);
+		
+		/* Each context verifies the other's key, repeatedly */
+		for (int i = 0; i < 3; ++i)
+		{
+			assertTrue(bob.verifyPubKey(aliceSignedPubKey));
+			assertTrue(alice.verifyPubKey(bobSignedPubKey));
+			assertFalse(alice.verifyPubKey(aliceSignedPubKey));
+		}
+		
+		/* Sign into and verify a slice of a larger message */
+		byte[] msg = new byte[aliceSignedPubKey.length + 16];
+		int len = alice.signPubKey(aliceEncodedPubKey, 0, aliceEncodedPubKey.length, msg, 8);
+		assertEquals(aliceSignedPubKey.length, len);
+		assertTrue(bob.verifyPubKey(msg, 8, len));
+		
+		msg[8] ^= 1;
+		assertFalse(bob.verifyPubKey(msg, 8, len));
+	}
+	
+	/**
+	 * Test that a batch of signed public keys is verified and decoded the same
+	 * as verifying and decoding each key, including keys with an invalid 
+	 * signature or that are malformed
+	 */
+	@Test
+	public void batchVerify() throws InterruptedException
+	{
+		ECGBatchVerifier verifier = new ECGBatchVerifier(param, new SHA256Digest());
+		APrioriInfo otherInfo = new APrioriInfo("other", "info");
+		int count = 20;
+		
+		byte[][] signedPubKeys = new byte[count][];
+		APrioriInfo[] sharedInfo = new APrioriInfo[count];
+		ECPublicKeyParameters[] pubKeys = new ECPublicKeyParameters[count];
+		
+		for (int i = 0; i < count; ++i)
+		{
+			ECKey key = new ECKey(param);
+			key.init();
+			pubKeys[i] = (ECPublicKeyParameters) key.getPublic();
+			sharedInfo[i] = (i % 2 == 0) ? priorInfo : otherInfo;
+			signedPubKeys[i] = ECGKeyExchange.signPubKey(new SHA256Digest(), 
+			                                             ECGKeyUtil.encodePubKey(param, pubKeys[i]), 
+			                                             sharedInfo[i], 
+			                                             true);
+		}
+		
+		/* Tamper with a key, sign a key with the wrong info and truncate a key */
+		signedPubKeys[3][5] ^= 1;
+		sharedInfo[4] = otherInfo;
+		signedPubKeys[7] = new byte[8];
+		
+		ECGBatchVerifier.Result[] results = verifier.verify(signedPubKeys, sharedInfo, false);
+		verifier.shutdown();
+		
+		for (int i = 0; i < count; ++i)
+		{
+			if (i == 3 || i == 4 || i == 7)
+			{
+				assertFalse(results[i].isValid());
+				assertNull(results[i].getPubKey());
+			}
+			else
+			{
+				assertTrue(results[i].isValid());
+				assertEquals(pubKeys[i].getQ(), results[i].getPubKey().getQ());
+			}
+		}
+		
+		assertNotNull(results[7].getError());
+		assertNull(results[3].getError());
+	}
+}
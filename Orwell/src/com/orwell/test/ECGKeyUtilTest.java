@@ -24,11 +24,15 @@ import java.security.InvalidParameterException;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.strippedcastle.crypto.digests.SHA256Digest;
 import org.strippedcastle.crypto.params.ECPrivateKeyParameters;
 import org.strippedcastle.crypto.params.ECPublicKeyParameters;
 
+import com.orwell.crypto.APrioriInfo;
+import com.orwell.crypto.ECGKeyExchange;
 import com.orwell.crypto.ECGKeyUtil;
 import com.orwell.crypto.ECKey;
+import com.orwell.crypto.ECPubKeyCache;
 import com.orwell.params.ECKeyParam;
 
 /**
@@ -85,11 +89,8 @@ public class ECGKeyUtilTest
 	 * Test that encoding a public key as ASN.1 which is then further encoded as base64 
 	 * for transmission and then decoding it back into an EC public key object results in
 	 * the same public key (the point Q has the same X and Y values)
-	 * 
-	 * TODO: Cannot test any Base64 methods as they rely on android, will have to either include the
-	 * specific android library or create a new android test project
-	 * 
 	 */
+	@Test
 	public void encodeDecodeBase64PubKey()
 	{
 		byte[] base64EncodedPubKey = ECGKeyUtil.encodeBase64PubKey(param, expPubKey);
@@ -141,4 +142,49 @@ public class ECGKeyUtilTest
 	{
 		ECGKeyUtil.encodePriKey(param, expPubKey);
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Test that the public keys decoded using the cache are the same as the
+	 * keys decoded without the cache and that the repeated keys are cached
+	 */
+	@Test
+	public void pubKeyCache()
+	{
+		ECPubKeyCache cache = new ECPubKeyCache(16);
+		byte[] encodedPubKey = ECGKeyUtil.encodePubKey(param, expPubKey);
+		byte[] signedPubKey = ECGKeyExchange.signPubKey(new SHA256Digest(), encodedPubKey, 
+		                                                new APrioriInfo("initiator", "recipient"), true);
+		
+		ECGKeyUtil.setPubKeyCache(cache);
+		
+		try
+		{
+			ECPublicKeyParameters pubKey = ECGKeyUtil.decodePubKey(param, encodedPubKey);
+			assertEquals(expPubKey.getQ(), pubKey.getQ());
+			assertSame(pubKey, ECGKeyUtil.decodePubKey(param, encodedPubKey.clone()));
+			assertSame(pubKey, ECGKeyUtil.decodeSignedPubKey(param, new SHA256Digest(), signedPubKey));
+			
+			/* The cached key does not share the buffer decoded */
+			encodedPubKey[1] ^= 1;
+			assertSame(pubKey, ECGKeyUtil.decodeSignedPubKey(param, new SHA256Digest(), signedPubKey));
+			
+			assertEquals(1, cache.getMisses());
+			assertEquals(3, cache.getHits());
+			assertEquals(0.75, cache.getHitRate(), 0.0);
+			
+			/* The cache is bounded */
+			for (int i = 0; i < 2 * cache.getCapacity(); ++i)
+			{
+				ECKey key = new ECKey(param);
+				key.init();
+				ECGKeyUtil.decodePubKey(param, ECGKeyUtil.encodePubKey(param, key.getPublic()));
+			}
+			
+			assertTrue(cache.size() <= cache.getCapacity());
+		}
+		finally
+		{
+			ECGKeyUtil.setPubKeyCache(null);
+		}
+	}
+}
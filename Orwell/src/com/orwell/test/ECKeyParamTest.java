@@ -65,4 +65,34 @@ public class ECKeyParamTest
 	{
 		keyParam = new ECKeyParam("derp");
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Test that the shared instances are canonical for each named curve and
+	 * match the instances created by the constructors
+	 */
+	@Test
+	public void sharedInstance()
+	{
+		keyParam = ECKeyParam.getInstance();
+		assertSame(keyParam, ECKeyParam.getInstance("secp256r1"));
+		assertSame(keyParam.getComb(), keyParam.getComb());
+		assertEquals("secp256r1", keyParam.getNamedCurve());
+		assertTrue(expectedCurve.getCurve().equals(keyParam.getCurve()));
+		assertTrue(expectedCurve.getG().equals(keyParam.getG()));
+		assertTrue(expectedCurve.getN().equals(keyParam.getN()));
+		
+		ECKeyParam otherParam = ECKeyParam.getInstance("secp384r1");
+		assertNotSame(keyParam, otherParam);
+		assertSame(otherParam, ECKeyParam.getInstance("secp384r1"));
+		assertTrue(new ECKeyParam("secp384r1").getG().equals(otherParam.getG()));
+	}
+	
+	/**
+	 * Test that an exception is thrown if an invalid curve name is requested
+	 */
+	@Test(expected=InvalidParameterException.class)
+	public void invalidSharedInstance()
+	{
+		keyParam = ECKeyParam.getInstance("derp");
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.strippedcastle.crypto.params.ECPrivateKeyParameters;
+import org.strippedcastle.crypto.params.ECPublicKeyParameters;
+
+import com.orwell.crypto.ECKey;
+import com.orwell.crypto.ECKeyPool;
+import com.orwell.params.ECKeyParam;
+
+public class ECKeyPoolTest
+{
+	private static final int CAPACITY = 4;
+	private ECKeyParam param;
+	private ECKeyPool pool;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		param = ECKeyParam.getInstance();
+		pool = new ECKeyPool(param, CAPACITY);
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		pool.shutdown();
+	}
+	
+	/**
+	 * Waits until the pool has been refilled to capacity
+	 */
+	private void awaitFull(ECKeyPool pool) throws InterruptedException
+	{
+		for (int i = 0; i < 500 && pool.getDepth() < pool.getCapacity(); ++i)
+		{
+			Thread.sleep(10);
+		}
+		
+		assertEquals(pool.getCapacity(), pool.getDepth());
+	}
+	
+	/**
+	 * Test that the pool is filled in the background and that the keypairs
+	 * taken from the pool are valid and never handed out twice
+	 */
+	@Test
+	public void uniqueKeys() throws InterruptedException
+	{
+		HashSet<Object> priKeys = new HashSet<Object>();
+		awaitFull(pool);
+		
+		for (int i = 0; i < 3 * CAPACITY; ++i)
+		{
+			ECKey key = pool.take();
+			ECPrivateKeyParameters priKey = (ECPrivateKeyParameters) key.getPrivate();
+			ECPublicKeyParameters pubKey = (ECPublicKeyParameters) key.getPublic();
+			
+			assertTrue(priKeys.add(priKey.getD()));
+			assertEquals(param.getG().multiply(priKey.getD()).normalize(), pubKey.getQ());
+		}
+		
+		assertEquals(3 * CAPACITY, pool.getTaken());
+		assertTrue(pool.getMisses() <= 2 * CAPACITY);
+		assertTrue(pool.getRefills() > 0);
+		assertTrue(pool.getAverageGenerateTime() > 0);
+		
+		/* The pool is refilled after keypairs are taken */
+		awaitFull(pool);
+	}
+	
+	/**
+	 * Test that the pool refills using an executor provided, which is not
+	 * shut down with the pool, and that no keypairs remain after shutdown
+	 */
+	@Test
+	public void sharedExecutor() throws InterruptedException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		ECKeyPool sharedPool = new ECKeyPool(param, CAPACITY, executor);
+		
+		awaitFull(sharedPool);
+		assertNotNull(sharedPool.take());
+		awaitFull(sharedPool);
+		
+		sharedPool.shutdown();
+		assertEquals(0, sharedPool.getDepth());
+		assertFalse(executor.isShutdown());
+		
+		/* Keypairs can still be taken, but are generated by the caller */
+		assertNotNull(sharedPool.take());
+		assertEquals(1, sharedPool.getMisses());
+		executor.shutdown();
+	}
+	
+	/**
+	 * Test that an exception is thrown if the capacity is not positive
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void invalidCapacity()
+	{
+		new ECKeyPool(param, 0);
+	}
+}
@@ -20,11 +20,15 @@ package com.orwell.test;
 
 import static org.junit.Assert.*;
 
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.strippedcastle.crypto.params.ECPrivateKeyParameters;
 import org.strippedcastle.crypto.params.ECPublicKeyParameters;
 
+import com.orwell.crypto.ECCombMultiplier;
 import com.orwell.crypto.ECKey;
 import com.orwell.params.ECKeyParam;
 
@@ -83,4 +87,44 @@ public class ECKeyTest
 			assertFalse(expPriKey.getD().equals(priKey.getD()));
 		}
 	}
+	
+	/**
+	 * Test that the public keys generated using the precomputed comb are the
+	 * same as the scalar multiplication of the generator by the private key
+	 */
+	@Test
+	public void combMultiply()
+	{
+		ECCombMultiplier comb = ECCombMultiplier.getInstance(param.getECDomainParam());
+		BigInteger n = param.getN();
+		SecureRandom random = new SecureRandom();
+		
+		/* The comb is shared by all keys using the same domain parameters */
+		assertSame(comb, ECCombMultiplier.getInstance(new ECKeyParam().getECDomainParam()));
+		assertEquals(param.getG().multiply(expPriKey.getD()).normalize(), expPubKey.getQ());
+		
+		/* Edge cases of the scalar including the rows of the comb */
+		BigInteger[] scalars = { BigInteger.ONE, BigInteger.valueOf(2), n.subtract(BigInteger.ONE), 
+		                         BigInteger.ONE.shiftLeft(52), BigInteger.ONE.shiftLeft(255) };
+		
+		for (BigInteger k : scalars)
+		{
+			assertEquals(param.getG().multiply(k).normalize(), comb.multiply(k));
+		}
+		
+		for (int i = 0; i < 20; ++i)
+		{
+			BigInteger k = new BigInteger(n.bitLength(), random).mod(n);
+			assertEquals(param.getG().multiply(k).normalize(), comb.multiply(k));
+		}
+		
+		assertTrue(comb.multiply(n).isInfinity());
+		
+		/* Keys generated from the shared ECKeyParam use the same comb */
+		ECKey key = new ECKey(ECKeyParam.getInstance());
+		key.init();
+		ECPrivateKeyParameters priKey = (ECPrivateKeyParameters) key.getPrivate();
+		assertSame(comb, ECKeyParam.getInstance().getComb());
+		assertEquals(param.getG().multiply(priKey.getD()).normalize(), ((ECPublicKeyParameters) key.getPublic()).getQ());
+	}
 }
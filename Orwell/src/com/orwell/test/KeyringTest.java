@@ -0,0 +1,268 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.strippedcastle.crypto.params.ECPublicKeyParameters;
+
+import com.orwell.crypto.ECGKeyUtil;
+import com.orwell.crypto.ECKey;
+import com.orwell.crypto.Keyring;
+import com.orwell.params.ECKeyParam;
+
+public class KeyringTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private File file;
+    private File indexFile;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        file = new File(folder.getRoot(), "contacts.keyring");
+        indexFile = new File(folder.getRoot(), "contacts.keyring.idx");
+    }
+    
+    /**
+     * Test adding, replacing and removing contacts and that the contacts are
+     * loaded from the index when the keyring is opened again
+     */
+    @Test
+    public void putGetRemove() throws IOException
+    {
+        ECKeyParam param = ECKeyParam.getInstance();
+        ECKey key = new ECKey(param);
+        key.init();
+        byte[] encodedPubKey = ECGKeyUtil.encodePubKey(param, key.getPublic());
+        
+        Keyring keyring = new Keyring(file);
+        keyring.put("alice", encodedPubKey, "initiator".getBytes());
+        keyring.put("bob", new byte[] { 1, 2, 3 }, null);
+        keyring.put("bob", new byte[] { 4, 5 }, null);
+        keyring.put("carol", new byte[] { 6 }, null);
+        
+        assertNull(keyring.get("dave"));
+        assertTrue(keyring.remove("carol"));
+        assertFalse(keyring.remove("carol"));
+        keyring.close();
+        
+        keyring = new Keyring(file);
+        Keyring.Entry alice = keyring.get("alice");
+        ECPublicKeyParameters pubKey = ECGKeyUtil.decodePubKey(param, alice.getPubKey());
+        
+        assertEquals("alice", alice.getContactId());
+        assertEquals(((ECPublicKeyParameters) key.getPublic()).getQ(), pubKey.getQ());
+        assertArrayEquals("initiator".getBytes(), alice.getMetadata());
+        assertArrayEquals(new byte[] { 4, 5 }, keyring.get("bob").getPubKey());
+        assertEquals(0, keyring.get("bob").getMetadata().length);
+        assertNull(keyring.get("carol"));
+        assertEquals(3, keyring.getIndexedCount());
+        
+        keyring.put("carol", new byte[] { 7 }, null);
+        assertArrayEquals(new byte[] { 7 }, keyring.get("carol").getPubKey());
+        keyring.close();
+    }
+    
+    /**
+     * Test that the index grows to hold many contacts
+     */
+    @Test
+    public void manyContacts() throws IOException
+    {
+        int contacts = 5 * Keyring.DEFAULT_CAPACITY;
+        Keyring keyring = new Keyring(file);
+        
+        for (int i = 0; i < contacts; ++i)
+        {
+            keyring.put("contact" + i, pubKey(i), null);
+        }
+        
+        keyring.close();
+        keyring = new Keyring(file);
+        
+        for (int i = 0; i < contacts; ++i)
+        {
+            assertArrayEquals(pubKey(i), keyring.get("contact" + i).getPubKey());
+        }
+        
+        assertEquals(contacts, keyring.getIndexedCount());
+        assertTrue(indexFile.length() > Keyring.DEFAULT_CAPACITY * 12);
+        keyring.close();
+    }
+    
+    /**
+     * Test that a missing or out of date index is rebuilt from the data file
+     * and that a partially written record is discarded
+     */
+    @Test
+    public void recovery() throws IOException
+    {
+        Keyring keyring = new Keyring(file);
+        keyring.put("alice", pubKey(1), null);
+        keyring.close();
+        
+        /* Keep the index which only contains alice */
+        File oldIndex = folder.newFile("old.idx");
+        copy(indexFile, oldIndex);
+        
+        keyring = new Keyring(file);
+        keyring.put("bob", pubKey(2), null);
+        keyring.put("alice", pubKey(3), null);
+        keyring.close();
+        
+        /* The records appended since the old index was written are indexed */
+        copy(oldIndex, indexFile);
+        keyring = new Keyring(file);
+        assertArrayEquals(pubKey(3), keyring.get("alice").getPubKey());
+        assertArrayEquals(pubKey(2), keyring.get("bob").getPubKey());
+        long length = keyring.getDataLength();
+        keyring.close();
+        
+        /* A partially written record is discarded */
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(length);
+        raf.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+        raf.close();
+        
+        assertTrue(indexFile.delete());
+        keyring = new Keyring(file);
+        assertEquals(length, keyring.getDataLength());
+        assertArrayEquals(pubKey(3), keyring.get("alice").getPubKey());
+        assertArrayEquals(pubKey(2), keyring.get("bob").getPubKey());
+        keyring.close();
+    }
+    
+    /**
+     * Test that a damaged record followed by other records is reported rather
+     * than discarding the records following it
+     */
+    @Test
+    public void damagedRecord() throws IOException
+    {
+        Keyring keyring = new Keyring(file);
+        keyring.put("alice", pubKey(1), null);
+        long offset = keyring.getDataLength();
+        keyring.put("bob", pubKey(2), null);
+        keyring.put("carol", pubKey(3), null);
+        long length = keyring.getDataLength();
+        keyring.close();
+        
+        /* Damage the public key of bob */
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(offset + 4 + 4 + 1 + 2 + "bob".length() + 2);
+        raf.write(0xFF);
+        raf.close();
+        
+        assertTrue(indexFile.delete());
+        
+        try
+        {
+            new Keyring(file);
+            fail("Opened a keyring with a damaged record");
+        }
+        catch (IOException e)
+        {
+        }
+        
+        /* The records following the damaged record are kept */
+        assertEquals(length, file.length());
+        
+        /* The damaged record is also reported when replaying an old index */
+        raf = new RandomAccessFile(file, "rw");
+        raf.seek(offset + 4 + 4 + 1 + 2 + "bob".length() + 2);
+        raf.write(2);
+        raf.close();
+        
+        keyring = new Keyring(file);
+        keyring.close();
+        File oldIndex = folder.newFile("old.idx");
+        copy(indexFile, oldIndex);
+        
+        keyring = new Keyring(file);
+        keyring.put("dave", pubKey(4), null);
+        keyring.put("erin", pubKey(5), null);
+        long oldLength = length;
+        length = keyring.getDataLength();
+        keyring.close();
+        
+        raf = new RandomAccessFile(file, "rw");
+        raf.seek(oldLength + 4 + 4 + 1 + 2 + "dave".length() + 2);
+        raf.write(0xFF);
+        raf.close();
+        copy(oldIndex, indexFile);
+        
+        try
+        {
+            new Keyring(file);
+            fail("Opened a keyring with a damaged record");
+        }
+        catch (IOException e)
+        {
+        }
+        
+        assertEquals(length, file.length());
+    }
+    
+    /**
+     * Test that a file which is not a keyring is rejected
+     */
+    @Test(expected=IOException.class)
+    public void notKeyring() throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a keyring".getBytes());
+        out.close();
+        
+        new Keyring(file);
+    }
+    
+    private static byte[] pubKey(int i)
+    {
+        return new byte[] { 2, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+    }
+    
+    private static void copy(File from, File to) throws IOException
+    {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        byte[] buf = new byte[8192];
+        int n;
+        
+        while ((n = in.read(buf)) != -1)
+        {
+            out.write(buf, 0, n);
+        }
+        
+        in.close();
+        out.close();
+    }
+}
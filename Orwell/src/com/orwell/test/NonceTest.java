@@ -23,6 +23,7 @@ import static org.junit.Assert.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import org.strippedcastle.crypto.DataLengthException;
 import org.strippedcastle.crypto.digests.SHA256Digest;
 import org.strippedcastle.crypto.engines.ISAACEngine;
 import org.strippedcastle.util.encoders.Hex;
@@ -198,4 +199,109 @@ public class NonceTest
             assertTrue(Arrays.equals(aliceNonceSequence.get(500 + i), restoredNonceSequence.get(i)));
         }
     }
+    
+    /**
+     * Test that the prefetched nonces are the same sequence with the same 
+     * cycles as the nonces generated without prefetching, including after
+     * re-seeding and after prefetching is stopped.
+     */
+    @Test
+    public void prefetchSequence()
+    {
+        aliceGeneratorSDF.generateBytes(aliceSeed, 0, 0);
+        aliceNonce.init(aliceSeed, 12);
+        bobNonce.startPrefetch(64);
+        bobNonce.init(aliceSeed, 12);
+        assertTrue(bobNonce.isPrefetching());
+        
+        byte[] out = new byte[20];
+        byte[] IV = new byte[12];
+        
+        for (int i = 0; i < 3000; ++i)
+        {
+            byte[] expNonce = aliceNonce.nextNonce();
+            
+            /* Mix the accessors of the nonce */
+            switch (i % 3)
+            {
+                case 0:
+                    assertArrayEquals(expNonce, bobNonce.nextNonce());
+                    break;
+                case 1:
+                    bobNonce.nextNonce(out, 5);
+                    assertArrayEquals(expNonce, Arrays.copyOfRange(out, 5, 17));
+                    assertArrayEquals(expNonce, bobNonce.getNonce());
+                    break;
+                default:
+                    bobNonce.nextBytes(IV);
+                    assertArrayEquals(expNonce, IV);
+                    break;
+            }
+            
+            assertEquals(aliceNonce.getCycle(), bobNonce.getCycle());
+            
+            /* Re-seeding discards the nonces prefetched */
+            if (i == 1000)
+            {
+                aliceNonce.addSeedMaterial(0x0123456789ABCDEFL);
+                bobNonce.addSeedMaterial(0x0123456789ABCDEFL);
+            }
+            else if (i == 2000)
+            {
+                bobNonce.stopPrefetch();
+                assertFalse(bobNonce.isPrefetching());
+            }
+        }
+        
+        /* A nonce restored while prefetching continues the sequence */
+        Nonce restoredNonce = new Nonce(new ISAACRandomGenerator(new ISAACEngine()), 10);
+        Nonce expNonce = new Nonce(new ISAACRandomGenerator(new ISAACEngine()));
+        restoredNonce.startPrefetch(8);
+        restoredNonce.init(aliceSeed, 12);
+        expNonce.init(aliceSeed, 12);
+        
+        for (int i = 0; i < 10; ++i)
+        {
+            expNonce.nextNonce();
+        }
+        
+        assertArrayEquals(expNonce.getNonce(), restoredNonce.getNonce());
+        
+        for (int i = 0; i < 100; ++i)
+        {
+            assertArrayEquals(expNonce.nextNonce(), restoredNonce.nextNonce());
+            assertEquals(expNonce.getCycle(), restoredNonce.getCycle());
+        }
+        
+        restoredNonce.stopPrefetch();
+    }
+    
+    /**
+     * Test that generating a nonce into a buffer does not overwrite the nonces
+     * previously handed out and that the buffer must be large enough
+     */
+    @Test
+    public void nextNonceBuffer()
+    {
+        aliceGeneratorSDF.generateBytes(aliceSeed, 0, 0);
+        aliceNonce.init(aliceSeed, 16);
+        
+        byte[] out = new byte[16];
+        byte[] handed = aliceNonce.nextNonce();
+        byte[] expNonce = handed.clone();
+        
+        aliceNonce.nextNonce(out, 0);
+        assertArrayEquals(expNonce, handed);
+        assertArrayEquals(out, aliceNonce.getNonce());
+        
+        try
+        {
+            aliceNonce.nextNonce(out, 1);
+            fail("Expected DataLengthException");
+        }
+        catch (DataLengthException e)
+        {
+            assertEquals(2, aliceNonce.getCycle());
+        }
+    }
 }
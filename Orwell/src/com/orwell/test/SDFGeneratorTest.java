@@ -0,0 +1,238 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.strippedcastle.crypto.DataLengthException;
+import org.strippedcastle.crypto.Digest;
+import org.strippedcastle.crypto.digests.SHA1Digest;
+import org.strippedcastle.crypto.digests.SHA256Digest;
+import org.strippedcastle.crypto.digests.SHA512Digest;
+import org.strippedcastle.crypto.generators.HKDFBytesGenerator;
+import org.strippedcastle.crypto.params.HKDFParameters;
+
+import com.orwell.csprng.SDFCache;
+import com.orwell.csprng.SDFGenerator;
+import com.orwell.params.SDFParameters;
+
+public class SDFGeneratorTest
+{
+    private SDFGenerator generator;
+    private byte[] seed;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        generator = new SDFGenerator(new SHA256Digest());
+        generator.init(new SDFParameters("initiator", "recipient"));
+        
+        seed = new byte[generator.getDigest().getDigestSize()];
+        generator.generateBytes(seed, 0, 0);
+    }
+    
+    /**
+     * Test that the seed is the digest of S1 & S2 followed by the iterations 
+     * of the digest and that it is the same for each call
+     */
+    @Test
+    public void generateSeed()
+    {
+        SHA256Digest digest = new SHA256Digest();
+        byte[] expSeed = new byte[digest.getDigestSize()];
+        byte[] S = "initiatorrecipient".getBytes();
+        
+        digest.update(S, 0, S.length);
+        digest.doFinal(expSeed, 0);
+        
+        for (int i = 0; i < 32; ++i)
+        {
+            digest.update(expSeed, 0, expSeed.length);
+            digest.doFinal(expSeed, 0);
+        }
+        
+        assertArrayEquals(expSeed, seed);
+        
+        byte[] prefix = new byte[seed.length];
+        generator.generateBytes(prefix, 0, 12);
+        assertArrayEquals(Arrays.copyOf(seed, 12), Arrays.copyOf(prefix, 12));
+        
+        /* A new seed is derived for new parameters */
+        generator.init(new SDFParameters("recipient", "initiator"));
+        generator.generateBytes(prefix, 0, 0);
+        assertFalse(Arrays.equals(seed, prefix));
+    }
+    
+    /**
+     * Test that the keys expanded from the seed are HKDF-Expand of the seed
+     * and that each info derives a different key
+     */
+    @Test
+    public void expand()
+    {
+        byte[] dictionary = new byte[100];
+        byte[] nonce = new byte[100];
+        byte[] expDictionary = new byte[100];
+        
+        assertEquals(100, generator.expand("dictionary".getBytes(), dictionary, 0, 100));
+        generator.expand("nonce".getBytes(), nonce, 0, 100);
+        
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(HKDFParameters.skipExtractParameters(seed, "dictionary".getBytes()));
+        hkdf.generateBytes(expDictionary, 0, expDictionary.length);
+        
+        assertArrayEquals(expDictionary, dictionary);
+        assertFalse(Arrays.equals(dictionary, nonce));
+        
+        /* The output is the same when expanded in parts of the buffer */
+        byte[] buf = new byte[110];
+        generator.expand("dictionary".getBytes(), buf, 10, 40);
+        assertArrayEquals(Arrays.copyOf(dictionary, 40), Arrays.copyOfRange(buf, 10, 50));
+
+    }
+    
+    /**
+     * Test that expanding more than 255 times the digest size is rejected
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void expandTooLong()
+    {
+        generator.expand(null, new byte[255 * 32 + 1], 0, 255 * 32 + 1);
+    }
+    
+    /**
+     * Test that the seeds derived using the cache are the same as the seeds
+     * derived without the cache and that the cache is bounded
+     */
+    @Test
+    public void cache()
+    {
+        SDFCache cache = new SDFCache(2);
+        SDFGenerator cached = new SDFGenerator(new SHA256Digest());
+        byte[] cachedSeed = new byte[seed.length];
+        cached.setCache(cache);
+        
+        for (int i = 0; i < 3; ++i)
+        {
+            cached.init(new SDFParameters("initiator", "recipient"));
+            cached.generateBytes(cachedSeed, 0, 0);
+            assertArrayEquals(seed, cachedSeed);
+        }
+        
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        
+        /* The number of iterations is part of the key */
+        SDFGenerator iterated = new SDFGenerator(new SHA256Digest(), 33);
+        iterated.setCache(cache);
+        iterated.init(new SDFParameters("initiator", "recipient"));
+        iterated.generateBytes(cachedSeed, 0, 0);
+        assertFalse(Arrays.equals(seed, cachedSeed));
+        assertEquals(2, cache.getMisses());
+        
+        /* The least recently used seed is evicted */
+        cached.init(new SDFParameters("recipient", "initiator"));
+        cached.generateBytes(cachedSeed, 0, 0);
+        cached.init(new SDFParameters("initiator", "recipient"));
+        cached.generateBytes(cachedSeed, 0, 0);
+        
+        assertArrayEquals(seed, cachedSeed);
+        assertEquals(2, cache.size());
+        assertEquals(4, cache.getMisses());
+        
+        cache.remove("initiator".getBytes(), "recipient".getBytes(), new SHA256Digest(), 32);
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+    
+    /**
+     * Test that the specialized iterations of SHA256 and SHA512 derive the same
+     * seeds as iterating the digest, as well as the digests not specialized
+     */
+    @Test
+    public void iterations()
+    {
+        Digest[] digests = { new SHA256Digest(), new SHA512Digest(), new SHA1Digest() };
+        int[] iterations = { 1, 2, 100, 1000 };
+        
+        for (Digest digest : digests)
+        {
+            for (int n : iterations)
+            {
+                SDFGenerator sdf = new SDFGenerator(digest, n);
+                byte[] seed = new byte[digest.getDigestSize()];
+                byte[] expSeed = new byte[digest.getDigestSize()];
+                byte[] S = "initiatorrecipient".getBytes();
+                
+                sdf.init(new SDFParameters("initiator", "recipient"));
+                sdf.generateBytes(seed, 0, 0);
+                
+                digest.update(S, 0, S.length);
+                digest.doFinal(expSeed, 0);
+                
+                for (int i = 0; i < n; ++i)
+                {
+                    digest.update(expSeed, 0, expSeed.length);
+                    digest.doFinal(expSeed, 0);
+                }
+                
+                assertArrayEquals(digest.getAlgorithmName() + " " + n, expSeed, seed);
+            }
+        }
+    }
+    
+    /**
+     * Test that generating the seed into a ByteBuffer is the same as into an
+     * array and that the position of the buffer is advanced
+     */
+    @Test
+    public void generateBuffer()
+    {
+        for (boolean direct : new boolean[] { false, true })
+        {
+            ByteBuffer out = direct ? ByteBuffer.allocateDirect(50) : ByteBuffer.allocate(50);
+            byte[] result = new byte[seed.length + 12];
+            
+            out.position(3);
+            assertEquals(seed.length, generator.generateBytes(out, 0));
+            assertEquals(12, generator.generateBytes(out, 12));
+            assertEquals(3 + seed.length + 12, out.position());
+            
+            out.position(3);
+            out.get(result);
+            assertArrayEquals(seed, Arrays.copyOf(result, seed.length));
+            assertArrayEquals(Arrays.copyOf(seed, 12), Arrays.copyOfRange(result, seed.length, result.length));
+        }
+    }
+    
+    /**
+     * Test that the ByteBuffer must have the length remaining
+     */
+    @Test(expected=DataLengthException.class)
+    public void generateBufferTooSmall()
+    {
+        generator.generateBytes(ByteBuffer.allocate(seed.length - 1), 0);
+    }
+}
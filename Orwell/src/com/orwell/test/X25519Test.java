@@ -0,0 +1,243 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.strippedcastle.crypto.CipherParameters;
+import org.strippedcastle.crypto.InvalidCipherTextException;
+import org.strippedcastle.crypto.digests.SHA256Digest;
+import org.strippedcastle.crypto.engines.ISAACEngine;
+import org.strippedcastle.util.encoders.Hex;
+
+import com.orwell.crypto.APrioriInfo;
+import com.orwell.crypto.ECEngine;
+import com.orwell.crypto.ECGKeyExchange;
+import com.orwell.crypto.ECGKeyUtil;
+import com.orwell.crypto.ECGroupCipher;
+import com.orwell.crypto.X25519;
+import com.orwell.crypto.X25519Key;
+import com.orwell.csprng.ISAACRandomGenerator;
+import com.orwell.params.Nonce;
+import com.orwell.params.X25519PrivateKeyParameters;
+import com.orwell.params.X25519PublicKeyParameters;
+
+public class X25519Test
+{
+    private APrioriInfo priorInfo;
+    private X25519Key aliceKey;
+    private X25519Key bobKey;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        priorInfo = new APrioriInfo("initiator", "recipient");
+        
+        aliceKey = new X25519Key();
+        aliceKey.init();
+        bobKey = new X25519Key();
+        bobKey.init();
+    }
+    
+    /**
+     * Test the scalar multiplication test vectors from RFC 7748, section 5.2
+     */
+    @Test
+    public void testVectors()
+    {
+        byte[] r = new byte[X25519.KEY_SIZE];
+        
+        X25519.calculateAgreement(Hex.decode("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4"), 0, 
+                                  Hex.decode("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c"), 0, 
+                                  r, 0);
+        assertEquals("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552", Hex.toHexString(r));
+        
+        /* The result of each iteration is the scalar of the next */
+        byte[] k = new byte[X25519.KEY_SIZE];
+        byte[] u = new byte[X25519.KEY_SIZE];
+        k[0] = 9;
+        u[0] = 9;
+        
+        for (int i = 1; i <= 1000; ++i)
+        {
+            X25519.calculateAgreement(k, 0, u, 0, r, 0);
+            System.arraycopy(k, 0, u, 0, X25519.KEY_SIZE);
+            System.arraycopy(r, 0, k, 0, X25519.KEY_SIZE);
+            
+            if (i == 1)
+            {
+                assertEquals("422c8e7a6227d7bca1350b3e2bb7279f7897b87bb6854b783c60e80311ae3079", Hex.toHexString(k));
+            }
+        }
+        
+        assertEquals("684cf59ba83309552800ef566f2f4d3c1c3887c49360e3875f2eb94d99532c51", Hex.toHexString(k));
+    }
+    
+    /**
+     * Test the Diffie-Hellman test vectors from RFC 7748, section 6.1
+     */
+    @Test
+    public void testAgreement()
+    {
+        byte[] alicePri = Hex.decode("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+        byte[] bobPri = Hex.decode("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+        byte[] alicePub = new byte[X25519.KEY_SIZE];
+        byte[] bobPub = new byte[X25519.KEY_SIZE];
+        byte[] aliceZ = new byte[X25519.KEY_SIZE];
+        byte[] bobZ = new byte[X25519.KEY_SIZE];
+        
+        X25519.generatePublicKey(alicePri, 0, alicePub, 0);
+        X25519.generatePublicKey(bobPri, 0, bobPub, 0);
+        assertEquals("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a", Hex.toHexString(alicePub));
+        assertEquals("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f", Hex.toHexString(bobPub));
+        
+        X25519.calculateAgreement(alicePri, 0, bobPub, 0, aliceZ, 0);
+        X25519.calculateAgreement(bobPri, 0, alicePub, 0, bobZ, 0);
+        assertEquals("4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742", Hex.toHexString(aliceZ));
+        assertArrayEquals(aliceZ, bobZ);
+    }
+    
+    /**
+     * Test that an agreement with a point of small order is rejected
+     */
+    @Test(expected=IllegalStateException.class)
+    public void smallOrderPoint()
+    {
+        byte[] k = ((X25519PrivateKeyParameters) aliceKey.getPrivate()).getEncoded();
+        byte[] u = new byte[X25519.KEY_SIZE];
+        u[0] = 1;
+        
+        X25519.calculateAgreement(k, 0, u, 0, new byte[X25519.KEY_SIZE], 0);
+    }
+    
+    /**
+     * Test that the ECEngine encrypts and decrypts messages using X25519 keys
+     * with and without session mode
+     * 
+     * @throws InvalidCipherTextException
+     */
+    @Test
+    public void engine() throws InvalidCipherTextException
+    {
+        ECEngine aliceEngine = new ECEngine(newNonce(), priorInfo);
+        ECEngine sessionEngine = new ECEngine(newNonce(), priorInfo);
+        ECEngine bobEngine = new ECEngine(newNonce(), priorInfo);
+        
+        aliceEngine.init(true, aliceKey.getPrivate(), bobKey.getPublic());
+        sessionEngine.initSession(true, aliceKey.getPrivate(), bobKey.getPublic());
+        bobEngine.init(false, bobKey.getPrivate(), aliceKey.getPublic());
+        
+        for (int len = 0; len < 100; len += 7)
+        {
+            byte[] msg = new byte[len + 1];
+            msg[len] = (byte) len;
+            
+            byte[] encBlock = aliceEngine.processBlock(msg);
+            assertArrayEquals(encBlock, sessionEngine.processBlock(msg));
+            assertArrayEquals(msg, bobEngine.processBlock(encBlock));
+        }
+    }
+    
+    /**
+     * Test exchanging signed X25519 public keys using the ECG Exchange, the
+     * decoded keys are used for the agreement
+     * 
+     * @throws InvalidCipherTextException
+     */
+    @Test
+    public void keyExchange() throws InvalidCipherTextException
+    {
+        byte[] encodedPubKey = ECGKeyUtil.encodePubKey(null, aliceKey.getPublic());
+        byte[] signedPubKey = ECGKeyExchange.signPubKey(new SHA256Digest(), encodedPubKey, priorInfo, true);
+        
+        assertEquals(X25519.KEY_SIZE, encodedPubKey.length);
+        assertTrue(ECGKeyExchange.verifyPubKey(new SHA256Digest(), signedPubKey, priorInfo, false));
+        
+        X25519PublicKeyParameters pubKey = ECGKeyUtil.decodeSignedX25519PubKey(new SHA256Digest(), signedPubKey);
+        assertArrayEquals(encodedPubKey, pubKey.getEncoded());
+        
+        X25519PrivateKeyParameters priKey = 
+                ECGKeyUtil.decodeX25519PriKey(ECGKeyUtil.encodePriKey(null, bobKey.getPrivate()));
+        
+        ECEngine aliceEngine = new ECEngine(newNonce(), priorInfo);
+        ECEngine bobEngine = new ECEngine(newNonce(), priorInfo);
+        X25519PublicKeyParameters bobPubKey = 
+                ECGKeyUtil.decodeX25519PubKey(ECGKeyUtil.encodePubKey(null, bobKey.getPublic()));
+        
+        aliceEngine.init(true, aliceKey.getPrivate(), bobPubKey);
+        bobEngine.init(false, priKey, pubKey);
+        
+        byte[] msg = "Twelve Bytes".getBytes();
+        assertArrayEquals(msg, bobEngine.processBlock(aliceEngine.processBlock(msg)));
+    }
+    
+    /**
+     * Test encrypting a message for a group of recipients with X25519 keys,
+     * the recipients identify themselves using their decoded public keys
+     * 
+     * @throws InvalidCipherTextException
+     */
+    @Test
+    public void groupCipher() throws InvalidCipherTextException
+    {
+        X25519Key carolKey = new X25519Key();
+        carolKey.init();
+        
+        ECGroupCipher group = new ECGroupCipher();
+        ECEngine toBob = new ECEngine(newNonce(), priorInfo);
+        ECEngine toCarol = new ECEngine(newNonce(), priorInfo);
+        ECEngine bob = new ECEngine(newNonce(), priorInfo);
+        ECEngine carol = new ECEngine(newNonce(), priorInfo);
+        
+        toBob.init(true, aliceKey.getPrivate(), bobKey.getPublic());
+        toCarol.init(true, aliceKey.getPrivate(), carolKey.getPublic());
+        bob.init(false, bobKey.getPrivate(), aliceKey.getPublic());
+        carol.init(false, carolKey.getPrivate(), aliceKey.getPublic());
+        
+        byte[] msg = "A message for the group".getBytes();
+        byte[] encGroup = group.encrypt(msg, 0, msg.length, new ECEngine[] { toBob, toCarol }, 
+                                        new CipherParameters[] { bobKey.getPublic(), carolKey.getPublic() });
+        
+        X25519PublicKeyParameters carolPubKey = 
+                ECGKeyUtil.decodeX25519PubKey(ECGKeyUtil.encodePubKey(null, carolKey.getPublic()));
+        
+        assertArrayEquals(msg, group.decrypt(encGroup, 0, encGroup.length, bob, bobKey.getPublic()));
+        assertArrayEquals(msg, group.decrypt(encGroup, 0, encGroup.length, carol, carolPubKey));
+        
+        /* Alice is not a recipient */
+        try
+        {
+            group.decrypt(encGroup, 0, encGroup.length, bob, aliceKey.getPublic());
+            fail("Decrypted a group message without being a recipient");
+        }
+        catch (InvalidCipherTextException e)
+        {
+        }
+    }
+    
+    private Nonce newNonce()
+    {
+        byte[] seed = new byte[32];
+        Nonce nonce = new Nonce(new ISAACRandomGenerator(new ISAACEngine()));
+        nonce.init(seed, seed.length);
+        return nonce;
+    }
+}
@@ -0,0 +1,502 @@
+/**
+ * Orwell -- A security library for the pathologically paranoid
+ *
+ * Copyright (C) 2013, Jonathan Gillett, All rights reserved.
+ * 
+ * This library is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.orwell.util;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Provides support for encoding and decoding using the Base64 encoding scheme,
+ * which encodes every 3 bytes of data as 4 of 64 printable ASCII characters.
+ * The codec is table driven and does not depend on the Android libraries, the
+ * slice and ByteBuffer methods encode and decode into the buffers provided 
+ * without any allocation.
+ * 
+ * When wrapping lines the encoded data is identical to android.util.Base64
+ * with the DEFAULT flag, a newline is added after every 76 characters and at 
+ * the end of the encoded data. Decoding ignores whitespace and accepts the 
+ * encoded data with or without padding.
+ * 
+ * @see <a href="http://en.wikipedia.org/wiki/Base64"></a>
+ * @see <a href="http://tools.ietf.org/html/rfc4648"></a>
+ */
+public abstract class Base64
+{
+    /* The number of 4 character groups on each line when wrapping lines */
+    private static final int LINE_GROUPS = 19;
+    
+    private static final byte[] ENCODE = 
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    
+    /* The decoding table, -1 for invalid characters, -2 for whitespace and -3 for padding */
+    private static final byte[] DECODE = new byte[256];
+    private static final byte INVALID = -1;
+    private static final byte SKIP = -2;
+    private static final byte PAD = -3;
+    
+    static
+    {
+        for (int i = 0; i < DECODE.length; ++i)
+        {
+            DECODE[i] = INVALID;
+        }
+        
+        for (int i = 0; i < ENCODE.length; ++i)
+        {
+            DECODE[ENCODE[i]] = (byte) i;
+        }
+        
+        DECODE[' '] = SKIP;
+        DECODE['\t'] = SKIP;
+        DECODE['\r'] = SKIP;
+        DECODE['\n'] = SKIP;
+        DECODE['='] = PAD;
+    }
+    
+    /**
+     * Returns the length of the encoded data for the input length specified
+     * 
+     * @param len The length of the data to encode
+     * @param wrap True to wrap the lines, the same as android.util.Base64.DEFAULT
+     * 
+     * @return The length of the encoded data
+     */
+    public static int getEncodedLength(int len, boolean wrap)
+    {
+        int groups = (len + 2) / 3;
+        
+        return 4 * groups + (wrap ? (groups + LINE_GROUPS - 1) / LINE_GROUPS : 0);
+    }
+    
+    /**
+     * Returns the maximum length of the decoded data for the encoded length
+     * specified, the actual length is less if the encoded data contains
+     * padding or whitespace.
+     * 
+     * @param len The length of the encoded data
+     * 
+     * @return The maximum length of the decoded data
+     */
+    public static int getMaxDecodedLength(int len)
+    {
+        return (int) (((long) len * 3 + 3) / 4);
+    }
+    
+    /**
+     * Encodes the input data as Base64 and returns the encoded data in bytes,
+     * the lines are wrapped the same as android.util.Base64.DEFAULT.
+     * 
+     * @param input The input to encode as Base64 in bytes
+     * 
+     * @return A byte array of the encoded data
+     */
+    public static byte[] encode(byte[] input)
+    {
+        return encode(input, true);
+    }
+    
+    /**
+     * Encodes the input data as Base64 and returns the encoded data in bytes
+     * 
+     * @param input The input to encode as Base64 in bytes
+     * @param wrap True to wrap the lines, the same as android.util.Base64.DEFAULT
+     * 
+     * @return A byte array of the encoded data
+     */
+    public static byte[] encode(byte[] input, boolean wrap)
+    {
+        byte[] output = new byte[getEncodedLength(input.length, wrap)];
+        encode(input, 0, input.length, output, 0, wrap);
+        return output;
+    }
+    
+    /**
+     * Encodes the input data as Base64 and returns the encoded data as a String
+     * 
+     * @param input The input to encode as Base64 in bytes
+     * @param wrap True to wrap the lines, the same as android.util.Base64.DEFAULT
+     * 
+     * @return A String representation of the encoded data
+     */
+    public static String encodeToString(byte[] input, boolean wrap)
+    {
+        byte[] output = encode(input, wrap);
+        char[] chars = new char[output.length];
+        
+        for (int i = 0; i < output.length; ++i)
+        {
+            chars[i] = (char) output[i];
+        }
+        
+        return new String(chars);
+    }
+    
+    /**
+     * Encodes a slice of the input as Base64 into the output buffer provided,
+     * use getEncodedLength() to determine the size of the output required.
+     * 
+     * @param in The buffer containing the data to encode
+     * @param inOff The offset of the data to encode
+     * @param inLen The length of the data to encode
+     * @param out The output buffer for the encoded data
+     * @param outOff The offset in the output buffer to write to
+     * @param wrap True to wrap the lines, the same as android.util.Base64.DEFAULT
+     * 
+     * @return The number of bytes written to the output buffer
+     * 
+     * @throws IndexOutOfBoundsException if the output buffer is too small
+     */
+    public static int encode(byte[] in, int inOff, int inLen, byte[] out, int outOff, boolean wrap)
+            throws IndexOutOfBoundsException
+    {
+        if (out.length - outOff < getEncodedLength(inLen, wrap))
+        {
+            throw new IndexOutOfBoundsException("Output buffer too small for the encoded data!");
+        }
+        
+        int end = inOff + inLen;
+        int op = outOff;
+        int groups = 0;
+        int i = inOff;
+        
+        for (; i + 3 <= end; i += 3)
+        {
+            int v = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8) | (in[i + 2] & 0xff);
+            
+            out[op++] = ENCODE[v >>> 18];
+            out[op++] = ENCODE[(v >>> 12) & 0x3f];
+            out[op++] = ENCODE[(v >>> 6) & 0x3f];
+            out[op++] = ENCODE[v & 0x3f];
+            
+            if (wrap && ++groups == LINE_GROUPS)
+            {
+                out[op++] = '\n';
+                groups = 0;
+            }
+        }
+        
+        /* The final group is padded if the input is not a multiple of 3 */
+        if (i < end)
+        {
+            int v = (in[i] & 0xff) << 16;
+            
+            if (i + 1 < end)
+            {
+                v |= (in[i + 1] & 0xff) << 8;
+            }
+            
+            out[op++] = ENCODE[v >>> 18];
+            out[op++] = ENCODE[(v >>> 12) & 0x3f];
+            out[op++] = (i + 1 < end) ? ENCODE[(v >>> 6) & 0x3f] : (byte) '=';
+            out[op++] = '=';
+            ++groups;
+        }
+        
+        if (wrap && groups > 0)
+        {
+            out[op++] = '\n';
+        }
+        
+        return op - outOff;
+    }
+    
+    /**
+     * Encodes the remaining input as Base64 into the output buffer, the 
+     * position of both buffers is advanced.
+     * 
+     * @param in The data to encode
+     * @param out The output buffer for the encoded data
+     * @param wrap True to wrap the lines, the same as android.util.Base64.DEFAULT
+     * 
+     * @return The number of bytes written to the output buffer
+     * 
+     * @throws IndexOutOfBoundsException if the output buffer is too small
+     */
+    public static int encode(ByteBuffer in, ByteBuffer out, boolean wrap)
+            throws IndexOutOfBoundsException
+    {
+        if (out.remaining() < getEncodedLength(in.remaining(), wrap))
+        {
+            throw new IndexOutOfBoundsException("Output buffer too small for the encoded data!");
+        }
+        
+        if (in.hasArray() && out.hasArray() && !out.isReadOnly())
+        {
+            int len = encode(in.array(), in.arrayOffset() + in.position(), in.remaining(), 
+                             out.array(), out.arrayOffset() + out.position(), wrap);
+            
+            in.position(in.limit());
+            out.position(out.position() + len);
+            return len;
+        }
+        
+        int start = out.position();
+        int groups = 0;
+        
+        while (in.hasRemaining())
+        {
+            int n = Math.min(3, in.remaining());
+            int v = (in.get() & 0xff) << 16;
+            
+            if (n > 1)
+            {
+                v |= (in.get() & 0xff) << 8;
+            }
+            
+            if (n > 2)
+            {
+                v |= in.get() & 0xff;
+            }
+            
+            out.put(ENCODE[v >>> 18]);
+            out.put(ENCODE[(v >>> 12) & 0x3f]);
+            out.put((n > 1) ? ENCODE[(v >>> 6) & 0x3f] : (byte) '=');
+            out.put((n > 2) ? ENCODE[v & 0x3f] : (byte) '=');
+            
+            if (wrap && (++groups == LINE_GROUPS || !in.hasRemaining()))
+            {
+                out.put((byte) '\n');
+                groups = 0;
+            }
+        }
+        
+        return out.position() - start;
+    }
+    
+    /**
+     * Decodes the Base64 encoded input and returns the original data in bytes
+     * 
+     * @param input The Base64 encoded data in bytes
+     * 
+     * @return A byte array of the original decoded data
+     * 
+     * @throws IllegalArgumentException if the input is not valid Base64
+     */
+    public static byte[] decode(byte[] input) throws IllegalArgumentException
+    {
+        byte[] output = new byte[getMaxDecodedLength(input.length)];
+        int len = decode(input, 0, input.length, output, 0);
+        
+        if (len == output.length)
+        {
+            return output;
+        }
+        
+        byte[] result = new byte[len];
+        System.arraycopy(output, 0, result, 0, len);
+        return result;
+    }
+    
+    /**
+     * Decodes the Base64 encoded String and returns the original data in bytes
+     * 
+     * @param input The Base64 encoded data
+     * 
+     * @return A byte array of the original decoded data
+     * 
+     * @throws IllegalArgumentException if the input is not valid Base64
+     */
+    public static byte[] decode(String input) throws IllegalArgumentException
+    {
+        byte[] bytes = new byte[input.length()];
+        
+        for (int i = 0; i < bytes.length; ++i)
+        {
+            char c = input.charAt(i);
+            bytes[i] = (c < 256) ? (byte) c : (byte) '!';
+        }
+        
+        return decode(bytes);
+    }
+    
+    /**
+     * Decodes a slice of the Base64 encoded input into the output buffer 
+     * provided, use getMaxDecodedLength() to determine the size of the output
+     * required.
+     * 
+     * @param in The buffer containing the encoded data
+     * @param inOff The offset of the encoded data
+     * @param inLen The length of the encoded data
+     * @param out The output buffer for the decoded data
+     * @param outOff The offset in the output buffer to write to
+     * 
+     * @return The number of bytes written to the output buffer
+     * 
+     * @throws IllegalArgumentException if the input is not valid Base64
+     * @throws IndexOutOfBoundsException if the output buffer is too small
+     */
+    public static int decode(byte[] in, int inOff, int inLen, byte[] out, int outOff)
+            throws IllegalArgumentException, IndexOutOfBoundsException
+    {
+        int end = inOff + inLen;
+        int op = outOff;
+        int v = 0;
+        int n = 0;
+        int pad = 0;
+        
+        for (int i = inOff; i < end; ++i)
+        {
+            int d = DECODE[in[i] & 0xff];
+            
+            if (d >= 0)
+            {
+                if (pad > 0)
+                {
+                    throw new IllegalArgumentException("bad base-64, data after the padding");
+                }
+                
+                v = (v << 6) | d;
+                
+                if (++n == 4)
+                {
+                    out[op++] = (byte) (v >>> 16);
+                    out[op++] = (byte) (v >>> 8);
+                    out[op++] = (byte) v;
+                    v = 0;
+                    n = 0;
+                }
+            }
+            else if (d == PAD)
+            {
+                ++pad;
+            }
+            else if (d == INVALID)
+            {
+                throw new IllegalArgumentException("bad base-64, invalid character");
+            }
+        }
+        
+        int tail = getTailLength(n, pad);
+        
+        if (tail > 0)
+        {
+            out[op++] = (byte) (v >>> (tail == 1 ? 4 : 10));
+        }
+        
+        if (tail > 1)
+        {
+            out[op++] = (byte) (v >>> 2);
+        }
+        
+        return op - outOff;
+    }
+    
+    /**
+     * Decodes the remaining Base64 encoded input into the output buffer, the
+     * position of both buffers is advanced.
+     * 
+     * @param in The encoded data
+     * @param out The output buffer for the decoded data
+     * 
+     * @return The number of bytes written to the output buffer
+     * 
+     * @throws IllegalArgumentException if the input is not valid Base64
+     * @throws BufferOverflowException if the output buffer is too small
+     */
+    public static int decode(ByteBuffer in, ByteBuffer out)
+            throws IllegalArgumentException, BufferOverflowException
+    {
+        /* Decode directly between the arrays if the output cannot overflow the limit */
+        if (in.hasArray() && out.hasArray() && !out.isReadOnly() 
+                && out.remaining() >= getMaxDecodedLength(in.remaining()))
+        {
+            int len = decode(in.array(), in.arrayOffset() + in.position(), in.remaining(), 
+                             out.array(), out.arrayOffset() + out.position());
+            
+            in.position(in.limit());
+            out.position(out.position() + len);
+            return len;
+        }
+        
+        int start = out.position();
+        int v = 0;
+        int n = 0;
+        int pad = 0;
+        
+        while (in.hasRemaining())
+        {
+            int d = DECODE[in.get() & 0xff];
+            
+            if (d >= 0)
+            {
+                if (pad > 0)
+                {
+                    throw new IllegalArgumentException("bad base-64, data after the padding");
+                }
+                
+                v = (v << 6) | d;
+                
+                if (++n == 4)
+                {
+                    out.put((byte) (v >>> 16));
+                    out.put((byte) (v >>> 8));
+                    out.put((byte) v);
+                    v = 0;
+                    n = 0;
+                }
+            }
+            else if (d == PAD)
+            {
+                ++pad;
+            }
+            else if (d == INVALID)
+            {
+                throw new IllegalArgumentException("bad base-64, invalid character");
+            }
+        }
+        
+        int tail = getTailLength(n, pad);
+        
+        if (tail > 0)
+        {
+            out.put((byte) (v >>> (tail == 1 ? 4 : 10)));
+        }
+        
+        if (tail > 1)
+        {
+            out.put((byte) (v >>> 2));
+        }
+        
+        return out.position() - start;
+    }
+    
+    /**
+     * Returns the number of bytes in the final partial group of n characters,
+     * which may or may not be padded
+     */
+    private static int getTailLength(int n, int pad) throws IllegalArgumentException
+    {
+        if (n == 0)
+        {
+            if (pad > 0)
+            {
+                throw new IllegalArgumentException("bad base-64, unexpected padding");
+            }
+            
+            return 0;
+        }
+        
+        if (n == 1 || (pad > 0 && n + pad != 4))
+        {
+            throw new IllegalArgumentException("bad base-64, truncated input");
+        }
+        
+        return n - 1;
+    }
+}